@@ -6,11 +6,15 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,13 +22,21 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public abstract class AbstractDefaultGcm implements Gcm {
 
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractDefaultGcm.class);
+
     private static final String AUTH_KEY = "key=";
 
-    private static final Logger LOG = LoggerFactory.getLogger(AbstractDefaultGcm.class);
+    private static final int READ_BUFFER_SIZE = 4096;
 
     private final ObjectMapper objectMapper;
 
@@ -36,21 +48,193 @@ public abstract class AbstractDefaultGcm implements Gcm {
 
     private final List<GcmFilter> filters;
 
+    /** Whether the filters include a {@link RateLimitFilter}, whose tokens are taken before admission. */
+    private final boolean rateLimited;
+
+    private final InFlightLimiter limiter;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final BufferPool bufferPool;
+
+    private final HashedWheelTimer timer;
+
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    private final long deadline;
+
+    private final AsyncFunction<GcmRequest, GcmResponse> execute = new AsyncFunction<GcmRequest, GcmResponse>() {
+        @Override
+        public ListenableFuture<GcmResponse> apply(GcmRequest request) {
+            return executeRequestFuture(request);
+        }
+    };
+
     public AbstractDefaultGcm(GcmConfig gcmConfig) {
         this.objectMapper = createObjectMapper();
         this.gcmUrl = getConfigEndpoint(gcmConfig.getEndpoint());
         this.authorizationValue = buildAuthString(gcmConfig.getKey());
         this.connectionFactory = gcmConfig.getConnectionFactory() != null ? gcmConfig.getConnectionFactory() : new DefaultConnectionFactory();
         this.filters = gcmConfig.getFilters() != null ? ImmutableList.copyOf(gcmConfig.getFilters()) : ImmutableList.<GcmFilter>of();
+        boolean rateLimited = false;
+        for (GcmFilter filter : filters) {
+            rateLimited |= filter instanceof RateLimitFilter;
+        }
+        this.rateLimited = rateLimited;
+        this.limiter = new InFlightLimiter(gcmConfig.getMaxInFlightRequests(), gcmConfig.getMaxInFlightBytes());
+        this.overflowPolicy = gcmConfig.getOverflowPolicy() != null ? gcmConfig.getOverflowPolicy() : OverflowPolicy.BLOCK;
+        this.bufferPool = gcmConfig.getBufferPool() != null ? gcmConfig.getBufferPool() : new BufferPool();
+        this.timer = gcmConfig.getTimer() != null ? gcmConfig.getTimer() : HashedWheelTimer.shared();
+        this.concurrencyLimiter = gcmConfig.getConcurrencyLimiter();
+        this.connectTimeout = gcmConfig.getConnectTimeout();
+        this.readTimeout = gcmConfig.getReadTimeout();
+        this.deadline = gcmConfig.getDeadline();
     }
 
     private static String buildAuthString(String key) {
         return AUTH_KEY + key;
     }
 
+    /**
+     * Sends the request. Cancelling the returned future, or reaching the deadline of the request, cancels the request
+     * through the filters and aborts its connection, unless it is run on the caller thread because of
+     * {@link OverflowPolicy#CALLER_RUNS}, in which case only the timeouts of the connection apply.
+     */
     @Override
     public ListenableFuture<GcmResponse> send(GcmRequest request) {
-        return new Chain().next(request);
+        // the deadline includes the wait for a token and an in-flight slot
+        long start = System.nanoTime();
+        final long size = InFlightLimiter.estimateSize(request);
+        Tokens tokens;
+        try {
+            tokens = reserveTokens(request);
+        } catch (GcmRateLimitedException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+        if (tokens != null && tokens.wait > 0) {
+            ScheduledSend scheduled = new ScheduledSend(request, tokens, start);
+            scheduled.schedule(tokens.wait, TimeUnit.NANOSECONDS);
+            return scheduled.result;
+        }
+        if (!limiter.tryAcquire(size)) {
+            switch (overflowPolicy) {
+            case REJECT:
+                return Futures.immediateFailedFuture(new GcmRejectedException("Too many requests in flight",
+                        limiter.getRequests(), limiter.getBytes()));
+            case CALLER_RUNS:
+                return new Chain(true, tokens).next(request);
+            default:
+                try {
+                    limiter.acquire(size);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return Futures.immediateFailedFuture(new GcmException("Interrupted while waiting to send the request", ex));
+                }
+            }
+        }
+        return sendAdmitted(request, size, tokens, start);
+    }
+
+    /**
+     * Sends the request after the given delay. The request waits in the timer of the client, without a thread or an
+     * in-flight slot; cancelling the returned future before the delay elapsed removes it. When the in-flight limits are
+     * reached at the end of the delay, the request waits for a free slot without blocking the timer, unless the
+     * overflow policy is {@link OverflowPolicy#REJECT}. The deadline of the request starts at the end of the delay.
+     * @param request the request
+     * @param delay time to wait before sending the request
+     * @param unit unit of the delay
+     * @return the response
+     */
+    public ListenableFuture<GcmResponse> sendAfter(GcmRequest request, long delay, TimeUnit unit) {
+        ScheduledSend scheduled = new ScheduledSend(request);
+        scheduled.schedule(delay, unit);
+        return scheduled.result;
+    }
+
+    /**
+     * Sends the request at the given time, see {@link #sendAfter(GcmRequest, long, TimeUnit)}.
+     * @param request the request
+     * @param time when to send the request, sent immediately if in the past
+     * @return the response
+     */
+    public ListenableFuture<GcmResponse> sendAt(GcmRequest request, Date time) {
+        return sendAfter(request, time.getTime() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the tokens of the {@link RateLimitFilter}s before the request is given an in-flight slot, so a request
+     * waiting for its token waits in the timer without holding a slot.
+     * @return the tokens taken, or null if there is no rate limit
+     * @throws GcmRateLimitedException if a token cannot be taken in time
+     */
+    private Tokens reserveTokens(GcmRequest request) {
+        if (!rateLimited) {
+            return null;
+        }
+        Tokens tokens = new Tokens();
+        for (int i = 0; i < filters.size(); i++) {
+            if (filters.get(i) instanceof RateLimitFilter) {
+                tokens.wait = Math.max(tokens.wait, ((RateLimitFilter) filters.get(i)).reserve(request));
+                tokens.taken.set(i, 1);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Runs the request through the filters once it has been given an in-flight slot.
+     */
+    private ListenableFuture<GcmResponse> sendAdmitted(GcmRequest request, final long size, Tokens tokens, long start) {
+        ListenableFuture<GcmResponse> future;
+        try {
+            future = new Chain(false, tokens).next(request);
+        } catch (RuntimeException | Error ex) {
+            limiter.release(size);
+            throw ex;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                limiter.release(size);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        long timeout = request.getDeadline() > 0 ? request.getDeadline() : deadline;
+        return timeout > 0 ? withDeadline(future, timeout, start) : future;
+    }
+
+    /**
+     * Fails the request with a {@link GcmTimeoutException} and cancels it if it is not answered before the deadline.
+     */
+    private ListenableFuture<GcmResponse> withDeadline(final ListenableFuture<GcmResponse> future, final long timeout, long start) {
+        final SettableFuture<GcmResponse> result = SettableFuture.create();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - start);
+        final HashedWheelTimer.Timeout expiry = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (result.setException(new GcmTimeoutException(timeout))) {
+                    future.cancel(false);
+                }
+            }
+        }, remaining, TimeUnit.NANOSECONDS);
+        Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+            @Override
+            public void onSuccess(GcmResponse response) {
+                expiry.cancel();
+                result.set(response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                expiry.cancel();
+                result.setException(t);
+            }
+        });
+        Cancellation.propagate(result, future);
+        return result;
     }
 
     private static URL getConfigEndpoint(URL configEndpoint) {
@@ -86,7 +270,24 @@ public abstract class AbstractDefaultGcm implements Gcm {
         return connectionFactory;
     }
 
-    private String getAuthorization(GcmRequest request) {
+    /**
+     * Number of requests sent and not yet completed. Requests run on the caller thread because of
+     * {@link OverflowPolicy#CALLER_RUNS} are not counted.
+     * @return number of requests in flight
+     */
+    public int getInFlightRequests() {
+        return limiter.getRequests();
+    }
+
+    /**
+     * Estimated payload bytes of the requests in flight.
+     * @return number of bytes in flight
+     */
+    public long getInFlightBytes() {
+        return limiter.getBytes();
+    }
+
+    protected String getAuthorization(GcmRequest request) {
         String authToken = request.getKey();
         if (authToken == null) {
             if (authorizationValue == null) {
@@ -101,68 +302,186 @@ public abstract class AbstractDefaultGcm implements Gcm {
     }
 
     protected GcmResponse executeRequest(GcmRequest request) throws IOException {
-        byte[] content = objectMapper.writeValueAsBytes(request);
+        return executeRequest(request, null);
+    }
 
-        HttpURLConnection conn = connectionFactory.open(gcmUrl);
+    /**
+     * Sends the request over a connection of the {@link ConnectionFactory}, with the timeouts of the client.
+     * @param request the request to send
+     * @param cancellation future whose cancellation disconnects the connection, failing the blocked read or write, or
+     *        null
+     * @return the response
+     * @throws IOException when the request fails
+     */
+    protected GcmResponse executeRequest(GcmRequest request, final ListenableFuture<?> cancellation) throws IOException {
+        final HttpURLConnection conn = connectionFactory.open(gcmUrl);
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        if (cancellation != null) {
+            cancellation.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancellation.isCancelled()) {
+                        conn.disconnect();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
         conn.setRequestMethod("POST");
         conn.addRequestProperty("Authorization", getAuthorization(request));
         conn.addRequestProperty("Content-Type", "application/json");
         conn.setDoOutput(true);
-        conn.setFixedLengthStreamingMode(content.length);
+        conn.setFixedLengthStreamingMode(contentLength(request));
 
+        // the body is streamed to the connection
         try (OutputStream os = conn.getOutputStream()) {
-            IOUtils.write(content, os);
+            if (cancellation != null && cancellation.isCancelled()) {
+                // cancelled before connecting, disconnecting did not abort the connection
+                conn.disconnect();
+                throw new CancellationException();
+            }
+            writeContent(request, os);
         }
         catch (Exception ex)
         {
             throw new GcmNetworkException("Error sending HTTP request to GCM", ex);
         }
 
-        GcmResponse response;
-        byte[] rsp = null;
-        try (InputStream is = conn.getInputStream()) {
-            rsp = IOUtils.toByteArray(is);
-            response = objectMapper.readValue(rsp, GcmResponse.class);
-
-        } catch (IOException ex) {
-            try (InputStream es = conn.getErrorStream()) {
-                String str = es != null ? IOUtils.toString(es) : "No error details provided";
-
-                int responseCode = conn.getResponseCode();
-                if (responseCode < 500)
-                {
-                    throw new GcmNetworkException(conn.getResponseCode(), str.trim(), ex);
+        PooledOutputStream body = new PooledOutputStream(bufferPool, READ_BUFFER_SIZE);
+        try {
+            InputStream rsp;
+            try {
+                rsp = conn.getInputStream();
+            } catch (IOException ex) {
+                int code;
+                try {
+                    code = conn.getResponseCode();
+                } catch (IOException e) {
+                    // no response, such as a read timeout or an aborted connection
+                    throw new GcmNetworkException("Error receiving HTTP response from GCM", e);
                 }
-                else
-                {
-                    Long retryAfter = checkForRetryInResponse(conn);
-                    throw new GcmNetworkException(conn.getResponseCode(), str.trim(), retryAfter, ex);
+                try (InputStream es = conn.getErrorStream()) {
+                    String str = null;
+                    if (es != null) {
+                        body.readFrom(es);
+                        str = body.toString(StandardCharsets.UTF_8);
+                    }
+                    throw networkException(code, str, parseRetryAfter(conn.getHeaderField("Retry-After")), ex);
                 }
             }
-        }
 
-        response.setRequest(request);
-        Long retryAfter = checkForRetryInResponse(conn);
-        response.setRetryAfter(retryAfter);
+            try (InputStream is = rsp) {
+                body.readFrom(is);
+            }
+            return decodeResponse(request, body.buffer(), 0, body.size(), parseRetryAfter(conn.getHeaderField("Retry-After")));
+        } finally {
+            body.release();
+        }
+    }
 
-        Iterator<String> i1 = request.getRegistrationIds().iterator();
-        Iterator<Result> i2 = response.getResults().iterator();
-        while (i1.hasNext() && i2.hasNext()) {
-            i2.next().setRequestedRegistrationId(i1.next());
+    /**
+     * Computes the size of the JSON body sent to the GCM server.
+     * @param request the request
+     * @return the size in bytes
+     */
+    protected int contentLength(GcmRequest request) {
+        PayloadTemplate template = request.getPayloadTemplate();
+        if (template != null && template.matches(request)) {
+            return template.length(request.getRegistrationIds());
         }
+        return GcmRequestWriter.length(request);
+    }
 
-        if (i1.hasNext()) {
-            LOG.warn("Protocol error: Less results than requested registation IDs");
+    /**
+     * Writes the JSON body sent to the GCM server to the stream, which is not closed. Requests sharing a precompiled
+     * payload, such as the chunks of a large multicast, only have their registration IDs serialized.
+     * @param request the request
+     * @param out the stream
+     * @throws IOException when the stream cannot be written to
+     */
+    protected void writeContent(GcmRequest request, OutputStream out) throws IOException {
+        PayloadTemplate template = request.getPayloadTemplate();
+        if (template != null && template.matches(request)) {
+            template.write(request.getRegistrationIds(), out);
+        } else {
+            GcmRequestWriter.write(request, out);
         }
-        if (i2.hasNext()) {
-            LOG.warn("Protocol error: More results than requested registation IDs");
+    }
+
+    /**
+     * Pool of the buffers used to encode requests and read responses.
+     * @return the buffer pool
+     */
+    protected BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Serializes the request to the JSON body sent to the GCM server. Requests sharing a precompiled payload, such as
+     * the chunks of a large multicast, only have their registration IDs serialized.
+     * @param request the request to serialize
+     * @return the request body
+     * @throws IOException when the request cannot be serialized
+     */
+    protected byte[] encodeRequest(GcmRequest request) throws IOException {
+        PayloadTemplate template = request.getPayloadTemplate();
+        if (template != null && template.matches(request)) {
+            return template.encode(request.getRegistrationIds());
         }
+        return GcmRequestWriter.encode(request);
+    }
+
+    /**
+     * Parses a successful (HTTP 200) response body and correlates the results with the requested registration IDs.
+     * @param request the request the response belongs to
+     * @param body the response body
+     * @param retryAfter value of the Retry-After header in milliseconds, or null
+     * @return the parsed response
+     * @throws IOException when the body cannot be parsed
+     */
+    protected GcmResponse decodeResponse(GcmRequest request, byte[] body, Long retryAfter) throws IOException {
+        return decodeResponse(request, body, 0, body.length, retryAfter);
+    }
 
+    /**
+     * Parses a successful (HTTP 200) response body held in a part of a buffer.
+     * @param request the request the response belongs to
+     * @param buffer the buffer
+     * @param offset offset of the body in the buffer
+     * @param length size of the body
+     * @param retryAfter value of the Retry-After header in milliseconds, or null
+     * @return the parsed response
+     * @throws IOException when the body cannot be parsed
+     */
+    protected GcmResponse decodeResponse(GcmRequest request, byte[] buffer, int offset, int length, Long retryAfter) throws IOException {
+        GcmResponse response = GcmResponseParser.parse(buffer, offset, length, request);
+        response.setRetryAfter(retryAfter);
         return response;
     }
 
-    private Long checkForRetryInResponse(HttpURLConnection conn) {
-        String retryAfterStr = conn.getHeaderField("Retry-After");
+    /**
+     * Builds the exception reported for a non-200 HTTP response. The Retry-After value is only kept for server errors.
+     * @param code HTTP status code
+     * @param body error body sent by the server, or null
+     * @param retryAfter value of the Retry-After header in milliseconds, or null
+     * @param cause underlying exception, may be null
+     * @return the exception to report
+     */
+    protected static GcmNetworkException networkException(int code, String body, Long retryAfter, Throwable cause) {
+        String str = body != null && !body.trim().isEmpty() ? body.trim() : "No error details provided";
+        if (code < 500) {
+            return new GcmNetworkException(code, str, cause);
+        } else {
+            return new GcmNetworkException(code, str, retryAfter, cause);
+        }
+    }
+
+    /**
+     * Parses the value of a Retry-After header, which is either a number of seconds or an HTTP date.
+     * @param retryAfterStr header value, may be null
+     * @return delay in milliseconds, or null if no header was given
+     */
+    protected static Long parseRetryAfter(String retryAfterStr) {
         if (retryAfterStr == null) {
             return null;
         }
@@ -179,20 +498,280 @@ public abstract class AbstractDefaultGcm implements Gcm {
 
     protected abstract ListenableFuture<GcmResponse> executeRequestFuture(final GcmRequest request);
 
+    /**
+     * Sends the request on the calling thread, used by {@link OverflowPolicy#CALLER_RUNS}. The default implementation
+     * waits for {@link #executeRequestFuture(GcmRequest)} to complete.
+     * @param request the request to send
+     * @return a completed future
+     */
+    protected ListenableFuture<GcmResponse> executeRequestInCaller(GcmRequest request) {
+        ListenableFuture<GcmResponse> future = executeRequestFuture(request);
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException ex) {
+            // reported through the future
+        }
+        return future;
+    }
+
+    /**
+     * Sends the request through the concurrency limiter, if there is one, without waiting for it. Transports whose own
+     * threads complete requests use it from {@link #executeRequestInCaller(GcmRequest)} on these threads.
+     */
+    protected final ListenableFuture<GcmResponse> executeLimited(GcmRequest request) {
+        if (concurrencyLimiter == null) {
+            return executeRequestFuture(request);
+        }
+        return concurrencyLimiter.execute(request, execute);
+    }
+
+    /**
+     * Sends a request with more registration IDs than GCM accepts as concurrent requests of at most 1000 IDs, and
+     * merges their responses. A chunk failing with a retriable error reports its registration IDs as
+     * {@link ResultError#UNAVAILABLE}, and one failing with another error as {@link ResultError#REQUEST_FAILED}, so the
+     * results of the other chunks are not lost and sending the request again does not duplicate them; if no chunk
+     * succeeded, the request fails.
+     */
+    private ListenableFuture<GcmResponse> executeChunks(final GcmRequest request, boolean callerRuns) {
+        PayloadTemplate.attach(request);
+        List<String> ids = request.getRegistrationIds();
+        final List<GcmRequest> chunks = new ArrayList<>();
+        List<ListenableFuture<GcmResponse>> futures = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += Multicast.MAX_RECIPIENTS) {
+            List<String> chunkIds = new ArrayList<>(ids.subList(from, Math.min(from + Multicast.MAX_RECIPIENTS, ids.size())));
+            GcmRequest chunk = Multicast.copy(request, chunkIds);
+            chunks.add(chunk);
+            futures.add(callerRuns ? executeRequestInCaller(chunk) : executeLimited(chunk));
+        }
+        final List<ListenableFuture<GcmResponse>> chunkFutures = futures;
+        return Futures.transform(Futures.successfulAsList(futures), new AsyncFunction<List<GcmResponse>, GcmResponse>() {
+            @Override
+            public ListenableFuture<GcmResponse> apply(List<GcmResponse> responses) {
+                List<GcmResponse> merged = new ArrayList<>(responses.size());
+                Throwable failure = null;
+                List<Throwable> failed = new ArrayList<>();
+                boolean succeeded = false;
+                for (int i = 0; i < responses.size(); i++) {
+                    GcmResponse response = responses.get(i);
+                    if (response != null) {
+                        succeeded = true;
+                        merged.add(response);
+                        continue;
+                    }
+                    Throwable cause = failureOf(chunkFutures.get(i));
+                    if (failure == null) {
+                        failure = cause;
+                    }
+                    if (cause instanceof GcmNetworkException && ((GcmNetworkException) cause).canRetry()) {
+                        merged.add(Multicast.unavailable(chunks.get(i), ((GcmNetworkException) cause).getRetryAfter()));
+                    } else {
+                        failed.add(cause);
+                        merged.add(Multicast.failed(chunks.get(i), ResultError.REQUEST_FAILED, null));
+                    }
+                }
+                if (!succeeded) {
+                    return Futures.immediateFailedFuture(failure);
+                }
+                for (Throwable cause : failed) {
+                    LOG.warn("Chunk of a multicast failed, its registration IDs are reported as "
+                            + ResultError.REQUEST_FAILED, cause);
+                }
+                return Futures.immediateFuture(Multicast.merge(request, merged));
+            }
+        });
+    }
+
+    private static Throwable failureOf(ListenableFuture<GcmResponse> future) {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        } catch (InterruptedException | CancellationException ex) {
+            return ex;
+        }
+    }
+
+    /**
+     * A request waiting in the timer to be sent.
+     */
+    private final class ScheduledSend implements Runnable {
+
+        private final GcmRequest request;
+
+        private final long size;
+
+        private final SettableFuture<GcmResponse> result = SettableFuture.create();
+
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        /** Whether the tokens of the rate limits were taken. */
+        private boolean reserved;
+
+        private Tokens tokens;
+
+        /** Start of the deadline. */
+        private long start;
+
+        /** Sends the request once the limiter gave it a slot, if none was free at the end of the delay. */
+        private final Runnable admitted = new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    // cancelled while it was given the slot
+                    limiter.release(size);
+                } else {
+                    start();
+                }
+            }
+        };
+
+        /**
+         * A request sent after the given delay, taking its tokens at the end of the delay.
+         */
+        ScheduledSend(GcmRequest request) {
+            this.request = request;
+            this.size = InFlightLimiter.estimateSize(request);
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isCancelled()) {
+                        HashedWheelTimer.Timeout t = timeout;
+                        if (t != null) {
+                            t.cancel();
+                        }
+                        limiter.remove(admitted);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /**
+         * A request waiting for the tokens it took.
+         */
+        ScheduledSend(GcmRequest request, Tokens tokens, long start) {
+            this(request);
+            this.reserved = true;
+            this.tokens = tokens;
+            this.start = start;
+        }
+
+        void schedule(long delay, TimeUnit unit) {
+            timeout = timer.newTimeout(this, delay, unit);
+            if (result.isCancelled()) {
+                timeout.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+            if (!reserved) {
+                reserved = true;
+                start = System.nanoTime();
+                try {
+                    tokens = reserveTokens(request);
+                } catch (GcmRateLimitedException ex) {
+                    result.setException(ex);
+                    return;
+                }
+                if (tokens != null && tokens.wait > 0) {
+                    schedule(tokens.wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+            if (overflowPolicy == OverflowPolicy.REJECT) {
+                if (!limiter.tryAcquire(size)) {
+                    result.setException(new GcmRejectedException("Too many requests in flight", limiter.getRequests(),
+                            limiter.getBytes()));
+                    return;
+                }
+            } else if (!limiter.tryAcquire(size, admitted)) {
+                // the timer must not block, the request is sent by the thread releasing a slot
+                return;
+            }
+            start();
+        }
+
+        private void start() {
+            final ListenableFuture<GcmResponse> future;
+            try {
+                future = sendAdmitted(request, size, tokens, start);
+            } catch (RuntimeException ex) {
+                result.setException(ex);
+                return;
+            }
+            Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+                @Override
+                public void onSuccess(GcmResponse response) {
+                    result.set(response);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    result.setException(t);
+                }
+            });
+            Cancellation.propagate(result, future);
+        }
+
+    }
+
+    /**
+     * Tokens of the rate limits taken by a request before admission.
+     */
+    private final class Tokens {
+
+        /** 1 at the index of each rate limit filter whose token was taken and not passed yet. */
+        final AtomicIntegerArray taken = new AtomicIntegerArray(filters.size());
+
+        /** Time to wait for the tokens in nanoseconds. */
+        long wait;
+
+    }
 
     /**
      * Nested class to implement the {@link FilterChain}.
      */
     private final class Chain implements FilterChain {
 
-        private final Iterator<GcmFilter> i = filters.iterator();
+        /** Index of the next filter. */
+        private final int index;
+
+        /** Thread the request runs on because of {@link OverflowPolicy#CALLER_RUNS}, or null. */
+        private final Thread caller;
+
+        /** Tokens taken before admission, or null. */
+        private final Tokens tokens;
+
+        Chain(boolean callerRuns, Tokens tokens) {
+            this(0, callerRuns ? Thread.currentThread() : null, tokens);
+        }
+
+        private Chain(int index, Thread caller, Tokens tokens) {
+            this.index = index;
+            this.caller = caller;
+            this.tokens = tokens;
+        }
 
         @Override
         public ListenableFuture<GcmResponse> next(GcmRequest request) {
-            if (i.hasNext()) {
-                return i.next().filter(request, this);
+            // retries sent later from another thread, such as a timer, do not run in the caller
+            boolean callerRuns = caller == Thread.currentThread();
+            if (index < filters.size()) {
+                // a chain of its own, so a filter can call next again to retry
+                Chain chain = new Chain(index + 1, caller, tokens);
+                if (tokens != null && tokens.taken.compareAndSet(index, 1, 0)) {
+                    // the rate limit was applied before admission, a retry goes through it again
+                    return chain.next(request);
+                }
+                return filters.get(index).filter(request, chain);
+            } else if (request.getRegistrationIds() != null && request.getRegistrationIds().size() > Multicast.MAX_RECIPIENTS) {
+                return executeChunks(request, callerRuns);
             } else {
-                return executeRequestFuture(request);
+                return callerRuns ? executeRequestInCaller(request) : executeLimited(request);
             }
         }
 
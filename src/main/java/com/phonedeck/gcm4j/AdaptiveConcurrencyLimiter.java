@@ -0,0 +1,270 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Limit of the requests sent concurrently to GCM, adjusted at runtime. The limit grows while the round trip time stays
+ * close to its long term average, and shrinks when it rises, as the gradient of the two. It is cut by the backoff ratio
+ * when GCM answers with a server error or a Retry-After, at most once per round trip so a burst of errors does not
+ * collapse it. Requests over the limit wait in a queue and are sent as earlier ones complete.
+ * <p>
+ * A limiter is set with {@link GcmConfig#withConcurrencyLimiter(AdaptiveConcurrencyLimiter)} and applies to every
+ * request the client sends, chunks of large multicasts included. Requests run on the caller thread because of
+ * {@link OverflowPolicy#CALLER_RUNS} are not limited.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    /** Weight of a sample in the short term average round trip time. */
+    private static final double SHORT_SMOOTHING = 2.0 / (10 + 1);
+
+    /** Weight of a sample in the long term average round trip time. */
+    private static final double LONG_SMOOTHING = 2.0 / (600 + 1);
+
+    /** Weight of a new estimate in the limit. */
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    private int minLimit = 1;
+
+    private int maxLimit = 1000;
+
+    private double tolerance = 1.5;
+
+    private double backoffRatio = 0.5;
+
+    // guarded by this
+
+    private double limit = 20;
+
+    private int inFlight;
+
+    private final Queue<Pending> queue = new ArrayDeque<>();
+
+    /** Number of pending calls to {@link #drain()}, to send the queued requests in a loop rather than recursively. */
+    private final AtomicInteger drains = new AtomicInteger();
+
+    private double shortRtt;
+
+    private double longRtt;
+
+    private long lastDecrease = System.nanoTime() - 1;
+
+    /**
+     * Sets the bounds of the limit.
+     * @param initialLimit limit before any measurement, 20 by default
+     * @param minLimit minimum limit, 1 by default
+     * @param maxLimit maximum limit, 1000 by default
+     * @return this limiter
+     */
+    public synchronized AdaptiveConcurrencyLimiter withLimits(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    /**
+     * Sets how much the round trip time may exceed its long term average before the limit shrinks.
+     * @param tolerance ratio of the two, 1.5 by default
+     * @return this limiter
+     */
+    public synchronized AdaptiveConcurrencyLimiter withTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Sets the ratio the limit is multiplied by when GCM signals overload.
+     * @param backoffRatio the ratio, 0.5 by default
+     * @return this limiter
+     */
+    public synchronized AdaptiveConcurrencyLimiter withBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * Current limit.
+     * @return the maximum number of requests sent concurrently
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Number of requests sent and not yet answered.
+     * @return the number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Number of requests waiting for the limit.
+     * @return the number of queued requests
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Sends the request once the limit allows it.
+     * @param request the request
+     * @param send function sending a request
+     * @return the response
+     */
+    ListenableFuture<GcmResponse> execute(GcmRequest request, AsyncFunction<GcmRequest, GcmResponse> send) {
+        Pending pending = new Pending(request, send);
+        synchronized (this) {
+            if (inFlight >= (int) limit) {
+                queue.add(pending);
+                return pending.result;
+            }
+            inFlight++;
+        }
+        pending.run();
+        return pending.result;
+    }
+
+    private void onComplete(long start, boolean dropped) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            inFlight--;
+            if (dropped) {
+                decrease(start, now);
+            } else {
+                sample(now - start);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Sends the queued requests the limit allows. A request completing synchronously calls it again from within, such
+     * calls are only counted for the outer one to loop, so the stack does not grow with the queue.
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            Pending next;
+            while ((next = poll()) != null) {
+                next.run();
+            }
+        } while (drains.decrementAndGet() != 0);
+    }
+
+    /**
+     * Takes the next request of the queue if the limit allows it.
+     */
+    private synchronized Pending poll() {
+        while (inFlight < (int) limit) {
+            Pending pending = queue.poll();
+            if (pending == null) {
+                return null;
+            }
+            if (!pending.result.isCancelled()) {
+                inFlight++;
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    private void sample(long rttNanos) {
+        if (longRtt == 0) {
+            shortRtt = rttNanos;
+            longRtt = rttNanos;
+            return;
+        }
+        shortRtt += (rttNanos - shortRtt) * SHORT_SMOOTHING;
+        longRtt += (rttNanos - longRtt) * LONG_SMOOTHING;
+        if (longRtt > 2 * shortRtt) {
+            // the latency dropped for good, do not keep comparing with the old one
+            longRtt = 0.95 * longRtt;
+        }
+        if (inFlight + 1 < limit / 2) {
+            // not using the limit, the latency says nothing about a higher one
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+        double estimate = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - LIMIT_SMOOTHING) + estimate * LIMIT_SMOOTHING));
+    }
+
+    private void decrease(long start, long now) {
+        if (start - lastDecrease < 0) {
+            // sent before the last decrease, which already accounted for it
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+
+    /**
+     * Whether the outcome of a request signals that GCM is overloaded.
+     */
+    static boolean isDrop(Throwable t) {
+        if (!(t instanceof GcmNetworkException) || t instanceof GcmCircuitOpenException) {
+            return false;
+        }
+        GcmNetworkException gne = (GcmNetworkException) t;
+        return gne.getCode() == 0 || gne.getCode() >= 500 || gne.getRetryAfter() != null;
+    }
+
+    /**
+     * A request waiting for or holding a slot.
+     */
+    private final class Pending implements FutureCallback<GcmResponse> {
+
+        private final GcmRequest request;
+
+        private final AsyncFunction<GcmRequest, GcmResponse> send;
+
+        private final SettableFuture<GcmResponse> result = SettableFuture.create();
+
+        private long start;
+
+        Pending(GcmRequest request, AsyncFunction<GcmRequest, GcmResponse> send) {
+            this.request = request;
+            this.send = send;
+        }
+
+        void run() {
+            start = System.nanoTime();
+            ListenableFuture<GcmResponse> future;
+            try {
+                future = send.apply(request);
+            } catch (Exception ex) {
+                future = Futures.immediateFailedFuture(ex);
+            }
+            Futures.addCallback(future, this);
+            Cancellation.propagate(result, future);
+        }
+
+        @Override
+        public void onSuccess(GcmResponse response) {
+            onComplete(start, response.getRetryAfter() != null);
+            result.set(response);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            onComplete(start, isDrop(t));
+            result.setException(t);
+        }
+
+    }
+
+}
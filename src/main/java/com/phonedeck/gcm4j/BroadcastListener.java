@@ -0,0 +1,22 @@
+package com.phonedeck.gcm4j;
+
+/**
+ * Receives the outcome of the batches of a broadcast. Methods may be called from different threads, but not
+ * concurrently.
+ */
+public interface BroadcastListener {
+
+    /**
+     * Called with the response of a batch.
+     * @param response the response, its request holds the registration IDs of the batch
+     */
+    void onResponse(GcmResponse response);
+
+    /**
+     * Called when a batch failed as a whole.
+     * @param request the request of the batch
+     * @param cause the failure
+     */
+    void onFailure(GcmRequest request, Throwable cause);
+
+}
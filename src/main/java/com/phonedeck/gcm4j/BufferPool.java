@@ -0,0 +1,109 @@
+package com.phonedeck.gcm4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte arrays reused for request bodies and response reads. Buffers come in power of two size classes from
+ * 1 KB up to the maximum buffer size, and at most a fixed number of buffers is kept per class. Larger buffers are
+ * allocated on demand and never pooled, so a single oversized response cannot pin memory.
+ * <p>
+ * Buffers are not cleared when released.
+ */
+public class BufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 10;
+
+    private final int maxBufferSize;
+
+    private final int maxBuffersPerSize;
+
+    private final Queue<byte[]>[] pools;
+
+    private final AtomicInteger[] counts;
+
+    /**
+     * Creates a pool of buffers of up to 64 KB, keeping up to 32 buffers per size.
+     */
+    public BufferPool() {
+        this(64 * 1024, 32);
+    }
+
+    /**
+     * Creates a pool.
+     * @param maxBufferSize size of the largest pooled buffer, rounded up to a power of two
+     * @param maxBuffersPerSize maximum number of buffers kept per size class
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public BufferPool(int maxBufferSize, int maxBuffersPerSize) {
+        int classes = sizeClass(Math.max(maxBufferSize, 1 << MIN_SIZE_SHIFT)) + 1;
+        this.maxBufferSize = 1 << (classes - 1 + MIN_SIZE_SHIFT);
+        this.maxBuffersPerSize = maxBuffersPerSize;
+        this.pools = new Queue[classes];
+        this.counts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            counts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Takes a buffer of at least the given size from the pool, or allocates one.
+     * @param minSize minimum size of the buffer
+     * @return the buffer, to be given back with {@link #release(byte[])}
+     */
+    public byte[] acquire(int minSize) {
+        if (minSize > maxBufferSize) {
+            return new byte[minSize];
+        }
+        int sizeClass = sizeClass(minSize);
+        byte[] buffer = pools[sizeClass].poll();
+        if (buffer == null) {
+            return new byte[1 << (sizeClass + MIN_SIZE_SHIFT)];
+        }
+        counts[sizeClass].decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers not taken from the pool, and buffers exceeding the capacity of the pool,
+     * are left to the garbage collector.
+     * @param buffer the buffer, must not be used afterwards
+     */
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length > maxBufferSize || length < 1 << MIN_SIZE_SHIFT || Integer.bitCount(length) != 1) {
+            return;
+        }
+        int sizeClass = sizeClass(length);
+        if (counts[sizeClass].incrementAndGet() > maxBuffersPerSize) {
+            counts[sizeClass].decrementAndGet();
+            return;
+        }
+        pools[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Number of buffers in the pool.
+     * @return the number of idle buffers
+     */
+    public int getPooledBuffers() {
+        int total = 0;
+        for (AtomicInteger count : counts) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Size class of a buffer of at least the given size: 0 for 1 KB, 1 for 2 KB...
+     */
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Passes the cancellation of the futures returned to callers on to the futures they wait for, down to the transport
+ * that aborts the request.
+ */
+final class Cancellation {
+
+    private Cancellation() {
+    }
+
+    /**
+     * Cancels a future when another one is cancelled.
+     * @param from the future whose cancellation is passed on
+     * @param to the future to cancel
+     */
+    static void propagate(final ListenableFuture<?> from, final Future<?> to) {
+        from.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (from.isCancelled()) {
+                    to.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+}
@@ -0,0 +1,352 @@
+package com.phonedeck.gcm4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Filter failing requests fast while GCM is failing. Server errors (5xx) and I/O errors, and optionally slow calls,
+ * are counted in a sliding time window; when their rate exceeds the threshold the circuit opens and requests fail with
+ * a {@link GcmCircuitOpenException} without being sent. The circuit stays open for the configured duration, or for the
+ * longest Retry-After sent by GCM if it is longer. It then lets a few probe requests through: the circuit closes if
+ * they succeed and opens again if one of them fails.
+ * <p>
+ * Client errors (4xx) and the other exceptions do not count as failures. State transitions are reported to the
+ * {@link Listener listeners} of the filter, on the thread that caused them.
+ */
+public class CircuitBreakerFilter implements GcmFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakerFilter.class);
+
+    private static final int WINDOW_BUCKETS = 10;
+
+    /**
+     * State of the circuit.
+     */
+    public enum State {
+        /** Requests are sent, failures are counted. */
+        CLOSED,
+        /** Requests fail without being sent. */
+        OPEN,
+        /** A limited number of probe requests are sent, the others fail without being sent. */
+        HALF_OPEN
+    }
+
+    /**
+     * Listener of the state transitions of the circuit.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the circuit changes state.
+         * @param from previous state
+         * @param to new state
+         */
+        void onStateChange(State from, State to);
+
+    }
+
+    private double failureRateThreshold = 0.5;
+
+    private double slowCallRateThreshold = 1;
+
+    private long slowCallNanos = Long.MAX_VALUE;
+
+    private int minimumCalls = 20;
+
+    private long bucketMillis = TimeUnit.SECONDS.toMillis(1);
+
+    private long openMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private int probes = 1;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // guarded by this
+
+    private State state = State.CLOSED;
+
+    /** Incremented on every transition, so calls started in an earlier state are not counted in the new one. */
+    private long generation;
+
+    private long openUntil;
+
+    /** End of the longest Retry-After received. */
+    private long retryAfterUntil;
+
+    private int probesInFlight;
+
+    private int probeSuccesses;
+
+    private final long[] bucketIds = new long[WINDOW_BUCKETS];
+
+    private final int[] calls = new int[WINDOW_BUCKETS];
+
+    private final int[] failures = new int[WINDOW_BUCKETS];
+
+    private final int[] slowCalls = new int[WINDOW_BUCKETS];
+
+    /**
+     * Sets the failure rate above which the circuit opens.
+     * @param failureRateThreshold rate between 0 and 1, 0.5 by default
+     * @param minimumCalls number of calls in the window below which the circuit does not open, 20 by default
+     * @return this filter
+     */
+    public CircuitBreakerFilter withFailureRateThreshold(double failureRateThreshold, int minimumCalls) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * Counts slow calls. By default the latency is not looked at.
+     * @param slowCallDuration duration above which a call is slow
+     * @param unit unit of the duration
+     * @param slowCallRateThreshold rate of slow calls between 0 and 1 above which the circuit opens
+     * @return this filter
+     */
+    public CircuitBreakerFilter withSlowCallThreshold(long slowCallDuration, TimeUnit unit, double slowCallRateThreshold) {
+        this.slowCallNanos = unit.toNanos(slowCallDuration);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        return this;
+    }
+
+    /**
+     * Sets the length of the sliding window the calls are counted in, 10 seconds by default.
+     * @param window length of the window
+     * @param unit unit of the window
+     * @return this filter
+     */
+    public CircuitBreakerFilter withWindow(long window, TimeUnit unit) {
+        this.bucketMillis = Math.max(unit.toMillis(window) / WINDOW_BUCKETS, 1);
+        return this;
+    }
+
+    /**
+     * Sets how long the circuit stays open at least, 30 seconds by default.
+     * @param openDuration the duration
+     * @param unit unit of the duration
+     * @return this filter
+     */
+    public CircuitBreakerFilter withOpenDuration(long openDuration, TimeUnit unit) {
+        this.openMillis = unit.toMillis(openDuration);
+        return this;
+    }
+
+    /**
+     * Sets the number of probe requests sent when half-open, all of which must succeed to close the circuit.
+     * @param probes number of probes, 1 by default
+     * @return this filter
+     */
+    public CircuitBreakerFilter withProbes(int probes) {
+        this.probes = probes;
+        return this;
+    }
+
+    public CircuitBreakerFilter withListener(Listener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Current state of the circuit. An open circuit whose duration elapsed is reported as open until the next
+     * request.
+     * @return the state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(GcmRequest request, FilterChain chain) {
+        final long callGeneration;
+        boolean halfOpened = false;
+        GcmCircuitOpenException rejected = null;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (state == State.OPEN && now >= openUntil) {
+                transition(State.HALF_OPEN);
+                halfOpened = true;
+            }
+            if (state == State.OPEN) {
+                rejected = new GcmCircuitOpenException(openUntil - now);
+            } else if (state == State.HALF_OPEN && probesInFlight >= probes) {
+                rejected = new GcmCircuitOpenException(null);
+            } else if (state == State.HALF_OPEN) {
+                probesInFlight++;
+            }
+            callGeneration = generation;
+        }
+        if (halfOpened) {
+            notifyListeners(State.OPEN, State.HALF_OPEN);
+        }
+        if (rejected != null) {
+            return Futures.immediateFailedFuture(rejected);
+        }
+
+        final long start = System.nanoTime();
+        ListenableFuture<GcmResponse> future;
+        try {
+            future = chain.next(request);
+        } catch (RuntimeException ex) {
+            future = Futures.immediateFailedFuture(ex);
+        }
+        Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+            @Override
+            public void onSuccess(GcmResponse response) {
+                record(callGeneration, false, System.nanoTime() - start, response.getRetryAfter());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (isFailure(t)) {
+                    record(callGeneration, true, System.nanoTime() - start, ((GcmNetworkException) t).getRetryAfter());
+                } else if (t instanceof GcmNetworkException && !(t instanceof GcmCircuitOpenException)) {
+                    // GCM answered, the request was wrong
+                    record(callGeneration, false, System.nanoTime() - start, null);
+                } else {
+                    // not sent to GCM
+                    release(callGeneration);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Whether the failure of a call counts towards opening the circuit: server and I/O errors do.
+     * @param t the failure
+     * @return true if it is a failure of GCM
+     */
+    protected boolean isFailure(Throwable t) {
+        if (!(t instanceof GcmNetworkException) || t instanceof GcmCircuitOpenException) {
+            return false;
+        }
+        int code = ((GcmNetworkException) t).getCode();
+        return code == 0 || code >= 500;
+    }
+
+    private void record(long callGeneration, boolean failure, long latencyNanos, Long retryAfter) {
+        boolean slow = latencyNanos >= slowCallNanos;
+        long now = System.currentTimeMillis();
+        State from;
+        State to;
+        synchronized (this) {
+            if (failure && retryAfter != null) {
+                retryAfterUntil = Math.max(retryAfterUntil, now + retryAfter);
+            }
+            if (callGeneration != generation) {
+                // started before the last transition
+                return;
+            }
+            from = state;
+            if (state == State.HALF_OPEN) {
+                probesInFlight--;
+                if (failure || slow) {
+                    open(now);
+                } else if (++probeSuccesses >= probes) {
+                    transition(State.CLOSED);
+                }
+            } else if (state == State.CLOSED) {
+                int bucket = bucket(now);
+                calls[bucket]++;
+                if (failure) {
+                    failures[bucket]++;
+                }
+                if (slow) {
+                    slowCalls[bucket]++;
+                }
+                checkRates(now);
+            }
+            to = state;
+        }
+        if (from != to) {
+            notifyListeners(from, to);
+        }
+    }
+
+    private synchronized void release(long callGeneration) {
+        if (callGeneration == generation && state == State.HALF_OPEN) {
+            probesInFlight--;
+        }
+    }
+
+    /**
+     * Opens the circuit if the rates of the window exceed the thresholds.
+     */
+    private void checkRates(long now) {
+        long current = now / bucketMillis;
+        int totalCalls = 0;
+        int totalFailures = 0;
+        int totalSlowCalls = 0;
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            if (bucketIds[i] > current - WINDOW_BUCKETS) {
+                totalCalls += calls[i];
+                totalFailures += failures[i];
+                totalSlowCalls += slowCalls[i];
+            }
+        }
+        if (totalCalls >= minimumCalls && (totalFailures >= failureRateThreshold * totalCalls
+                || totalSlowCalls >= slowCallRateThreshold * totalCalls)) {
+            LOG.warn("Opening circuit: {} failures and {} slow calls out of {} calls", totalFailures, totalSlowCalls, totalCalls);
+            open(now);
+        }
+    }
+
+    /**
+     * Bucket of the window for the given time, cleared if it held an earlier period.
+     */
+    private int bucket(long now) {
+        long id = now / bucketMillis;
+        int bucket = (int) (id % WINDOW_BUCKETS);
+        if (bucketIds[bucket] != id) {
+            bucketIds[bucket] = id;
+            calls[bucket] = 0;
+            failures[bucket] = 0;
+            slowCalls[bucket] = 0;
+        }
+        return bucket;
+    }
+
+    private void open(long now) {
+        openUntil = Math.max(now + openMillis, retryAfterUntil);
+        transition(State.OPEN);
+    }
+
+    /**
+     * Changes the state. Called with the lock held, the listeners are notified once it is released.
+     */
+    private void transition(State to) {
+        state = to;
+        generation++;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (to == State.CLOSED) {
+            for (int i = 0; i < WINDOW_BUCKETS; i++) {
+                bucketIds[i] = 0;
+                calls[i] = 0;
+                failures[i] = 0;
+                slowCalls[i] = 0;
+            }
+        }
+    }
+
+    private void notifyListeners(State from, State to) {
+        LOG.info("Circuit {} -> {}", from, to);
+        for (Listener listener : listeners) {
+            try {
+                listener.onStateChange(from, to);
+            } catch (RuntimeException ex) {
+                LOG.warn("Circuit breaker listener failed", ex);
+            }
+        }
+    }
+
+}
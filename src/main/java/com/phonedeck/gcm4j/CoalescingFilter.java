@@ -0,0 +1,234 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Filter merging requests with a single registration ID and identical payloads into multicast requests. A request is
+ * held for at most the configured window, or until enough requests with the same payload arrived to fill a
+ * multicast. Every caller gets a response with its own result.
+ * <p>
+ * Requests with several registration IDs, a notification key or a result listener are passed on unchanged. Attributes of the requests
+ * are not merged, the multicast request carries the attributes of the first request of the batch.
+ */
+public class CoalescingFilter implements GcmFilter {
+
+    private final long windowMillis;
+
+    private int maxBatchSize = Multicast.MAX_RECIPIENTS;
+
+    private ScheduledExecutorService scheduler;
+
+    private final Map<Object, Batch> batches = new HashMap<>();
+
+    /**
+     * Creates the filter.
+     * @param window maximum time a request is held
+     * @param unit unit of the window
+     */
+    public CoalescingFilter(long window, TimeUnit unit) {
+        this.windowMillis = unit.toMillis(window);
+    }
+
+    /**
+     * Sets the maximum number of registration IDs of a merged request.
+     * @param maxBatchSize the batch size, at most 1000
+     * @return this filter
+     */
+    public CoalescingFilter withMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1 || maxBatchSize > Multicast.MAX_RECIPIENTS) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + Multicast.MAX_RECIPIENTS);
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Sets the scheduler that sends the batches when their window expires. By default a daemon thread of the filter
+     * is used.
+     * @param scheduler the scheduler
+     * @return this filter
+     */
+    public CoalescingFilter withScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(GcmRequest request, FilterChain chain) {
+        if (request.getRegistrationIds() == null || request.getRegistrationIds().size() != 1
+                || request.getNotificationKey() != null || request.getResultListener() != null) {
+            return chain.next(request);
+        }
+        Object key = Multicast.payloadKey(request);
+        final SettableFuture<GcmResponse> future = SettableFuture.create();
+        Batch batch;
+        boolean full = false;
+        synchronized (this) {
+            batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(key, chain);
+                batches.put(key, batch);
+                getScheduler().schedule(batch, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.requests.add(request);
+            batch.futures.add(future);
+            if (batch.requests.size() >= maxBatchSize) {
+                batches.remove(key);
+                full = true;
+            }
+        }
+        if (full) {
+            batch.send();
+            return future;
+        }
+        final Batch waiting = batch;
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    // cancelled or timed out while waiting, not sent
+                    waiting.remove(future);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "gcm4j-coalescing");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Requests with the same payload waiting to be sent.
+     */
+    private final class Batch implements Runnable {
+
+        private final Object key;
+
+        private final FilterChain chain;
+
+        private final List<GcmRequest> requests = new ArrayList<>();
+
+        private final List<SettableFuture<GcmResponse>> futures = new ArrayList<>();
+
+        Batch(Object key, FilterChain chain) {
+            this.key = key;
+            this.chain = chain;
+        }
+
+        /**
+         * Window expired.
+         */
+        @Override
+        public void run() {
+            synchronized (CoalescingFilter.this) {
+                if (batches.get(key) != this) {
+                    // already sent because it was full
+                    return;
+                }
+                batches.remove(key);
+            }
+            send();
+        }
+
+        /**
+         * Removes a cancelled request, unless the batch was sent.
+         */
+        void remove(SettableFuture<GcmResponse> future) {
+            synchronized (CoalescingFilter.this) {
+                int index = futures.indexOf(future);
+                if (batches.get(key) != this || index < 0) {
+                    return;
+                }
+                requests.remove(index);
+                futures.remove(index);
+                if (requests.isEmpty()) {
+                    // nothing left to send when the window expires
+                    batches.remove(key);
+                }
+            }
+        }
+
+        private void send() {
+            // skips the requests cancelled while the batch was being sent
+            final List<GcmRequest> requests = new ArrayList<>(this.requests.size());
+            final List<SettableFuture<GcmResponse>> futures = new ArrayList<>(this.futures.size());
+            for (int i = 0; i < this.futures.size(); i++) {
+                if (!this.futures.get(i).isCancelled()) {
+                    requests.add(this.requests.get(i));
+                    futures.add(this.futures.get(i));
+                }
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+            GcmRequest merged;
+            if (requests.size() == 1) {
+                // nothing to merge with
+                merged = requests.get(0);
+            } else {
+                List<String> ids = new ArrayList<>(requests.size());
+                for (GcmRequest request : requests) {
+                    ids.add(request.getRegistrationIds().get(0));
+                }
+                merged = Multicast.copy(requests.get(0), ids);
+            }
+            ListenableFuture<GcmResponse> response;
+            try {
+                response = chain.next(merged);
+            } catch (RuntimeException ex) {
+                response = Futures.immediateFailedFuture(ex);
+            }
+            Futures.addCallback(response, new FutureCallback<GcmResponse>() {
+                @Override
+                public void onSuccess(GcmResponse result) {
+                    if (requests.size() == 1) {
+                        futures.get(0).set(result);
+                        return;
+                    }
+                    int count = result.getResults().size();
+                    for (int i = 0; i < futures.size(); i++) {
+                        if (i < count) {
+                            futures.get(i).set(Multicast.slice(result, i, i + 1, requests.get(i)));
+                        } else {
+                            futures.get(i).setException(new GcmException("Protocol error: No result for registration ID "
+                                    + requests.get(i).getRegistrationIds().get(0)));
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    for (SettableFuture<GcmResponse> future : futures) {
+                        future.setException(t);
+                    }
+                }
+            });
+        }
+
+    }
+
+}
@@ -0,0 +1,273 @@
+package com.phonedeck.gcm4j;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Compact form of a {@link GcmResponse} for keeping the results of large multicasts around, for example until
+ * failed registration IDs are retried or cleaned up. Instead of a {@link Result} object per registration ID, the
+ * results are stored in parallel arrays: an error code per result, the message IDs in one shared character buffer,
+ * and the few canonical registration IDs in a sparse table. Requested registration IDs are those of the request when
+ * the response was compacted, the strings being shared with it.
+ * <p>
+ * Results are read through a {@link Cursor}, which is a reusable view on one result at a time.
+ */
+public final class CompactGcmResponse {
+
+    private static final ResultError[] ERRORS = ResultError.values();
+
+    private final GcmRequest request;
+
+    private final long multicastId;
+
+    private final int success;
+
+    private final int failure;
+
+    private final int canonicalIds;
+
+    private final Long retryAfter;
+
+    /** Ordinal of the error plus one per result, 0 if the result is not an error. */
+    private final byte[] errors;
+
+    /** Message IDs of all results, one after the other. */
+    private final char[] messageIds;
+
+    /** Start of the message ID of every result in {@link #messageIds}, plus the end of the last one. */
+    private final int[] messageIdOffsets;
+
+    /** Indexes of the results with a canonical registration ID, in ascending order. */
+    private final int[] canonicalIndexes;
+
+    private final String[] canonicalRegistrationIds;
+
+    /** Registration IDs of the request, copied as the request may be changed or reused afterwards. */
+    private final String[] requestedRegistrationIds;
+
+    private CompactGcmResponse(GcmResponse response) {
+        List<Result> results = response.getResults();
+        int size = results.size();
+        this.request = response.getRequest();
+        this.multicastId = response.getMulticastId();
+        this.success = response.getSuccess();
+        this.failure = response.getFailure();
+        this.canonicalIds = response.getCanonicalIds();
+        this.retryAfter = response.getRetryAfter();
+        this.errors = new byte[size];
+        this.messageIdOffsets = new int[size + 1];
+        List<String> ids = request != null ? request.getRegistrationIds() : null;
+        this.requestedRegistrationIds = ids != null ? ids.toArray(new String[ids.size()]) : new String[0];
+
+        int chars = 0;
+        int canonical = 0;
+        for (Result result : results) {
+            if (result.getMessageId() != null) {
+                chars += result.getMessageId().length();
+            }
+            if (result.getCanonicalRegistrationId() != null) {
+                canonical++;
+            }
+        }
+        this.messageIds = new char[chars];
+        this.canonicalIndexes = new int[canonical];
+        this.canonicalRegistrationIds = new String[canonical];
+
+        int offset = 0;
+        canonical = 0;
+        for (int i = 0; i < size; i++) {
+            Result result = results.get(i);
+            messageIdOffsets[i] = offset;
+            String messageId = result.getMessageId();
+            if (messageId != null) {
+                messageId.getChars(0, messageId.length(), messageIds, offset);
+                offset += messageId.length();
+            }
+            errors[i] = result.getError() != null ? (byte) (result.getError().ordinal() + 1) : 0;
+            if (result.getCanonicalRegistrationId() != null) {
+                canonicalIndexes[canonical] = i;
+                canonicalRegistrationIds[canonical] = result.getCanonicalRegistrationId();
+                canonical++;
+            }
+        }
+        messageIdOffsets[size] = offset;
+    }
+
+    /**
+     * Compacts a response. The response can be discarded afterwards.
+     * @param response the response
+     * @return the compact response
+     */
+    public static CompactGcmResponse of(GcmResponse response) {
+        return new CompactGcmResponse(response);
+    }
+
+    /**
+     * Compacts the response of a future as soon as it is available.
+     * @param response future of the response
+     * @return future of the compact response
+     */
+    public static ListenableFuture<CompactGcmResponse> of(ListenableFuture<GcmResponse> response) {
+        return Futures.transform(response, new Function<GcmResponse, CompactGcmResponse>() {
+            @Override
+            public CompactGcmResponse apply(GcmResponse input) {
+                return of(input);
+            }
+        });
+    }
+
+    public GcmRequest getRequest() {
+        return request;
+    }
+
+    public long getMulticastId() {
+        return multicastId;
+    }
+
+    public int getSuccess() {
+        return success;
+    }
+
+    public int getFailure() {
+        return failure;
+    }
+
+    public int getCanonicalIds() {
+        return canonicalIds;
+    }
+
+    public Long getRetryAfter() {
+        return retryAfter;
+    }
+
+    public boolean containsError() {
+        return failure > 0;
+    }
+
+    /**
+     * Number of results.
+     * @return the number of results
+     */
+    public int size() {
+        return errors.length;
+    }
+
+    /**
+     * Creates a cursor positioned before the first result.
+     * @return the cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Result at the given index as a {@link Result} object.
+     * @param index index of the result
+     * @return a new result object
+     */
+    public Result get(int index) {
+        Cursor cursor = cursor();
+        cursor.moveTo(index);
+        return cursor.toResult();
+    }
+
+    /**
+     * View on the result at the current position of the cursor. The accessors mirror the ones of {@link Result}.
+     */
+    public final class Cursor {
+
+        private int index = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * Moves to the next result.
+         * @return false if there is no more result
+         */
+        public boolean next() {
+            if (index + 1 >= errors.length) {
+                index = errors.length;
+                return false;
+            }
+            index++;
+            return true;
+        }
+
+        /**
+         * Moves to a result.
+         * @param index index of the result
+         */
+        public void moveTo(int index) {
+            if (index < 0 || index >= errors.length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + errors.length);
+            }
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getMessageId() {
+            int start = messageIdOffsets[index];
+            int end = messageIdOffsets[index + 1];
+            return start == end ? null : new String(messageIds, start, end - start);
+        }
+
+        /**
+         * Length of the message ID, which can be read with {@link #getMessageIdChars(char[], int)} without creating a
+         * string.
+         * @return the length of the message ID, 0 if there is none
+         */
+        public int getMessageIdLength() {
+            return messageIdOffsets[index + 1] - messageIdOffsets[index];
+        }
+
+        /**
+         * Copies the characters of the message ID.
+         * @param dst destination array
+         * @param dstBegin start offset in the destination array
+         */
+        public void getMessageIdChars(char[] dst, int dstBegin) {
+            System.arraycopy(messageIds, messageIdOffsets[index], dst, dstBegin, getMessageIdLength());
+        }
+
+        public ResultError getError() {
+            byte error = errors[index];
+            return error == 0 ? null : ERRORS[error - 1];
+        }
+
+        public boolean isError() {
+            return errors[index] != 0;
+        }
+
+        public String getCanonicalRegistrationId() {
+            int i = Arrays.binarySearch(canonicalIndexes, index);
+            return i >= 0 ? canonicalRegistrationIds[i] : null;
+        }
+
+        public String getRequestedRegistrationId() {
+            return index < requestedRegistrationIds.length ? requestedRegistrationIds[index] : null;
+        }
+
+        /**
+         * Copies the current result into a {@link Result} object.
+         * @return a new result object
+         */
+        public Result toResult() {
+            Result result = new Result();
+            result.setMessageId(getMessageId());
+            result.setError(getError());
+            result.setCanonicalRegistrationId(getCanonicalRegistrationId());
+            result.setRequestedRegistrationId(getRequestedRegistrationId());
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,252 @@
+package com.phonedeck.gcm4j;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Filter removing duplicate recipients. A registration ID appearing several times in a request is sent the message
+ * once, and each of its positions gets a copy of its result. With a window, a message is also not sent again to a
+ * registration ID it was sent to within the window: that ID gets a {@link ResultError#DUPLICATE_MESSAGE} result. Two
+ * messages are the same if their requests only differ in their registration IDs and attributes. Only messages GCM
+ * accepted are kept, a message that failed can be sent again at once.
+ * <p>
+ * The messages of the window are kept in a table of fixed size, like the dead IDs of a {@link TokenRegistry}: 8 byte
+ * entries holding a fingerprint of the registration ID and the encoded payload next to the time it was sent, two to
+ * four per message, so 16 to 32 bytes, set associative so a lookup reads a single cache line. Once a group of the
+ * table is full, its oldest message is replaced: a window holding more messages than it was sized for lets some
+ * repeats through, it does not suppress new messages.
+ */
+public class DedupeFilter implements GcmFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DedupeFilter.class);
+
+    private volatile Window window;
+
+    /**
+     * Suppresses the repeats of a message to a registration ID within a window, besides the duplicates of a request.
+     * @param duration duration of the window
+     * @param unit unit of the duration
+     * @param maxMessages number of messages, one per registration ID, sent within a window; the table takes 16 to 32
+     *        bytes per message
+     * @return this filter
+     */
+    public DedupeFilter withWindow(long duration, TimeUnit unit, int maxMessages) {
+        this.window = new Window(unit.toNanos(duration), maxMessages);
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(final GcmRequest request, FilterChain chain) {
+        List<String> ids = request.getRegistrationIds();
+        if (ids == null || ids.isEmpty()) {
+            return chain.next(request);
+        }
+        Window window = this.window;
+        long payloadHash = window != null ? payloadHash(request) : 0;
+        long now = System.nanoTime();
+
+        // the message is sent once to an ID, unless it was sent to it within the window
+        final Multicast.Remap remap = new Multicast.Remap(request);
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            if (window != null && window.contains(hash(id, payloadHash), now)) {
+                remap.answer(i, duplicate(id));
+            } else {
+                remap.send(i, id);
+            }
+        }
+
+        if (!remap.isChanged()) {
+            return window == null ? chain.next(request) : send(request, chain, window, remap, payloadHash);
+        }
+        LOG.debug("Sending to {} of {} registration IDs, the others being duplicates", remap.getSentIds().size(),
+                ids.size());
+        if (request.getResultListener() != null) {
+            remap.reportAnswered();
+        }
+        if (remap.getSentIds().isEmpty()) {
+            return Futures.immediateFuture(remap.merge(null));
+        }
+        return Futures.transform(send(request, chain, window, remap, payloadHash),
+                new Function<GcmResponse, GcmResponse>() {
+                    @Override
+                    public GcmResponse apply(GcmResponse response) {
+                        return remap.merge(response);
+                    }
+                });
+    }
+
+    /**
+     * Sends the message to the IDs of the request that were not suppressed, keeping those GCM accepted in the window.
+     * The listener of the request gets the result of an ID once per position of the ID.
+     */
+    private ListenableFuture<GcmResponse> send(GcmRequest request, FilterChain chain, final Window window,
+            final Multicast.Remap remap, final long payloadHash) {
+        final List<String> sentIds = remap.getSentIds();
+        GcmRequest sent = request;
+        if (request.getResultListener() != null || remap.isChanged()) {
+            sent = Multicast.copy(request, sentIds);
+        }
+        if (request.getResultListener() != null) {
+            sent.setResultListener(new ResultListener() {
+                @Override
+                public void onResult(Result result) {
+                    record(window, result.getRequestedRegistrationId(), result, payloadHash, System.nanoTime());
+                    remap.report(result);
+                }
+            });
+            return chain.next(sent);
+        }
+        ListenableFuture<GcmResponse> future = chain.next(sent);
+        if (window != null) {
+            Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+                @Override
+                public void onSuccess(GcmResponse response) {
+                    if (response.getResults().size() == sentIds.size()) {
+                        long now = System.nanoTime();
+                        for (int i = 0; i < sentIds.size(); i++) {
+                            record(window, sentIds.get(i), response.getResults().get(i), payloadHash, now);
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                }
+            });
+        }
+        return future;
+    }
+
+    private static void record(Window window, String id, Result result, long payloadHash, long now) {
+        if (window != null && id != null && result.getMessageId() != null) {
+            window.add(hash(id, payloadHash), now);
+        }
+    }
+
+    private static Result duplicate(String id) {
+        Result result = new Result();
+        result.setError(ResultError.DUPLICATE_MESSAGE);
+        result.setRequestedRegistrationId(id);
+        return result;
+    }
+
+    /**
+     * Hash of the encoded payload of a request, from its payload template, which is attached for the encoding of the
+     * request.
+     */
+    private static long payloadHash(GcmRequest request) {
+        PayloadTemplate.attach(request);
+        PayloadTemplate template = request.getPayloadTemplate();
+        try {
+            if (template == null || !template.matches(request)) {
+                template = PayloadTemplate.compile(request);
+            }
+        } catch (IOException ex) {
+            // fails when sent, so it is not kept in the window
+            return 0;
+        }
+        return template.hash(request.getKey());
+    }
+
+    /**
+     * Hash of a message to a registration ID.
+     */
+    static long hash(String id, long payloadHash) {
+        long hash = TokenRegistry.fingerprint(null, id) ^ payloadHash * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Messages sent within a window. An entry holds the high bits of the hash of a message, and in its low bits the
+     * tick it was last sent at, a tick being 1/64 of the window. The group of a message is given by the low bits of
+     * its hash, so the fingerprints compared within a group are independent of it.
+     */
+    static final class Window {
+
+        private static final int WAYS = 8;
+
+        private static final long TICK_MASK = (1L << 24) - 1;
+
+        /** Ticks per window. */
+        private static final long TICKS = 64;
+
+        private final long tickNanos;
+
+        private final AtomicLongArray entries;
+
+        Window(long durationNanos, int maxMessages) {
+            if (durationNanos <= 0 || maxMessages < 1 || maxMessages > 1 << 28) {
+                throw new IllegalArgumentException("Invalid window: " + durationNanos + " ns, " + maxMessages + " messages");
+            }
+            int size = WAYS;
+            while (size < maxMessages * 2) {
+                size <<= 1;
+            }
+            this.tickNanos = Math.max(durationNanos / TICKS, 1);
+            this.entries = new AtomicLongArray(size);
+        }
+
+        boolean contains(long hash, long now) {
+            long tick = tick(now);
+            long fingerprint = hash & ~TICK_MASK;
+            int group = group(hash);
+            for (int i = group; i < group + WAYS; i++) {
+                long entry = entries.get(i);
+                if (entry != 0 && (entry & ~TICK_MASK) == fingerprint && age(entry, tick) <= TICKS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long hash, long now) {
+            long tick = tick(now);
+            long fingerprint = hash & ~TICK_MASK;
+            int group = group(hash);
+            // the entry of the message, an empty one, or the oldest one
+            int victim = group;
+            long oldest = -1;
+            for (int i = group; i < group + WAYS; i++) {
+                long entry = entries.get(i);
+                if (entry == 0 || (entry & ~TICK_MASK) == fingerprint) {
+                    victim = i;
+                    break;
+                }
+                long age = age(entry, tick);
+                if (age > oldest) {
+                    oldest = age;
+                    victim = i;
+                }
+            }
+            entries.set(victim, fingerprint | tick);
+        }
+
+        private long tick(long now) {
+            return (now / tickNanos) & TICK_MASK;
+        }
+
+        private static long age(long entry, long tick) {
+            return (tick - entry) & TICK_MASK;
+        }
+
+        private int group(long hash) {
+            return (int) hash & (entries.length() - 1) & -WAYS;
+        }
+
+    }
+
+}
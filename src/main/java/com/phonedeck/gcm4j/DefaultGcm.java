@@ -2,6 +2,7 @@ package com.phonedeck.gcm4j;
 
 import java.util.concurrent.Executors;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -13,7 +14,28 @@ public class DefaultGcm extends AbstractDefaultGcm {
 
     public DefaultGcm(GcmConfig gcmConfig) {
         super(gcmConfig);
-        this.executor = gcmConfig.getExecutor() != null ? gcmConfig.getExecutor() : MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+        this.executor = gcmConfig.getExecutor() != null ? gcmConfig.getExecutor() : createExecutor(gcmConfig);
+    }
+
+    private static ListeningExecutorService createExecutor(GcmConfig gcmConfig) {
+        if (gcmConfig.isVirtualThreads()) {
+            if (!VirtualThreads.isSupported()) {
+                throw new GcmException("Virtual threads require Java 21 or later");
+            }
+            return MoreExecutors.listeningDecorator(VirtualThreads.newExecutor());
+        }
+        return MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+    }
+
+    @Override
+    protected ListenableFuture<GcmResponse> executeRequestInCaller(GcmRequest request) {
+        try {
+            return Futures.immediateFuture(executeRequest(request));
+        } catch (GcmException ex) {
+            return Futures.immediateFailedFuture(ex);
+        } catch (Exception ex) {
+            return Futures.immediateFailedFuture(new GcmException("An error occurred when submitting the messsage", ex));
+        }
     }
 
     @Override
@@ -22,8 +44,12 @@ public class DefaultGcm extends AbstractDefaultGcm {
         executor.submit(new Runnable() {
             @Override
             public void run() {
+                if (result.isCancelled()) {
+                    return;
+                }
                 try {
-                    result.set(executeRequest(request));
+                    // cancelling the result aborts the connection and frees the thread
+                    result.set(executeRequest(request, result));
                 } catch (GcmException ex) {
                     result.setException(ex);
                 }
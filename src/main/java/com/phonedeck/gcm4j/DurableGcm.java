@@ -0,0 +1,589 @@
+package com.phonedeck.gcm4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * {@link Gcm} keeping the requests it accepts on disk until they are answered, so they survive a crash or a restart.
+ * Requests are appended to a write-ahead log and sent through the wrapped client once written to disk; a request is
+ * done when its response or failure is reported. Opening the queue again sends the requests that were not done.
+ * <p>
+ * The log is made of memory mapped segment files, each record checked by a CRC. A single thread writes the log to disk
+ * and sends the requests written: the requests accepted while it writes are written together the next time, so a
+ * request waits for a single disk write however many are sent concurrently. A segment is deleted once the requests
+ * it holds and those of the older segments are done.
+ * <p>
+ * Requests are sent at least once: a request whose response arrived just before a crash may be sent again. The key,
+ * the deadline and the JSON of a request are kept; its attributes and {@link ResultListener} are lost when it is sent
+ * again after a restart, the results then being logged only. Retrying failed requests is left to the filters of the
+ * wrapped client. A directory holds a single queue, locked while it is open.
+ */
+public class DurableGcm implements Gcm, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DurableGcm.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final long MAGIC = 0x67636d3451554555L;
+
+    /** Records start after the magic number of a segment. */
+    private static final int SEGMENT_START = 8;
+
+    /** Length, CRC, sequence and type of a record. Records are aligned on 8 bytes. */
+    private static final int RECORD_HEADER = 17;
+
+    private static final byte SEND = 1;
+
+    private static final byte DONE = 2;
+
+    /** Length marking the end of a segment, the next record being in the next segment. */
+    private static final int NEXT_SEGMENT = -1;
+
+    /** Time the records of the done requests wait to be written to disk when no request is sent. */
+    private static final long DONE_DELAY = 1000;
+
+    private final Gcm gcm;
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final FileChannel lockChannel;
+
+    private final AtomicLong sequence;
+
+    private final int recovered;
+
+    private final Thread committer;
+
+    /** Segments holding requests that are not done, and the current one. */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    /** Segments filled since the last write to disk. */
+    private final List<Segment> filled = new ArrayList<>();
+
+    private Segment current;
+
+    /** Requests appended since the last write to disk. */
+    private List<Entry> batch = new ArrayList<>();
+
+    /** Whether done records were appended since the last write to disk. */
+    private boolean dirty;
+
+    private int pending;
+
+    private boolean closed;
+
+    /**
+     * Opens the queue kept in a directory, creating it if needed, with segments of 64 MB.
+     * @param gcm the client sending the requests
+     * @param directory the directory
+     * @throws IOException if the queue cannot be read or is open in another process
+     */
+    public DurableGcm(Gcm gcm, File directory) throws IOException {
+        this(gcm, directory, 64 << 20);
+    }
+
+    /**
+     * Opens the queue kept in a directory, creating it if needed. The requests that were not done are sent again.
+     * @param gcm the client sending the requests
+     * @param directory the directory
+     * @param segmentSize size of the segment files, which bounds the size of a request
+     * @throws IOException if the queue cannot be read or is open in another process
+     */
+    public DurableGcm(Gcm gcm, File directory, int segmentSize) throws IOException {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segments must be at least 4096 bytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.gcm = gcm;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lockChannel = new RandomAccessFile(new File(directory, "queue.lock"), "rw").getChannel();
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Queue " + directory + " is already open");
+            }
+            this.sequence = new AtomicLong(recover());
+        } catch (IOException | RuntimeException ex) {
+            lockChannel.close();
+            throw ex;
+        }
+        this.recovered = batch.size();
+        if (recovered > 0) {
+            LOG.info("Sending again {} requests of queue {}", recovered, directory);
+        }
+        this.committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, "gcm4j-durable-queue");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends the request to the queue, it is sent once written to disk. Cancelling the returned future before then
+     * drops the request, afterwards it cancels the request sent.
+     */
+    @Override
+    public ListenableFuture<GcmResponse> send(GcmRequest request) {
+        Entry entry = new Entry(sequence.getAndIncrement(), request);
+        byte[] record;
+        try {
+            record = sendRecord(entry.sequence, request);
+        } catch (IOException ex) {
+            return Futures.immediateFailedFuture(new GcmException("Cannot write the request to the queue", ex));
+        }
+        if (record.length > segmentSize - SEGMENT_START) {
+            return Futures.immediateFailedFuture(new GcmException("Request of " + record.length
+                    + " bytes too large for the queue"));
+        }
+        synchronized (this) {
+            if (closed) {
+                return Futures.immediateFailedFuture(new GcmException("Queue " + directory + " is closed"));
+            }
+            try {
+                append(record);
+            } catch (IOException ex) {
+                return Futures.immediateFailedFuture(new GcmException("Cannot write the request to the queue", ex));
+            }
+            entry.segment = current;
+            current.pending++;
+            pending++;
+            batch.add(entry);
+            if (batch.size() == 1) {
+                notifyAll();
+            }
+        }
+        return entry.result;
+    }
+
+    /**
+     * Number of requests sent again when the queue was opened.
+     * @return the number of requests
+     */
+    public int getRecoveredRequests() {
+        return recovered;
+    }
+
+    /**
+     * Number of requests accepted and not done yet.
+     * @return the number of requests
+     */
+    public synchronized int getPendingRequests() {
+        return pending;
+    }
+
+    /**
+     * Stops accepting requests, and sends those accepted. The requests whose response has not arrived yet are sent
+     * again when the queue is opened again. The wrapped client is not closed.
+     * @throws IOException if the files cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        synchronized (this) {
+            // done records appended after the last write
+            current.force();
+            current = null;
+            segments.clear();
+        }
+        lockChannel.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the appended records to disk and sends the requests written, until the queue is closed.
+     */
+    private void commit() {
+        while (true) {
+            List<Entry> entries;
+            List<Segment> written;
+            boolean stop;
+            synchronized (this) {
+                try {
+                    while (batch.isEmpty() && !closed) {
+                        if (dirty) {
+                            wait(DONE_DELAY);
+                            break;
+                        }
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    closed = true;
+                }
+                entries = batch;
+                batch = new ArrayList<>();
+                written = new ArrayList<>(filled);
+                written.add(current);
+                filled.clear();
+                dirty = false;
+                stop = closed;
+            }
+            for (Segment segment : written) {
+                segment.force();
+            }
+            for (Entry entry : entries) {
+                dispatch(entry);
+            }
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    private void dispatch(final Entry entry) {
+        if (entry.result.isCancelled()) {
+            done(entry);
+            return;
+        }
+        ListenableFuture<GcmResponse> future;
+        try {
+            future = gcm.send(entry.request);
+        } catch (RuntimeException ex) {
+            future = Futures.immediateFailedFuture(ex);
+        }
+        Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+            @Override
+            public void onSuccess(GcmResponse response) {
+                done(entry);
+                entry.result.set(response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                done(entry);
+                entry.result.setException(t);
+            }
+        });
+        Cancellation.propagate(entry.result, future);
+    }
+
+    /**
+     * Marks a request as done, deleting the segments that only hold done requests.
+     */
+    private void done(Entry entry) {
+        byte[] record = record(DONE, entry.sequence, 0);
+        checksum(record);
+        synchronized (this) {
+            if (current == null) {
+                // closed, the request will be sent again
+                return;
+            }
+            try {
+                append(record);
+            } catch (IOException ex) {
+                LOG.warn("Cannot mark request as done in queue " + directory, ex);
+                return;
+            }
+            dirty = true;
+            entry.segment.pending--;
+            pending--;
+            while (segments.size() > 1 && segments.peekFirst().pending == 0) {
+                Segment segment = segments.pollFirst();
+                filled.remove(segment);
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, or to a new one if it is full. Called holding the lock of the queue.
+     */
+    private void append(byte[] record) throws IOException {
+        if (current.position + record.length > segmentSize) {
+            Segment next = Segment.create(directory, current.number + 1, segmentSize);
+            if (current.position + 4 <= segmentSize) {
+                current.buffer.putInt(current.position, NEXT_SEGMENT);
+            }
+            filled.add(current);
+            segments.add(next);
+            current = next;
+        }
+        current.buffer.position(current.position);
+        current.buffer.put(record);
+        current.position += (record.length + 7) & ~7;
+    }
+
+    /**
+     * Reads the segments of the directory, keeping the requests that are not done to be sent again, and starts a new
+     * segment.
+     * @return the next sequence number
+     */
+    private long recover() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (name.startsWith("queue.") && name.endsWith(".log")) {
+                try {
+                    numbers.add(Long.parseLong(name.substring(6, name.length() - 4)));
+                } catch (NumberFormatException ex) {
+                    // not ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        long next = 0;
+        long last = 0;
+        for (long number : numbers) {
+            Segment segment = Segment.open(directory, number);
+            last = number;
+            if (segment == null) {
+                continue;
+            }
+            segments.add(segment);
+            int position = SEGMENT_START;
+            while (position + RECORD_HEADER <= segment.buffer.capacity()) {
+                byte[] record = segment.read(position);
+                if (record == null) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                long seq = buffer.getLong(8);
+                if (buffer.get(16) == SEND) {
+                    Entry entry = new Entry(seq, decode(buffer));
+                    entry.segment = segment;
+                    segment.pending++;
+                    entries.put(seq, entry);
+                } else {
+                    Entry entry = entries.remove(seq);
+                    if (entry != null) {
+                        entry.segment.pending--;
+                    }
+                }
+                next = Math.max(next, seq + 1);
+                position += (record.length + 7) & ~7;
+            }
+        }
+        current = Segment.create(directory, last + 1, segmentSize);
+        segments.add(current);
+        while (segments.peekFirst().pending == 0 && segments.peekFirst() != current) {
+            segments.pollFirst().delete();
+        }
+        for (final Entry entry : entries.values()) {
+            Futures.addCallback(entry.result, new FutureCallback<GcmResponse>() {
+                @Override
+                public void onSuccess(GcmResponse response) {
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOG.warn("Request sent again by queue " + directory + " failed", t);
+                }
+            });
+            batch.add(entry);
+        }
+        pending = batch.size();
+        return next;
+    }
+
+    /**
+     * Record of a request: the length of its key, or -1, the key, its deadline and its JSON.
+     */
+    private static byte[] sendRecord(long sequence, GcmRequest request) throws IOException {
+        byte[] json = GcmRequestWriter.encode(request);
+        byte[] key = request.getKey() != null ? request.getKey().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer buffer = ByteBuffer.wrap(record(SEND, sequence, 4 + key.length + 8 + json.length));
+        buffer.position(RECORD_HEADER);
+        buffer.putInt(request.getKey() != null ? key.length : -1).put(key).putLong(request.getDeadline()).put(json);
+        checksum(buffer.array());
+        return buffer.array();
+    }
+
+    private static GcmRequest decode(ByteBuffer record) throws IOException {
+        record.position(RECORD_HEADER);
+        int keyLength = record.getInt();
+        String key = null;
+        if (keyLength >= 0) {
+            key = new String(record.array(), record.position(), keyLength, StandardCharsets.UTF_8);
+            record.position(record.position() + keyLength);
+        }
+        long deadline = record.getLong();
+        GcmRequest request = OBJECT_MAPPER.readValue(record.array(), record.position(), record.remaining(),
+                GcmRequest.class);
+        request.setKey(key);
+        request.setDeadline(deadline);
+        return request;
+    }
+
+    /**
+     * Record with its header written, followed by room for the payload.
+     */
+    private static byte[] record(byte type, long sequence, int payloadLength) {
+        int length = RECORD_HEADER + payloadLength;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(length).putInt(0).putLong(sequence).put(type);
+        return buffer.array();
+    }
+
+    private static void checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        ByteBuffer.wrap(record).putInt(4, (int) crc.getValue());
+    }
+
+    /**
+     * A request of the queue.
+     */
+    private static final class Entry {
+
+        private final long sequence;
+
+        private final GcmRequest request;
+
+        private final SettableFuture<GcmResponse> result = SettableFuture.create();
+
+        /** Segment holding the request. */
+        private Segment segment;
+
+        Entry(long sequence, GcmRequest request) {
+            this.sequence = sequence;
+            this.request = request;
+        }
+
+    }
+
+    /**
+     * A segment file of the log, mapped whole. Changes are made holding the lock of the queue.
+     */
+    private static final class Segment {
+
+        private final long number;
+
+        private final File file;
+
+        private final MappedByteBuffer buffer;
+
+        /** Position of the next record. */
+        private int position = SEGMENT_START;
+
+        /** Number of requests of the segment that are not done. */
+        private int pending;
+
+        private Segment(long number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File directory, long number, int size) throws IOException {
+            File file = new File(directory, "queue." + number + ".log");
+            Segment segment = new Segment(number, file, map(file, size));
+            segment.buffer.putLong(0, MAGIC);
+            return segment;
+        }
+
+        /**
+         * Maps an existing segment, or deletes it and returns null if it was not initialized.
+         */
+        static Segment open(File directory, long number) throws IOException {
+            File file = new File(directory, "queue." + number + ".log");
+            if (file.length() < SEGMENT_START + RECORD_HEADER) {
+                file.delete();
+                return null;
+            }
+            Segment segment = new Segment(number, file, map(file, (int) Math.min(file.length(), Integer.MAX_VALUE)));
+            long magic = segment.buffer.getLong(0);
+            if (magic == 0) {
+                segment.delete();
+                return null;
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Not a queue segment: " + file);
+            }
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            // the mapping stays valid once the file is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /**
+         * Reads the record at a position, or returns null if there is none or it is damaged.
+         */
+        byte[] read(int at) {
+            int length = buffer.getInt(at);
+            if (length < RECORD_HEADER || length > buffer.capacity() - at) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(at);
+            view.get(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, length - 8);
+            return (int) crc.getValue() == ByteBuffer.wrap(record).getInt(4) ? record : null;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                LOG.warn("Cannot delete queue segment {}", file);
+            }
+        }
+
+    }
+
+}
@@ -8,7 +8,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 public interface FilterChain {
     
     /**
-     * Pass the request to the next filter.
+     * Pass the request to the next filter. May be called more than once, for instance to retry a request.
      * @param request possible modified request
      * @return response from the next filter
      */
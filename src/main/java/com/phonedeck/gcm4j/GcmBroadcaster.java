@@ -0,0 +1,198 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Sends a message to an audience of any size. Registration IDs are pulled lazily from an iterator into batches, and
+ * only a bounded number of batches is in flight at a time, so memory use does not depend on the audience size.
+ * <p>
+ * The iterator is only used by one thread at a time, but not always the same one: batches are pulled from the thread
+ * completing the previous batch.
+ */
+public class GcmBroadcaster {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GcmBroadcaster.class);
+
+    private final Gcm gcm;
+
+    private int batchSize = Multicast.MAX_RECIPIENTS;
+
+    private int maxInFlightBatches = 4;
+
+    public GcmBroadcaster(Gcm gcm) {
+        this.gcm = gcm;
+    }
+
+    /**
+     * Sets the number of registration IDs per request.
+     * @param batchSize the batch size, at most 1000
+     * @return this broadcaster
+     */
+    public GcmBroadcaster withBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > Multicast.MAX_RECIPIENTS) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + Multicast.MAX_RECIPIENTS);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of batches sent concurrently.
+     * @param maxInFlightBatches the number of batches
+     * @return this broadcaster
+     */
+    public GcmBroadcaster withMaxInFlightBatches(int maxInFlightBatches) {
+        if (maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("At least one batch must be allowed in flight");
+        }
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    /**
+     * Sends the message to every registration ID of the iterator.
+     * @param template the message, its registration IDs are ignored
+     * @param registrationIds the audience
+     * @param listener receives the response of every batch
+     * @return future completed with the number of registration IDs sent to once all batches completed. Cancelling
+     *         it stops pulling new batches
+     */
+    public ListenableFuture<Long> broadcast(GcmRequest template, Iterator<String> registrationIds,
+            BroadcastListener listener) {
+        GcmRequest payload = Multicast.copy(template, new ArrayList<String>());
+        // serialize the shared payload once for all batches
+        PayloadTemplate.attach(payload);
+        Broadcast broadcast = new Broadcast(payload, registrationIds, listener);
+        broadcast.pump();
+        return broadcast.result;
+    }
+
+    /**
+     * State of a running broadcast.
+     */
+    private final class Broadcast {
+
+        private final GcmRequest template;
+
+        private final Iterator<String> registrationIds;
+
+        private final BroadcastListener listener;
+
+        private final SettableFuture<Long> result = SettableFuture.create();
+
+        private final Object listenerLock = new Object();
+
+        /** Number of pending calls to {@link #pump()}, to pull batches in a loop rather than recursively. */
+        private final AtomicInteger pumps = new AtomicInteger();
+
+        private int inFlight;
+
+        private long sent;
+
+        private boolean exhausted;
+
+        Broadcast(GcmRequest template, Iterator<String> registrationIds, BroadcastListener listener) {
+            this.template = template;
+            this.registrationIds = registrationIds;
+            this.listener = listener;
+        }
+
+        void pump() {
+            if (pumps.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                GcmRequest batch;
+                while ((batch = nextBatch()) != null) {
+                    send(batch);
+                }
+            } while (pumps.decrementAndGet() != 0);
+        }
+
+        private GcmRequest nextBatch() {
+            List<String> ids = new ArrayList<>(batchSize);
+            synchronized (this) {
+                if (inFlight >= maxInFlightBatches || exhausted) {
+                    return null;
+                }
+                try {
+                    while (ids.size() < batchSize && !result.isCancelled() && registrationIds.hasNext()) {
+                        ids.add(registrationIds.next());
+                    }
+                } catch (RuntimeException ex) {
+                    exhausted = true;
+                    result.setException(ex);
+                    return null;
+                }
+                if (ids.isEmpty()) {
+                    exhausted = true;
+                    if (inFlight == 0) {
+                        result.set(sent);
+                    }
+                    return null;
+                }
+                inFlight++;
+                sent += ids.size();
+            }
+            return Multicast.copy(template, ids);
+        }
+
+        private void send(final GcmRequest batch) {
+            ListenableFuture<GcmResponse> response;
+            try {
+                response = gcm.send(batch);
+            } catch (RuntimeException ex) {
+                response = Futures.immediateFailedFuture(ex);
+            }
+            Futures.addCallback(response, new FutureCallback<GcmResponse>() {
+                @Override
+                public void onSuccess(GcmResponse response) {
+                    try {
+                        synchronized (listenerLock) {
+                            listener.onResponse(response);
+                        }
+                    } catch (RuntimeException ex) {
+                        LOG.warn("Broadcast listener failed", ex);
+                    }
+                    completed();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    try {
+                        synchronized (listenerLock) {
+                            listener.onFailure(batch, t);
+                        }
+                    } catch (RuntimeException ex) {
+                        LOG.warn("Broadcast listener failed", ex);
+                    }
+                    completed();
+                }
+            });
+        }
+
+        private void completed() {
+            synchronized (this) {
+                inFlight--;
+                if (exhausted && inFlight == 0) {
+                    result.set(sent);
+                    return;
+                }
+            }
+            pump();
+        }
+
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.phonedeck.gcm4j;
+
+/**
+ * Exception reported when a request is not sent because the {@link CircuitBreakerFilter} is open. It is reported as a
+ * 503 with the time left before the circuit lets requests through again as Retry-After, so the request is handled like
+ * one GCM could not serve.
+ */
+public class GcmCircuitOpenException extends GcmNetworkException {
+
+    private static final long serialVersionUID = -2635326290143806447L;
+
+    public GcmCircuitOpenException(Long retryAfter) {
+        super("Circuit open, request not sent to GCM", 503, retryAfter);
+    }
+
+}
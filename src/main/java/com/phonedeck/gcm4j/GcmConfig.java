@@ -3,6 +3,9 @@ package com.phonedeck.gcm4j;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
 
 import com.google.common.util.concurrent.ListeningExecutorService;
 
@@ -21,6 +24,30 @@ public class GcmConfig {
     
     private List<GcmFilter> filters;
     
+    private SSLContext sslContext;
+    
+    private int http2Connections;
+    
+    private boolean virtualThreads;
+    
+    private int maxInFlightRequests;
+    
+    private long maxInFlightBytes;
+    
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    
+    private BufferPool bufferPool;
+    
+    private HashedWheelTimer timer;
+    
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+    
+    private int connectTimeout;
+    
+    private int readTimeout;
+    
+    private long deadline;
+    
     
     
     public GcmConfig withEndpoint(URL endpoint) {
@@ -48,6 +75,66 @@ public class GcmConfig {
         return this;
     }
     
+    public GcmConfig withSslContext(SSLContext sslContext) {
+        setSslContext(sslContext);
+        return this;
+    }
+    
+    public GcmConfig withHttp2Connections(int http2Connections) {
+        setHttp2Connections(http2Connections);
+        return this;
+    }
+    
+    public GcmConfig withVirtualThreads(boolean virtualThreads) {
+        setVirtualThreads(virtualThreads);
+        return this;
+    }
+    
+    public GcmConfig withMaxInFlightRequests(int maxInFlightRequests) {
+        setMaxInFlightRequests(maxInFlightRequests);
+        return this;
+    }
+    
+    public GcmConfig withMaxInFlightBytes(long maxInFlightBytes) {
+        setMaxInFlightBytes(maxInFlightBytes);
+        return this;
+    }
+    
+    public GcmConfig withOverflowPolicy(OverflowPolicy overflowPolicy) {
+        setOverflowPolicy(overflowPolicy);
+        return this;
+    }
+    
+    public GcmConfig withBufferPool(BufferPool bufferPool) {
+        setBufferPool(bufferPool);
+        return this;
+    }
+    
+    public GcmConfig withTimer(HashedWheelTimer timer) {
+        setTimer(timer);
+        return this;
+    }
+    
+    public GcmConfig withConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        setConcurrencyLimiter(concurrencyLimiter);
+        return this;
+    }
+    
+    public GcmConfig withConnectTimeout(long connectTimeout, TimeUnit unit) {
+        setConnectTimeout((int) unit.toMillis(connectTimeout));
+        return this;
+    }
+    
+    public GcmConfig withReadTimeout(long readTimeout, TimeUnit unit) {
+        setReadTimeout((int) unit.toMillis(readTimeout));
+        return this;
+    }
+    
+    public GcmConfig withDeadline(long deadline, TimeUnit unit) {
+        setDeadline(unit.toMillis(deadline));
+        return this;
+    }
+    
     public GcmConfig withFilter(GcmFilter filter) {
         if (getFilters() == null) {
             setFilters(new ArrayList<GcmFilter>());
@@ -98,4 +185,150 @@ public class GcmConfig {
     public ListeningExecutorService getExecutor() {
         return executor;
     }
+
+    /**
+     * TLS context used by transports that open their own sockets, such as {@link NioGcm}.
+     * @return the TLS context, or null to use the JVM default
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+    
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Maximum number of connections {@link Http2Gcm} multiplexes its requests over.
+     * @return the maximum number of connections, or 0 for the default
+     */
+    public int getHttp2Connections() {
+        return http2Connections;
+    }
+    
+    public void setHttp2Connections(int http2Connections) {
+        this.http2Connections = http2Connections;
+    }
+
+    /**
+     * Whether {@link DefaultGcm} runs every request on a virtual thread of its own when no executor is set. Blocked
+     * requests then park instead of holding a platform thread. Requires Java 21 or later.
+     * @return true to use virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+    
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Maximum number of requests sent and not yet answered, including the time they spend in filters.
+     * @return the maximum number of requests, or 0 for no limit
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+    
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    /**
+     * Maximum estimated payload bytes of the requests in flight.
+     * @return the maximum number of bytes, or 0 for no limit
+     */
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+    
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * What to do with a request when the in-flight limits are reached.
+     * @return the overflow policy, {@link OverflowPolicy#BLOCK} by default
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Pool of the buffers used to encode requests and read responses. Can be shared between clients.
+     * @return the buffer pool, or null for a pool of the client's own
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Timer holding the requests sent with {@link AbstractDefaultGcm#sendAfter(GcmRequest, long, java.util.concurrent.TimeUnit)}.
+     * @return the timer, or null for a timer shared by the clients
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+    
+    public void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Limiter adjusting the number of requests sent concurrently to GCM.
+     * @return the limiter, or null if the requests are not limited
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+    
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Timeout of the connections opened with the {@link ConnectionFactory}.
+     * @return the timeout in milliseconds, 0 for none
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+    
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Timeout of the reads of the connections opened with the {@link ConnectionFactory}, the longest GCM may stay
+     * silent while answering.
+     * @return the timeout in milliseconds, 0 for none
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+    
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Time given to the requests without a deadline of their own, see {@link GcmRequest#getDeadline()}.
+     * @return the deadline in milliseconds, 0 for none
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+    
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
 }
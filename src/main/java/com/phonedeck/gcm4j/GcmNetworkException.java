@@ -32,6 +32,19 @@ public class GcmNetworkException extends GcmException {
         this.retryAfter = retryAfter;
     }
 
+    /**
+     * Creates an exception for a request that was not sent, but failed as if GCM answered with the given code.
+     * @param message message of the exception
+     * @param code HTTP status code reported
+     * @param retryAfter time to wait in milliseconds, may be null
+     */
+    protected GcmNetworkException(String message, int code, Long retryAfter) {
+        super(message);
+        this.code = code;
+        this.retryAfter = retryAfter;
+        this.response = null;
+    }
+
     public int getCode() {
         return code;
     }
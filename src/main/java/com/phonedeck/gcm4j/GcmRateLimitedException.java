@@ -0,0 +1,15 @@
+package com.phonedeck.gcm4j;
+
+/**
+ * Exception reported when a request is not sent because the {@link RateLimitFilter} would have to delay it longer than
+ * allowed. It is reported as a 429 with the time to wait for the rate limit as Retry-After.
+ */
+public class GcmRateLimitedException extends GcmNetworkException {
+
+    private static final long serialVersionUID = 5407316528837460313L;
+
+    public GcmRateLimitedException(Long retryAfter) {
+        super("Rate limit of the sender key exceeded, request not sent to GCM", 429, retryAfter);
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.phonedeck.gcm4j;
+
+/**
+ * Exception reported when a request is not sent because the in-flight limits of the client are reached and the
+ * {@link OverflowPolicy} is {@link OverflowPolicy#REJECT}. The request was not sent and can be retried later.
+ */
+public class GcmRejectedException extends GcmException {
+
+    private static final long serialVersionUID = 3151386924180262347L;
+
+    private final int inFlightRequests;
+
+    private final long inFlightBytes;
+
+    public GcmRejectedException(String message, int inFlightRequests, long inFlightBytes) {
+        super(message);
+        this.inFlightRequests = inFlightRequests;
+        this.inFlightBytes = inFlightBytes;
+    }
+
+    /**
+     * Number of requests in flight when the request was rejected.
+     * @return number of requests
+     */
+    public int getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    /**
+     * Estimated payload bytes in flight when the request was rejected.
+     * @return number of bytes
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+}
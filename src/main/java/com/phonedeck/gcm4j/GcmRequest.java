@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class GcmRequest {
 
@@ -49,6 +50,15 @@ public class GcmRequest {
     @JsonProperty("dry_run")
     private boolean dryRun;
 
+    @JsonIgnore
+    private PayloadTemplate payloadTemplate;
+
+    @JsonIgnore
+    private ResultListener resultListener;
+
+    @JsonIgnore
+    private long deadline;
+
 
     /*
      * Chaining setters
@@ -131,6 +141,29 @@ public class GcmRequest {
         return this;
     }
 
+    /**
+     * Hands the results to the listener while the response is parsed instead of collecting them in
+     * {@link GcmResponse#getResults()}, which stays empty. Filters looking at the results do not see them either.
+     * @param resultListener the listener
+     * @return this request
+     */
+    public GcmRequest withResultListener(ResultListener resultListener) {
+        setResultListener(resultListener);
+        return this;
+    }
+
+    /**
+     * Fails the request with a {@link GcmTimeoutException} if it is not answered within the given time after it is
+     * sent, aborting its connection.
+     * @param deadline time given to the request, instead of the deadline of the client
+     * @param unit unit of the deadline
+     * @return this request
+     */
+    public GcmRequest withDeadline(long deadline, TimeUnit unit) {
+        setDeadline(unit.toMillis(deadline));
+        return this;
+    }
+
     @JsonIgnore
     public String getKey() {
         return key;
@@ -161,6 +194,37 @@ public class GcmRequest {
         return attributes.get(name);
     }
 
+    @JsonIgnore
+    public ResultListener getResultListener() {
+        return resultListener;
+    }
+
+    public void setResultListener(ResultListener resultListener) {
+        this.resultListener = resultListener;
+    }
+
+    /**
+     * Time given to the request to be answered, counted from the time it is sent.
+     * @return the deadline in milliseconds, or 0 for the deadline of the client
+     */
+    @JsonIgnore
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    @JsonIgnore
+    PayloadTemplate getPayloadTemplate() {
+        return payloadTemplate;
+    }
+
+    void setPayloadTemplate(PayloadTemplate payloadTemplate) {
+        this.payloadTemplate = payloadTemplate;
+    }
+
     @JsonIgnore
     public Map<String, Object> getAttributes() {
         return attributes != null ? Collections.unmodifiableMap(attributes) : Collections.<String, Object>emptyMap();
@@ -211,6 +275,10 @@ public class GcmRequest {
         this.data = data;
     }
 
+    public Map<String, String> getNotification() {
+        return notification;
+    }
+
     public void setNotification(Map<String, String> notification) {
         this.notification = notification;
     }
@@ -231,6 +299,10 @@ public class GcmRequest {
         this.timeToLive = timeToLive;
     }
 
+    public String getPriority() {
+        return priority;
+    }
+
     public void setPriority(String priority) {
         this.priority = priority;
     }
@@ -0,0 +1,277 @@
+package com.phonedeck.gcm4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes the JSON body of a {@link GcmRequest} with the streaming API of Jackson, without the reflection of databind
+ * and without an intermediate byte array. The output is the same as the one of the {@code ObjectMapper} of
+ * {@link AbstractDefaultGcm}: fields with their default value are omitted, null collections are written as null.
+ * <p>
+ * The exact size of the body can be computed beforehand with {@link #length(GcmRequest)}, so it can be streamed with a
+ * fixed content length.
+ */
+final class GcmRequestWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private GcmRequestWriter() {
+    }
+
+    /**
+     * Writes the request as UTF-8 JSON to the stream, which is not closed.
+     * @param request the request
+     * @param out the stream
+     * @throws IOException when the stream cannot be written to
+     */
+    static void write(GcmRequest request, OutputStream out) throws IOException {
+        JsonGenerator generator = createGenerator(out);
+        write(request, generator);
+        generator.close();
+    }
+
+    /**
+     * Creates a UTF-8 generator that does not close the stream.
+     * @param out the stream
+     * @return the generator
+     * @throws IOException never thrown in practice
+     */
+    static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return generator;
+    }
+
+    /**
+     * Encodes the request into an array of the exact size of its JSON.
+     * @param request the request
+     * @return the JSON
+     * @throws IOException never thrown in practice
+     */
+    static byte[] encode(GcmRequest request) throws IOException {
+        ArrayOutputStream out = new ArrayOutputStream(length(request));
+        write(request, out);
+        return out.toByteArray();
+    }
+
+    static void write(GcmRequest request, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        writeMap(generator, "data", request.getData());
+        writeMap(generator, "notification", request.getNotification());
+        writeString(generator, "priority", request.getPriority());
+        List<String> ids = request.getRegistrationIds();
+        if (ids == null) {
+            generator.writeNullField("registration_ids");
+        } else if (!ids.isEmpty()) {
+            generator.writeArrayFieldStart("registration_ids");
+            for (String id : ids) {
+                generator.writeString(id);
+            }
+            generator.writeEndArray();
+        }
+        writeString(generator, "notification_key", request.getNotificationKey());
+        writeString(generator, "notification_key_name", request.getNotificationKeyName());
+        writeString(generator, "collapse_key", request.getCollapseKey());
+        if (request.isDelayWhileIdle()) {
+            generator.writeBooleanField("delay_while_idle", true);
+        }
+        if (request.getTimeToLive() != 0) {
+            generator.writeNumberField("time_to_live", request.getTimeToLive());
+        }
+        writeString(generator, "restricted_package_name", request.getRestrictedPackageName());
+        if (request.isDryRun()) {
+            generator.writeBooleanField("dry_run", true);
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Computes the size of the UTF-8 JSON written for the request.
+     * @param request the request
+     * @return the size in bytes
+     */
+    static int length(GcmRequest request) {
+        // braces, the commas are counted with the fields
+        int length = 2;
+        int fields = 0;
+        if (request.getData() == null || !request.getData().isEmpty()) {
+            length += fieldLength("data") + mapLength(request.getData());
+            fields++;
+        }
+        if (request.getNotification() == null || !request.getNotification().isEmpty()) {
+            length += fieldLength("notification") + mapLength(request.getNotification());
+            fields++;
+        }
+        if (request.getPriority() != null) {
+            length += fieldLength("priority") + stringLength(request.getPriority());
+            fields++;
+        }
+        List<String> ids = request.getRegistrationIds();
+        if (ids == null || !ids.isEmpty()) {
+            length += fieldLength("registration_ids");
+            if (ids == null) {
+                length += 4;
+            } else {
+                // brackets and commas
+                length += 1 + ids.size();
+                for (String id : ids) {
+                    length += stringLength(id);
+                }
+            }
+            fields++;
+        }
+        if (request.getNotificationKey() != null) {
+            length += fieldLength("notification_key") + stringLength(request.getNotificationKey());
+            fields++;
+        }
+        if (request.getNotificationKeyName() != null) {
+            length += fieldLength("notification_key_name") + stringLength(request.getNotificationKeyName());
+            fields++;
+        }
+        if (request.getCollapseKey() != null) {
+            length += fieldLength("collapse_key") + stringLength(request.getCollapseKey());
+            fields++;
+        }
+        if (request.isDelayWhileIdle()) {
+            length += fieldLength("delay_while_idle") + 4;
+            fields++;
+        }
+        if (request.getTimeToLive() != 0) {
+            length += fieldLength("time_to_live") + Long.toString(request.getTimeToLive()).length();
+            fields++;
+        }
+        if (request.getRestrictedPackageName() != null) {
+            length += fieldLength("restricted_package_name") + stringLength(request.getRestrictedPackageName());
+            fields++;
+        }
+        if (request.isDryRun()) {
+            length += fieldLength("dry_run") + 4;
+            fields++;
+        }
+        return fields > 0 ? length + fields - 1 : length;
+    }
+
+    private static void writeString(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private static void writeMap(JsonGenerator generator, String name, Map<String, String> map) throws IOException {
+        if (map == null) {
+            generator.writeNullField(name);
+        } else if (!map.isEmpty()) {
+            generator.writeObjectFieldStart(name);
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                generator.writeFieldName(entry.getKey());
+                if (entry.getValue() == null) {
+                    generator.writeNull();
+                } else {
+                    generator.writeString(entry.getValue());
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Size of a field name of plain ASCII characters, quoted and followed by a colon.
+     */
+    private static int fieldLength(String name) {
+        return name.length() + 3;
+    }
+
+    private static int mapLength(Map<String, String> map) {
+        if (map == null) {
+            return 4;
+        }
+        // braces and commas
+        int length = 1 + map.size();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            // colon
+            length += stringLength(entry.getKey()) + 1;
+            length += entry.getValue() != null ? stringLength(entry.getValue()) : 4;
+        }
+        return length;
+    }
+
+    /**
+     * Size of a quoted string as escaped by the Jackson generator: control characters, quotes and backslashes are
+     * escaped, surrogates are written as {@code \}{@code uXXXX} escapes, and everything else is plain UTF-8.
+     */
+    static int stringLength(String str) {
+        int length = 2;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20) {
+                    length += c == '"' || c == '\\' ? 2 : 1;
+                } else if (c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+                    length += 2;
+                } else {
+                    length += 6;
+                }
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                length += 6;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Output stream writing into an array of a known size, so the result is not copied.
+     */
+    static final class ArrayOutputStream extends OutputStream {
+
+        private byte[] buffer;
+
+        private int count;
+
+        ArrayOutputStream(int size) {
+            buffer = new byte[size];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int len) {
+            if (count + len > buffer.length) {
+                // should not happen as the size is computed exactly
+                byte[] larger = new byte[Math.max(buffer.length * 2, count + len)];
+                System.arraycopy(buffer, 0, larger, 0, count);
+                buffer = larger;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (count == buffer.length) {
+                return buffer;
+            }
+            byte[] result = new byte[count];
+            System.arraycopy(buffer, 0, result, 0, count);
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.phonedeck.gcm4j;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parses the JSON of a successful GCM response token by token. Results are correlated with the registration IDs of
+ * the request as they are parsed, and handed to the {@link ResultListener} of the request instead of being collected
+ * if it has one.
+ */
+final class GcmResponseParser {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GcmResponseParser.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private GcmResponseParser() {
+    }
+
+    static GcmResponse parse(byte[] body, GcmRequest request) throws IOException {
+        return parse(body, 0, body.length, request);
+    }
+
+    static GcmResponse parse(byte[] buffer, int offset, int length, GcmRequest request) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(buffer, offset, length)) {
+            return parse(parser, request);
+        }
+    }
+
+    private static GcmResponse parse(JsonParser parser, GcmRequest request) throws IOException {
+        GcmResponse response = new GcmResponse();
+        response.setRequest(request);
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        List<String> ids = request.getRegistrationIds() != null ? request.getRegistrationIds() : Collections.<String>emptyList();
+        Iterator<String> i = ids.iterator();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (name) {
+            case "multicast_id":
+                response.setMulticastId(parser.getValueAsLong());
+                break;
+            case "success":
+                response.setSuccess(parser.getValueAsInt());
+                break;
+            case "failure":
+                response.setFailure(parser.getValueAsInt());
+                break;
+            case "canonical_ids":
+                response.setCanonicalIds(parser.getValueAsInt());
+                break;
+            case "results":
+                if (token == JsonToken.START_ARRAY) {
+                    parseResults(parser, i, request.getResultListener(), response.getResults());
+                }
+                break;
+            default:
+                break;
+            }
+            // unknown or unexpected structures
+            parser.skipChildren();
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+        if (i.hasNext()) {
+            LOG.warn("Protocol error: Less results than requested registation IDs");
+        }
+        return response;
+    }
+
+    private static void parseResults(JsonParser parser, Iterator<String> ids, ResultListener listener,
+            List<Result> results) throws IOException {
+        boolean warned = false;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            Result result = parseResult(parser);
+            if (ids.hasNext()) {
+                result.setRequestedRegistrationId(ids.next());
+            } else if (!warned) {
+                LOG.warn("Protocol error: More results than requested registation IDs");
+                warned = true;
+            }
+            if (listener != null) {
+                listener.onResult(result);
+            } else {
+                results.add(result);
+            }
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+    }
+
+    private static Result parseResult(JsonParser parser) throws IOException {
+        Result result = new Result();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            String value = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+            switch (name) {
+            case "message_id":
+                result.setMessageId(value);
+                break;
+            case "registration_id":
+                result.setCanonicalRegistrationId(value);
+                break;
+            case "error":
+                result.setError(value != null ? ResultError.jsonValueOf(value) : null);
+                break;
+            default:
+                break;
+            }
+            parser.skipChildren();
+        }
+        return result;
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException("Expected " + expected + " but got " + actual, parser.getCurrentLocation());
+        }
+    }
+
+}
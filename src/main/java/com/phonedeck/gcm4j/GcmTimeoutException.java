@@ -0,0 +1,15 @@
+package com.phonedeck.gcm4j;
+
+/**
+ * Exception reported when a request is not answered before its deadline. The request is cancelled and its connection
+ * aborted; GCM may still have received it.
+ */
+public class GcmTimeoutException extends GcmNetworkException {
+
+    private static final long serialVersionUID = -4471905232532318745L;
+
+    public GcmTimeoutException(long deadline) {
+        super("No response from GCM within the deadline of " + deadline + " ms", null);
+    }
+
+}
@@ -0,0 +1,404 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). Requests are encoded with literal header fields that never touch
+ * the dynamic table, which keeps the encoder stateless; responses are decoded with the complete format, including
+ * the dynamic table and Huffman coded strings.
+ */
+final class Hpack {
+
+    private static final String[][] STATIC_TABLE = {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    static final int METHOD_POST = 3;
+    static final int SCHEME_HTTP = 6;
+    static final int SCHEME_HTTPS = 7;
+    static final int AUTHORITY = 1;
+    static final int PATH = 4;
+    static final int AUTHORIZATION = 23;
+    static final int CONTENT_LENGTH = 28;
+    static final int CONTENT_TYPE = 31;
+
+    /** Huffman codes of the symbols 0-255, from RFC 7541 Appendix B. */
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    /** Bit lengths of the Huffman codes. */
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    private static final int EOS = 256;
+
+    private static final int EOS_CODE = 0x3fffffff;
+
+    private static final int EOS_LENGTH = 30;
+
+    private static final HuffmanNode HUFFMAN_TREE = buildHuffmanTree();
+
+    private Hpack() {
+    }
+
+    /**
+     * Writes a header field represented by a static table index.
+     */
+    static void writeIndexed(ByteArrayOutputStream out, int index) {
+        writeInteger(out, 0x80, 7, index);
+    }
+
+    /**
+     * Writes a literal header field whose name comes from the static table.
+     * @param sensitive true to mark the value as never indexed, so intermediaries do not compress it
+     */
+    static void writeLiteral(ByteArrayOutputStream out, int nameIndex, String value, boolean sensitive) {
+        writeInteger(out, sensitive ? 0x10 : 0x00, 4, nameIndex);
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInteger(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Stateful decoder of header blocks. A connection uses a single decoder for all its header blocks, in the order
+     * they were received.
+     */
+    static final class Decoder {
+
+        private final Deque<String[]> dynamicTable = new ArrayDeque<>();
+
+        private int maxTableSize;
+
+        private int tableSize;
+
+        private final int maxAllowedTableSize;
+
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.maxAllowedTableSize = maxTableSize;
+        }
+
+        /**
+         * Decodes a complete header block.
+         * @param block the header block
+         * @param headers map receiving the header fields, keyed by their lower case name
+         * @throws IOException if the block is malformed
+         */
+        void decode(byte[] block, Map<String, String> headers) throws IOException {
+            Input in = new Input(block);
+            while (in.hasRemaining()) {
+                int b = in.peek();
+                if ((b & 0x80) != 0) {
+                    String[] field = get(in.readInteger(7));
+                    headers.put(field[0], field[1]);
+                } else if ((b & 0xc0) == 0x40) {
+                    String[] field = readLiteral(in, 6);
+                    add(field);
+                    headers.put(field[0], field[1]);
+                } else if ((b & 0xe0) == 0x20) {
+                    int size = in.readInteger(5);
+                    if (size > maxAllowedTableSize) {
+                        throw new IOException("HPACK table size update exceeds the limit: " + size);
+                    }
+                    maxTableSize = size;
+                    evict();
+                } else {
+                    String[] field = readLiteral(in, 4);
+                    headers.put(field[0], field[1]);
+                }
+            }
+        }
+
+        private String[] readLiteral(Input in, int prefixBits) throws IOException {
+            int index = in.readInteger(prefixBits);
+            String name = index == 0 ? readString(in) : get(index)[0];
+            return new String[] { name, readString(in) };
+        }
+
+        private String[] get(int index) throws IOException {
+            if (index <= 0) {
+                throw new IOException("Invalid HPACK index: " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex >= dynamicTable.size()) {
+                throw new IOException("Invalid HPACK index: " + index);
+            }
+            int i = 0;
+            for (String[] field : dynamicTable) {
+                if (i++ == dynamicIndex) {
+                    return field;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        private void add(String[] field) {
+            int size = entrySize(field);
+            dynamicTable.addFirst(field);
+            tableSize += size;
+            evict();
+        }
+
+        private void evict() {
+            while (tableSize > maxTableSize) {
+                tableSize -= entrySize(dynamicTable.removeLast());
+            }
+        }
+
+        private static int entrySize(String[] field) {
+            return field[0].length() + field[1].length() + 32;
+        }
+
+    }
+
+    private static String readString(Input in) throws IOException {
+        boolean huffman = (in.peek() & 0x80) != 0;
+        int length = in.readInteger(7);
+        byte[] bytes = in.read(length);
+        return huffman ? decodeHuffman(bytes) : new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    static String decodeHuffman(byte[] bytes) throws IOException {
+        StringBuilder sb = new StringBuilder(bytes.length * 8 / 5);
+        HuffmanNode node = HUFFMAN_TREE;
+        int padding = 0;
+        for (byte b : bytes) {
+            for (int bit = 7; bit >= 0; bit--) {
+                node = ((b >>> bit) & 1) == 0 ? node.zero : node.one;
+                if (node == null) {
+                    throw new IOException("Invalid Huffman code");
+                }
+                padding++;
+                if (node.symbol >= 0) {
+                    if (node.symbol == EOS) {
+                        throw new IOException("EOS symbol in Huffman coded string");
+                    }
+                    sb.append((char) node.symbol);
+                    node = HUFFMAN_TREE;
+                    padding = 0;
+                }
+            }
+        }
+        if (padding > 7) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return sb.toString();
+    }
+
+    private static HuffmanNode buildHuffmanTree() {
+        HuffmanNode root = new HuffmanNode();
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            addHuffmanCode(root, symbol, HUFFMAN_CODES[symbol], HUFFMAN_LENGTHS[symbol]);
+        }
+        addHuffmanCode(root, EOS, EOS_CODE, EOS_LENGTH);
+        return root;
+    }
+
+    private static void addHuffmanCode(HuffmanNode root, int symbol, int code, int length) {
+        HuffmanNode node = root;
+        for (int bit = length - 1; bit >= 0; bit--) {
+            if (((code >>> bit) & 1) == 0) {
+                if (node.zero == null) {
+                    node.zero = new HuffmanNode();
+                }
+                node = node.zero;
+            } else {
+                if (node.one == null) {
+                    node.one = new HuffmanNode();
+                }
+                node = node.one;
+            }
+        }
+        node.symbol = symbol;
+    }
+
+    private static final class HuffmanNode {
+
+        private HuffmanNode zero;
+
+        private HuffmanNode one;
+
+        private int symbol = -1;
+
+    }
+
+    private static final class Input {
+
+        private final byte[] bytes;
+
+        private int position;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean hasRemaining() {
+            return position < bytes.length;
+        }
+
+        int peek() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Truncated HPACK block");
+            }
+            return bytes[position] & 0xff;
+        }
+
+        byte[] read(int length) throws IOException {
+            if (length < 0 || position + length > bytes.length) {
+                throw new IOException("Truncated HPACK block");
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(bytes, position, result, 0, length);
+            position += length;
+            return result;
+        }
+
+        int readInteger(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = peek() & max;
+            position++;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                b = peek();
+                position++;
+                if (shift > 21) {
+                    throw new IOException("HPACK integer overflow");
+                }
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,823 @@
+package com.phonedeck.gcm4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single HTTP/2 client connection (RFC 7540) that multiplexes requests as streams. The connection is established
+ * and read by its own thread; requests are written by the threads submitting them.
+ * <p>
+ * Callers must {@link #reserve()} a stream before {@link #send(byte[], byte[], Handler) sending}, which keeps the
+ * number of open streams within the server's SETTINGS_MAX_CONCURRENT_STREAMS.
+ */
+final class Http2Connection implements Runnable {
+
+    /**
+     * Receives the outcome of a single stream.
+     */
+    interface Handler {
+
+        void onResponse(int status, Map<String, String> headers, byte[] body);
+
+        /**
+         * @param ex cause of the failure
+         * @param unprocessed true if the request was not written, or the server guarantees that it did not process
+         *        it, so it can be retried safely
+         */
+        void onFailure(IOException ex, boolean unprocessed);
+
+    }
+
+    /**
+     * Receives the state changes of the connection.
+     */
+    interface Listener {
+
+        /**
+         * Called when the number of streams the connection can accept may have increased.
+         */
+        void onCapacity(Http2Connection connection);
+
+        /**
+         * Called once when the connection is closed. All its streams have been failed already.
+         * @param cause the failure that closed the connection, or null on a graceful shutdown
+         */
+        void onClosed(Http2Connection connection, IOException cause);
+
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(Http2Connection.class);
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_REFUSED_STREAM = 0x7;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /** Receive window of each stream, large enough for the results of a full multicast. */
+    private static final int STREAM_RECEIVE_WINDOW = 1 << 20;
+
+    /** Receive window of the connection. */
+    private static final int CONNECTION_RECEIVE_WINDOW = 16 << 20;
+
+    /** Stream IDs are 31 bit, stop opening streams well before running out of them. */
+    private static final int MAX_STREAM_ID = Integer.MAX_VALUE - 1024;
+
+    private final String host;
+
+    private final int port;
+
+    private final SSLContext sslContext;
+
+    private final Listener listener;
+
+    private final Object writeLock = new Object();
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+    private final Map<Integer, Stream> streams = new HashMap<>();
+
+    /** Streams with request body bytes waiting for send window. */
+    private final ArrayDeque<Stream> sending = new ArrayDeque<>();
+
+    private Socket socket;
+
+    private OutputStream out;
+
+    private boolean ready;
+
+    private boolean closed;
+
+    private boolean goingAway;
+
+    private int reserved;
+
+    private int nextStreamId = 1;
+
+    private int maxConcurrentStreams = Integer.MAX_VALUE;
+
+    private int initialSendWindow = DEFAULT_WINDOW;
+
+    private int connectionSendWindow = DEFAULT_WINDOW;
+
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    private int connectionUnacked;
+
+    /**
+     * @param host server host
+     * @param port server port
+     * @param sslContext TLS context, or null for cleartext HTTP/2 with prior knowledge (h2c)
+     * @param listener receives the state changes of the connection
+     */
+    Http2Connection(String host, int port, SSLContext sslContext, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.sslContext = sslContext;
+        this.listener = listener;
+    }
+
+    /**
+     * Connects, then reads frames until the connection is closed.
+     */
+    @Override
+    public void run() {
+        IOException cause = null;
+        try {
+            connect();
+            readFrames();
+        } catch (IOException ex) {
+            cause = ex;
+        } catch (RuntimeException ex) {
+            cause = new IOException("HTTP/2 connection failed", ex);
+        } finally {
+            synchronized (this) {
+                if (closed) {
+                    // closed locally, the read failure is a consequence of that
+                    cause = null;
+                }
+            }
+            shutdown(cause);
+        }
+    }
+
+    /**
+     * Whether the connection was established and accepts new streams.
+     * @return true if {@link #reserve()} may succeed
+     */
+    synchronized boolean isReady() {
+        return ready && !closed && !goingAway;
+    }
+
+    /**
+     * Number of streams that can still be reserved.
+     * @return free stream slots, 0 when the connection does not accept new streams
+     */
+    synchronized int available() {
+        if (!isReady() || nextStreamId + 2 * reserved > MAX_STREAM_ID) {
+            return 0;
+        }
+        return Math.max(0, maxConcurrentStreams - streams.size() - reserved);
+    }
+
+    /**
+     * Reserves a stream slot for a following {@link #send(byte[], byte[], Handler)} call.
+     * @return true if a slot was reserved
+     */
+    synchronized boolean reserve() {
+        if (available() <= 0) {
+            return false;
+        }
+        reserved++;
+        return true;
+    }
+
+    /**
+     * Sends a request on a previously reserved stream.
+     * @param headerBlock HPACK encoded request headers
+     * @param body request body
+     * @param handler receives the response
+     */
+    void send(byte[] headerBlock, byte[] body, Handler handler) {
+        Stream stream = null;
+        try {
+            synchronized (writeLock) {
+                synchronized (this) {
+                    reserved--;
+                    if (!closed && !goingAway) {
+                        stream = new Stream(nextStreamId, body, handler, initialSendWindow);
+                        nextStreamId += 2;
+                        streams.put(stream.id, stream);
+                    }
+                }
+                if (stream != null) {
+                    writeHeaders(stream.id, headerBlock, body.length == 0);
+                    if (body.length > 0) {
+                        synchronized (this) {
+                            sending.add(stream);
+                        }
+                    }
+                    writeData();
+                }
+            }
+        } catch (IOException ex) {
+            handler.onFailure(ex, false);
+            abort();
+            return;
+        }
+        if (stream == null) {
+            // closing since the slot was reserved, nothing was written so the request can go to another connection
+            handler.onFailure(new IOException("HTTP/2 connection is closing"), true);
+        }
+    }
+
+    /**
+     * Resets the stream of a request that is no longer wanted, freeing its slot. The handler is not called anymore.
+     * @param handler handler given to {@link #send(byte[], byte[], Handler)}
+     */
+    void cancel(Handler handler) {
+        Stream stream = null;
+        synchronized (this) {
+            for (Stream s : streams.values()) {
+                if (s.handler == handler) {
+                    stream = s;
+                    break;
+                }
+            }
+            if (stream == null) {
+                return;
+            }
+            streams.remove(stream.id);
+            sending.remove(stream);
+        }
+        try {
+            synchronized (writeLock) {
+                byte[] payload = new byte[4];
+                putInt(payload, 0, ERROR_CANCEL);
+                writeFrame(RST_STREAM, 0, stream.id, payload, 0, 4);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            abort();
+            return;
+        }
+        listener.onCapacity(this);
+        closeIfDrained();
+    }
+
+    /**
+     * Closes the connection, failing its open streams.
+     */
+    void close() {
+        try {
+            synchronized (writeLock) {
+                if (out != null) {
+                    writeGoAway(ERROR_NO_ERROR);
+                    out.flush();
+                }
+            }
+        } catch (IOException ex) {
+            LOG.debug("Cannot send GOAWAY", ex);
+        }
+        abort();
+    }
+
+    private void connect() throws IOException {
+        Socket s;
+        if (sslContext != null) {
+            SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+            s = sslSocket;
+            SSLParameters params = sslSocket.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            setApplicationProtocols(params);
+            sslSocket.setSSLParameters(params);
+        } else {
+            s = new Socket();
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("HTTP/2 connection closed");
+            }
+            socket = s;
+        }
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(host, port));
+        if (s instanceof SSLSocket) {
+            ((SSLSocket) s).startHandshake();
+            String protocol = getApplicationProtocol((SSLSocket) s);
+            if (!"h2".equals(protocol)) {
+                throw new IOException("Server did not negotiate HTTP/2, negotiated protocol: " + protocol);
+            }
+        }
+        synchronized (writeLock) {
+            out = new BufferedOutputStream(s.getOutputStream(), 2 * DEFAULT_MAX_FRAME_SIZE);
+            out.write(PREFACE);
+            byte[] settings = new byte[12];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_RECEIVE_WINDOW);
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, CONNECTION_RECEIVE_WINDOW - DEFAULT_WINDOW);
+            out.flush();
+        }
+    }
+
+    /**
+     * Offers "h2" through ALPN. SSLParameters supports ALPN from Java 9 (and late Java 8 updates), it is looked up
+     * reflectively to keep the Java 7 baseline.
+     */
+    private static void setApplicationProtocols(SSLParameters params) throws IOException {
+        try {
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            method.invoke(params, (Object) new String[] { "h2" });
+        } catch (NoSuchMethodException ex) {
+            throw new IOException("HTTP/2 over TLS requires ALPN support, which this JVM does not provide", ex);
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Cannot configure ALPN", ex);
+        }
+    }
+
+    private static String getApplicationProtocol(SSLSocket socket) throws IOException {
+        try {
+            return (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket);
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Cannot read the negotiated ALPN protocol", ex);
+        }
+    }
+
+    private void readFrames() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 2 * DEFAULT_MAX_FRAME_SIZE));
+        byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+        ByteArrayOutputStream headerBlock = null;
+        int headerStreamId = 0;
+        boolean headerEndStream = false;
+        while (true) {
+            int length;
+            try {
+                length = (in.readUnsignedShort() << 8) | in.readUnsignedByte();
+            } catch (EOFException ex) {
+                synchronized (this) {
+                    if (goingAway && streams.isEmpty()) {
+                        return;
+                    }
+                }
+                throw ex;
+            }
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt() & Integer.MAX_VALUE;
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw protocolError("Frame too large: " + length);
+            }
+            in.readFully(payload, 0, length);
+
+            if (headerBlock != null && (type != CONTINUATION || streamId != headerStreamId)) {
+                throw protocolError("Expected CONTINUATION frame");
+            }
+
+            switch (type) {
+            case DATA:
+                onData(streamId, flags, payload, length);
+                break;
+            case HEADERS:
+                int offset = 0;
+                int end = length;
+                if ((flags & FLAG_PADDED) != 0) {
+                    end -= payload[0] & 0xff;
+                    offset++;
+                }
+                if ((flags & FLAG_PRIORITY) != 0) {
+                    offset += 5;
+                }
+                if (offset > end) {
+                    throw protocolError("Invalid HEADERS padding");
+                }
+                headerBlock = new ByteArrayOutputStream();
+                headerBlock.write(payload, offset, end - offset);
+                headerStreamId = streamId;
+                headerEndStream = (flags & FLAG_END_STREAM) != 0;
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaders(headerStreamId, headerBlock.toByteArray(), headerEndStream);
+                    headerBlock = null;
+                }
+                break;
+            case CONTINUATION:
+                if (headerBlock == null) {
+                    throw protocolError("Unexpected CONTINUATION frame");
+                }
+                headerBlock.write(payload, 0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaders(headerStreamId, headerBlock.toByteArray(), headerEndStream);
+                    headerBlock = null;
+                }
+                break;
+            case RST_STREAM:
+                onReset(streamId, readInt(payload, 0));
+                break;
+            case SETTINGS:
+                if ((flags & FLAG_ACK) == 0) {
+                    onSettings(payload, length);
+                }
+                break;
+            case PING:
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (writeLock) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                        out.flush();
+                    }
+                }
+                break;
+            case GOAWAY:
+                onGoAway(readInt(payload, 0) & Integer.MAX_VALUE, readInt(payload, 4));
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, readInt(payload, 0) & Integer.MAX_VALUE);
+                break;
+            case PUSH_PROMISE:
+                throw protocolError("Server push was disabled");
+            default:
+                // PRIORITY and unknown frame types are ignored
+                break;
+            }
+        }
+    }
+
+    private void onData(int streamId, int flags, byte[] payload, int length) throws IOException {
+        int offset = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= payload[0] & 0xff;
+            offset++;
+        }
+        Stream stream;
+        int connectionUpdate = 0;
+        int streamUpdate = 0;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            connectionUnacked += length;
+            if (connectionUnacked >= CONNECTION_RECEIVE_WINDOW / 2) {
+                connectionUpdate = connectionUnacked;
+                connectionUnacked = 0;
+            }
+            if (stream != null && (flags & FLAG_END_STREAM) == 0) {
+                stream.unacked += length;
+                if (stream.unacked >= STREAM_RECEIVE_WINDOW / 2) {
+                    streamUpdate = stream.unacked;
+                    stream.unacked = 0;
+                }
+            }
+        }
+        if (connectionUpdate > 0 || streamUpdate > 0) {
+            synchronized (writeLock) {
+                if (connectionUpdate > 0) {
+                    writeWindowUpdate(0, connectionUpdate);
+                }
+                if (streamUpdate > 0) {
+                    writeWindowUpdate(streamId, streamUpdate);
+                }
+                out.flush();
+            }
+        }
+        if (stream != null) {
+            stream.body.write(payload, offset, end - offset);
+            if ((flags & FLAG_END_STREAM) != 0) {
+                complete(stream);
+            }
+        }
+    }
+
+    private void onHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        // the block is decoded even for unknown streams to keep the HPACK table in sync
+        Map<String, String> headers = new HashMap<>();
+        decoder.decode(block, headers);
+        Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+        }
+        if (stream == null) {
+            return;
+        }
+        String status = headers.get(":status");
+        if (stream.status == 0 && status != null) {
+            int code;
+            try {
+                code = Integer.parseInt(status);
+            } catch (NumberFormatException ex) {
+                throw protocolError("Invalid :status " + status);
+            }
+            if (code >= 100 && code < 200) {
+                // interim response
+                return;
+            }
+            stream.status = code;
+        }
+        stream.headers.putAll(headers);
+        if (endStream) {
+            complete(stream);
+        }
+    }
+
+    private void onReset(int streamId, int errorCode) {
+        Stream stream;
+        synchronized (this) {
+            stream = streams.remove(streamId);
+            sending.remove(stream);
+        }
+        if (stream != null) {
+            stream.handler.onFailure(new IOException("Stream reset by server, error code " + errorCode),
+                    errorCode == ERROR_REFUSED_STREAM);
+            listener.onCapacity(this);
+        }
+    }
+
+    private void onSettings(byte[] payload, int length) throws IOException {
+        if (length % 6 != 0) {
+            throw protocolError("Invalid SETTINGS frame");
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE && readInt(payload, i + 2) < 0) {
+                throw protocolError("Invalid initial window size");
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < length; i += 6) {
+                int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                int value = readInt(payload, i + 2);
+                switch (id) {
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += value - initialSendWindow;
+                    }
+                    initialSendWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    maxFrameSize = value;
+                    break;
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    // the encoder never inserts into the dynamic table
+                    break;
+                default:
+                    break;
+                }
+            }
+            ready = true;
+        }
+        synchronized (writeLock) {
+            writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+            writeData();
+        }
+        listener.onCapacity(this);
+    }
+
+    private void onGoAway(int lastStreamId, int errorCode) {
+        List<Stream> refused = new ArrayList<>();
+        synchronized (this) {
+            goingAway = true;
+            for (Iterator<Stream> i = streams.values().iterator(); i.hasNext();) {
+                Stream stream = i.next();
+                if (stream.id > lastStreamId) {
+                    refused.add(stream);
+                    sending.remove(stream);
+                    i.remove();
+                }
+            }
+        }
+        LOG.debug("Server sent GOAWAY, last stream {}, error code {}", lastStreamId, errorCode);
+        for (Stream stream : refused) {
+            stream.handler.onFailure(new IOException("Stream refused by GOAWAY"), true);
+        }
+        closeIfDrained();
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        synchronized (this) {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                }
+            }
+        }
+        synchronized (writeLock) {
+            writeData();
+        }
+    }
+
+    private void complete(Stream stream) {
+        synchronized (this) {
+            if (streams.remove(stream.id) == null) {
+                return;
+            }
+            sending.remove(stream);
+        }
+        stream.handler.onResponse(stream.status, stream.headers, stream.body.toByteArray());
+        listener.onCapacity(this);
+        closeIfDrained();
+    }
+
+    private void closeIfDrained() {
+        boolean drained;
+        synchronized (this) {
+            drained = goingAway && streams.isEmpty();
+        }
+        if (drained) {
+            close();
+        }
+    }
+
+    /**
+     * Writes as much pending request body as the flow control windows allow. Must hold the write lock.
+     */
+    private void writeData() throws IOException {
+        while (true) {
+            Stream stream;
+            int n;
+            boolean last;
+            synchronized (this) {
+                stream = null;
+                n = 0;
+                for (Stream s : sending) {
+                    n = Math.min(Math.min(s.bodyRemaining(), s.sendWindow), Math.min(connectionSendWindow, maxFrameSize));
+                    if (n > 0) {
+                        stream = s;
+                        break;
+                    }
+                }
+                if (stream == null) {
+                    break;
+                }
+                stream.sendWindow -= n;
+                connectionSendWindow -= n;
+                last = stream.bodyRemaining() == n;
+                if (last) {
+                    sending.remove(stream);
+                }
+            }
+            writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, stream.requestBody, stream.bodyOffset, n);
+            stream.bodyOffset += n;
+        }
+        out.flush();
+    }
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int flags = endStream ? FLAG_END_STREAM : 0;
+        int n = Math.min(block.length, maxFrameSize);
+        writeFrame(HEADERS, flags | (n == block.length ? FLAG_END_HEADERS : 0), streamId, block, 0, n);
+        for (int offset = n; offset < block.length; offset += n) {
+            n = Math.min(block.length - offset, maxFrameSize);
+            writeFrame(CONTINUATION, offset + n == block.length ? FLAG_END_HEADERS : 0, streamId, block, offset, n);
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeGoAway(int errorCode) throws IOException {
+        byte[] payload = new byte[8];
+        putInt(payload, 4, errorCode);
+        writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        out.write(header);
+        out.write(payload, offset, length);
+    }
+
+    private IOException protocolError(String message) {
+        try {
+            synchronized (writeLock) {
+                writeGoAway(ERROR_PROTOCOL);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            LOG.debug("Cannot send GOAWAY", ex);
+        }
+        return new IOException("HTTP/2 protocol error: " + message);
+    }
+
+    private void abort() {
+        Socket s;
+        synchronized (this) {
+            closed = true;
+            s = socket;
+        }
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                LOG.debug("Cannot close socket", ex);
+            }
+        }
+    }
+
+    private void shutdown(IOException cause) {
+        List<Stream> failed;
+        synchronized (this) {
+            closed = true;
+            failed = new ArrayList<>(streams.values());
+            streams.clear();
+            sending.clear();
+        }
+        abort();
+        IOException ex = cause != null ? cause : new IOException("HTTP/2 connection closed");
+        for (Stream stream : failed) {
+            stream.handler.onFailure(ex, false);
+        }
+        listener.onClosed(this, cause);
+    }
+
+    private static void putSetting(byte[] bytes, int offset, int id, int value) {
+        bytes[offset] = (byte) (id >>> 8);
+        bytes[offset + 1] = (byte) id;
+        putInt(bytes, offset + 2, value);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static final class Stream {
+
+        private final int id;
+
+        private final byte[] requestBody;
+
+        private final Handler handler;
+
+        private final Map<String, String> headers = new HashMap<>();
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private int bodyOffset;
+
+        private int sendWindow;
+
+        private int unacked;
+
+        private int status;
+
+        Stream(int id, byte[] requestBody, Handler handler, int sendWindow) {
+            this.id = id;
+            this.requestBody = requestBody;
+            this.handler = handler;
+            this.sendWindow = sendWindow;
+        }
+
+        int bodyRemaining() {
+            return requestBody.length - bodyOffset;
+        }
+
+    }
+
+}
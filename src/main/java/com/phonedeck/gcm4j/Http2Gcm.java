@@ -0,0 +1,315 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * GCM client that multiplexes concurrent requests as HTTP/2 streams over a few long-lived connections. A new
+ * connection is only opened when every open one is at the server's SETTINGS_MAX_CONCURRENT_STREAMS limit, up to
+ * {@link GcmConfig#getHttp2Connections()}; further requests wait until a stream is freed.
+ * <p>
+ * https endpoints negotiate HTTP/2 with ALPN, which requires Java 9 or a late Java 8 update. http endpoints use
+ * cleartext HTTP/2 with prior knowledge (h2c). The configured {@link ConnectionFactory} and executor are not used by
+ * this client; call {@link #close()} to release its connections. Cancelling a request, or reaching its deadline, resets
+ * its stream and leaves the connection open.
+ */
+public class Http2Gcm extends AbstractDefaultGcm implements Closeable {
+
+    private static final int DEFAULT_CONNECTIONS = 2;
+
+    private final String host;
+
+    private final int port;
+
+    private final SSLContext sslContext;
+
+    private final int maxConnections;
+
+    private final byte[] commonHeaders;
+
+    private final Http2Connection.Listener listener = new ConnectionListener();
+
+    private final List<Http2Connection> connections = new ArrayList<>();
+
+    private final Deque<Call> queue = new ArrayDeque<>();
+
+    /** Threads running the connections, which complete the requests. */
+    private final Set<Thread> threads = new HashSet<>();
+
+    private int connecting;
+
+    private boolean closed;
+
+    public Http2Gcm(GcmConfig gcmConfig) {
+        super(gcmConfig);
+        URL url = getGcmUrl();
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        this.host = url.getHost();
+        this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        this.maxConnections = gcmConfig.getHttp2Connections() > 0 ? gcmConfig.getHttp2Connections() : DEFAULT_CONNECTIONS;
+        try {
+            this.sslContext = !secure ? null
+                    : gcmConfig.getSslContext() != null ? gcmConfig.getSslContext() : SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new GcmException("Cannot initialize the HTTP/2 transport", ex);
+        }
+
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        Hpack.writeIndexed(headers, Hpack.METHOD_POST);
+        Hpack.writeIndexed(headers, secure ? Hpack.SCHEME_HTTPS : Hpack.SCHEME_HTTP);
+        Hpack.writeLiteral(headers, Hpack.PATH, url.getFile().isEmpty() ? "/" : url.getFile(), false);
+        Hpack.writeLiteral(headers, Hpack.AUTHORITY, host + (url.getPort() != -1 ? ":" + port : ""), false);
+        Hpack.writeLiteral(headers, Hpack.CONTENT_TYPE, "application/json", false);
+        this.commonHeaders = headers.toByteArray();
+    }
+
+    @Override
+    protected ListenableFuture<GcmResponse> executeRequestFuture(GcmRequest request) {
+        SettableFuture<GcmResponse> result = SettableFuture.create();
+        try {
+            byte[] content = encodeRequest(request);
+            ByteArrayOutputStream headers = new ByteArrayOutputStream(commonHeaders.length + 64);
+            headers.write(commonHeaders, 0, commonHeaders.length);
+            Hpack.writeLiteral(headers, Hpack.CONTENT_LENGTH, Integer.toString(content.length), false);
+            Hpack.writeLiteral(headers, Hpack.AUTHORIZATION, getAuthorization(request), true);
+            final Call call = new Call(request, headers.toByteArray(), content, result);
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (call.result.isCancelled()) {
+                        cancel(call);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            enqueue(call);
+        } catch (GcmException ex) {
+            result.setException(ex);
+        } catch (Exception ex) {
+            result.setException(new GcmException("An error occurred when submitting the messsage", ex));
+        }
+        return result;
+    }
+
+    /**
+     * Does not wait on a connection thread, which may be the one completing the request.
+     */
+    @Override
+    protected ListenableFuture<GcmResponse> executeRequestInCaller(GcmRequest request) {
+        synchronized (this) {
+            if (threads.contains(Thread.currentThread())) {
+                return executeLimited(request);
+            }
+        }
+        return super.executeRequestInCaller(request);
+    }
+
+    /**
+     * Closes every connection. Requests in flight or waiting for a stream fail with a {@link GcmException}.
+     */
+    @Override
+    public void close() {
+        List<Http2Connection> open;
+        List<Call> waiting;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<>(connections);
+            waiting = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for (Http2Connection connection : open) {
+            connection.close();
+        }
+        for (Call call : waiting) {
+            call.result.setException(new GcmException("The client has been closed"));
+        }
+    }
+
+    private void enqueue(Call call) {
+        synchronized (this) {
+            if (closed) {
+                call.result.setException(new GcmException("The client has been closed"));
+                return;
+            }
+            queue.add(call);
+        }
+        dispatch();
+    }
+
+    /**
+     * Removes a cancelled call from the queue, or resets its stream.
+     */
+    private void cancel(Call call) {
+        synchronized (this) {
+            if (queue.remove(call)) {
+                return;
+            }
+        }
+        Http2Connection connection = call.connection;
+        if (connection != null) {
+            connection.cancel(call);
+        }
+    }
+
+    /**
+     * Starts as many waiting calls as the open connections accept, and opens a new connection if they are all busy.
+     */
+    private void dispatch() {
+        List<Http2Connection> targets = new ArrayList<>();
+        List<Call> calls = new ArrayList<>();
+        synchronized (this) {
+            while (!queue.isEmpty()) {
+                Http2Connection target = null;
+                int best = 0;
+                for (Http2Connection connection : connections) {
+                    int available = connection.available();
+                    if (available > best) {
+                        best = available;
+                        target = connection;
+                    }
+                }
+                if (target != null && target.reserve()) {
+                    targets.add(target);
+                    calls.add(queue.poll());
+                } else {
+                    if (!closed && connecting == 0 && connections.size() < maxConnections) {
+                        openConnection();
+                    }
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < calls.size(); i++) {
+            Call call = calls.get(i);
+            call.connection = targets.get(i);
+            call.connection.send(call.headers, call.content, call);
+            if (call.result.isCancelled()) {
+                // cancelled while the stream was opened
+                call.connection.cancel(call);
+            }
+        }
+    }
+
+    private void openConnection() {
+        final Http2Connection connection = new Http2Connection(host, port, sslContext, listener);
+        connections.add(connection);
+        connecting++;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.run();
+                } finally {
+                    synchronized (Http2Gcm.this) {
+                        threads.remove(Thread.currentThread());
+                    }
+                }
+            }
+        }, "gcm4j-http2-" + host);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private final class ConnectionListener implements Http2Connection.Listener {
+
+        private final Set<Http2Connection> established = new HashSet<>();
+
+        @Override
+        public void onCapacity(Http2Connection connection) {
+            synchronized (Http2Gcm.this) {
+                if (connection.isReady() && established.add(connection)) {
+                    connecting--;
+                }
+            }
+            dispatch();
+        }
+
+        @Override
+        public void onClosed(Http2Connection connection, IOException cause) {
+            List<Call> failed = new ArrayList<>();
+            synchronized (Http2Gcm.this) {
+                connections.remove(connection);
+                if (!established.remove(connection)) {
+                    connecting--;
+                    // the connection could not be established, fail the waiting calls instead of reconnecting
+                    // in a loop while the server is unreachable
+                    if (connections.isEmpty()) {
+                        failed.addAll(queue);
+                        queue.clear();
+                    }
+                }
+            }
+            for (Call call : failed) {
+                call.result.setException(new GcmNetworkException("Error connecting to GCM", cause));
+            }
+            dispatch();
+        }
+
+    }
+
+    private final class Call implements Http2Connection.Handler {
+
+        private final GcmRequest request;
+
+        private final byte[] headers;
+
+        private final byte[] content;
+
+        private final SettableFuture<GcmResponse> result;
+
+        /** Connection the call was sent on. */
+        private volatile Http2Connection connection;
+
+        Call(GcmRequest request, byte[] headers, byte[] content, SettableFuture<GcmResponse> result) {
+            this.request = request;
+            this.headers = headers;
+            this.content = content;
+            this.result = result;
+        }
+
+        @Override
+        public void onResponse(int status, Map<String, String> responseHeaders, byte[] body) {
+            Long retryAfter = parseRetryAfter(responseHeaders.get("retry-after"));
+            if (status == 200) {
+                try {
+                    result.set(decodeResponse(request, body, retryAfter));
+                } catch (IOException ex) {
+                    result.setException(new GcmNetworkException("Error communicating with GCM", ex));
+                }
+            } else {
+                result.setException(networkException(status, new String(body, StandardCharsets.UTF_8), retryAfter, null));
+            }
+        }
+
+        @Override
+        public void onFailure(IOException ex, boolean unprocessed) {
+            if (result.isCancelled()) {
+                return;
+            }
+            if (unprocessed) {
+                enqueue(this);
+            } else {
+                result.setException(new GcmNetworkException("Error communicating with GCM", ex));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incremental decoder of an HTTP/1.1 response. Bytes can be fed in arbitrary pieces as they arrive
+ * from the network; the decoder handles fixed length, chunked and close-delimited bodies. The body is collected in
+ * pooled buffers, {@link #release()} gives them back.
+ */
+final class HttpResponseDecoder {
+
+    private enum State {
+        STATUS_LINE, HEADERS, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE
+    }
+
+    private State state = State.STATUS_LINE;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+    private final PooledOutputStream body;
+
+    private final Map<String, String> headers = new HashMap<>();
+
+    private int status;
+
+    private long remaining;
+
+    private boolean started;
+
+    private boolean closeDelimited;
+
+    HttpResponseDecoder(BufferPool pool) {
+        this.body = new PooledOutputStream(pool, 1024);
+    }
+
+    /**
+     * Feeds the readable bytes of the buffer to the decoder. Bytes following the end of the response are left in
+     * the buffer.
+     * @param buffer buffer in read mode
+     * @return true if the response is complete
+     * @throws IOException when the response is malformed
+     */
+    boolean feed(ByteBuffer buffer) throws IOException {
+        started |= buffer.hasRemaining();
+        while (state != State.DONE && buffer.hasRemaining()) {
+            switch (state) {
+            case STATUS_LINE:
+            case HEADERS:
+            case CHUNK_SIZE:
+            case CHUNK_END:
+            case TRAILERS:
+                String str = readLine(buffer);
+                if (str != null) {
+                    onLine(str);
+                }
+                break;
+            case FIXED_BODY:
+            case CHUNK_DATA:
+                int n = (int) Math.min(remaining, buffer.remaining());
+                copy(buffer, n);
+                remaining -= n;
+                if (remaining == 0) {
+                    state = state == State.FIXED_BODY ? State.DONE : State.CHUNK_END;
+                }
+                break;
+            case UNTIL_CLOSE:
+                copy(buffer, buffer.remaining());
+                break;
+            default:
+                throw new IllegalStateException(state.toString());
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Signals that the peer closed the connection.
+     * @return true if the response is complete
+     * @throws EOFException if the connection was closed before the response was complete
+     */
+    boolean endOfInput() throws EOFException {
+        if (state == State.UNTIL_CLOSE) {
+            state = State.DONE;
+            closeDelimited = true;
+        }
+        if (state != State.DONE) {
+            throw new EOFException("Connection closed before the HTTP response was complete");
+        }
+        return true;
+    }
+
+    /**
+     * Whether any byte of the response has been received.
+     * @return true if the server started to respond
+     */
+    boolean hasStarted() {
+        return started;
+    }
+
+    /**
+     * Whether the connection can be reused for another request after this response.
+     * @return true if the server keeps the connection open
+     */
+    boolean isKeepAlive() {
+        return state == State.DONE && !closeDelimited && !"close".equalsIgnoreCase(getHeader("Connection"));
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * Value of a response header.
+     * @param name case insensitive header name
+     * @return value of the header, or null if not present
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    byte[] getBody() {
+        return Arrays.copyOf(body.buffer(), body.size());
+    }
+
+    /**
+     * Buffer holding the body, valid until the decoder is released.
+     * @return the buffer, the body starts at index 0
+     */
+    byte[] getBodyBuffer() {
+        return body.buffer();
+    }
+
+    int getBodyLength() {
+        return body.size();
+    }
+
+    /**
+     * Gives the body buffer back to the pool. The body cannot be read afterwards.
+     */
+    void release() {
+        body.release();
+    }
+
+    private void copy(ByteBuffer buffer, int n) {
+        if (buffer.hasArray()) {
+            body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+            buffer.position(buffer.position() + n);
+        } else {
+            byte[] tmp = new byte[n];
+            buffer.get(tmp);
+            body.write(tmp, 0, n);
+        }
+    }
+
+    private String readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                String str = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+                line.reset();
+                return str.endsWith("\r") ? str.substring(0, str.length() - 1) : str;
+            }
+            if (line.size() > 8192) {
+                throw new IOException("HTTP header line too long");
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    private void onLine(String str) throws IOException {
+        switch (state) {
+        case STATUS_LINE:
+            String[] parts = str.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed HTTP status line: " + str);
+            }
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed HTTP status line: " + str, ex);
+            }
+            state = State.HEADERS;
+            break;
+        case HEADERS:
+            if (str.isEmpty()) {
+                onHeadersComplete();
+            } else {
+                int colon = str.indexOf(':');
+                if (colon <= 0) {
+                    throw new IOException("Malformed HTTP header: " + str);
+                }
+                headers.put(str.substring(0, colon).trim().toLowerCase(), str.substring(colon + 1).trim());
+            }
+            break;
+        case CHUNK_SIZE:
+            int semicolon = str.indexOf(';');
+            String size = (semicolon >= 0 ? str.substring(0, semicolon) : str).trim();
+            try {
+                remaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed chunk size: " + str, ex);
+            }
+            state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+            break;
+        case CHUNK_END:
+            state = State.CHUNK_SIZE;
+            break;
+        case TRAILERS:
+            if (str.isEmpty()) {
+                state = State.DONE;
+            }
+            break;
+        default:
+            throw new IllegalStateException(state.toString());
+        }
+    }
+
+    private void onHeadersComplete() throws IOException {
+        if (status >= 100 && status < 200) {
+            // interim response, the final one follows
+            headers.clear();
+            state = State.STATUS_LINE;
+            return;
+        }
+        String contentLength = getHeader("Content-Length");
+        if (status == 204 || status == 304) {
+            state = State.DONE;
+        } else if ("chunked".equalsIgnoreCase(getHeader("Transfer-Encoding"))) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed Content-Length: " + contentLength, ex);
+            }
+            state = remaining == 0 ? State.DONE : State.FIXED_BODY;
+        } else {
+            state = State.UNTIL_CLOSE;
+        }
+    }
+
+}
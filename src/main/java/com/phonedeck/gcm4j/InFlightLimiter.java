@@ -0,0 +1,245 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of requests and payload bytes in flight. A request that alone exceeds the byte limit is admitted
+ * when nothing else is in flight, so it cannot block forever. Requests that cannot block a thread wait in a queue and
+ * are admitted in order as slots are released, before any other request.
+ */
+final class InFlightLimiter {
+
+    /** Rough size of the JSON keys and punctuation of a request. */
+    private static final int REQUEST_OVERHEAD = 128;
+
+    private final int maxRequests;
+
+    private final long maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    private int requests;
+
+    private long bytes;
+
+    /** Requests waiting for a slot without a thread, in arrival order. */
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+
+    /** Tasks of the waiters given a slot, run outside the lock. */
+    private final Queue<Runnable> admitted = new ConcurrentLinkedQueue<>();
+
+    /** Number of pending calls to {@link #drain()}, the first one running the admitted tasks for all. */
+    private final AtomicInteger drains = new AtomicInteger();
+
+    InFlightLimiter(int maxRequests, long maxBytes) {
+        this.maxRequests = maxRequests;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a slot if the limits allow it.
+     * @param size estimated payload size of the request
+     * @return true if the request was admitted
+     */
+    boolean tryAcquire(long size) {
+        lock.lock();
+        try {
+            if (!waiters.isEmpty() || !fits(size)) {
+                return false;
+            }
+            requests++;
+            bytes += size;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot if the limits allow it, or else queues the task to be run once a slot has been taken for it. The
+     * task runs on the thread releasing the slot, and must release its own slot when done.
+     * @param size estimated payload size of the request
+     * @param task run with the slot taken, if the request had to wait
+     * @return true if the request was admitted at once, the task not being queued
+     */
+    boolean tryAcquire(long size, Runnable task) {
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && fits(size)) {
+                requests++;
+                bytes += size;
+                return true;
+            }
+            waiters.add(new Waiter(size, task));
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a task queued by {@link #tryAcquire(long, Runnable)} that has not been given a slot yet.
+     * @param task the queued task
+     * @return true if the task was removed, false if it was given a slot or not queued
+     */
+    boolean remove(Runnable task) {
+        lock.lock();
+        try {
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+                if (it.next().task == task) {
+                    it.remove();
+                    // the ones behind may fit now
+                    admitWaiters();
+                    released.signalAll();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+            drain();
+        }
+    }
+
+    /**
+     * Takes a slot, waiting until the limits allow it.
+     * @param size estimated payload size of the request
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void acquire(long size) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!waiters.isEmpty() || !fits(size)) {
+                released.await();
+            }
+            requests++;
+            bytes += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(long size) {
+        lock.lock();
+        try {
+            requests--;
+            bytes -= size;
+            admitWaiters();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    /**
+     * Gives slots to the waiters at the head of the queue while the limits allow it. Called with the lock held.
+     */
+    private void admitWaiters() {
+        Waiter waiter;
+        while ((waiter = waiters.peek()) != null && fits(waiter.size)) {
+            waiters.poll();
+            requests++;
+            bytes += waiter.size;
+            admitted.add(waiter.task);
+        }
+    }
+
+    /**
+     * Runs the tasks of the admitted waiters. A task that completes its request at once releases its slot from within
+     * the loop, the admitted tasks are then run by the outer call instead of recursively.
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            Runnable task;
+            while ((task = admitted.poll()) != null) {
+                task.run();
+            }
+        } while (drains.decrementAndGet() != 0);
+    }
+
+    int getRequests() {
+        lock.lock();
+        try {
+            return requests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(long size) {
+        if (maxRequests > 0 && requests >= maxRequests) {
+            return false;
+        }
+        return maxBytes <= 0 || requests == 0 || bytes + size <= maxBytes;
+    }
+
+    /**
+     * Estimates the size of the JSON body of the request without serializing it.
+     * @param request the request
+     * @return estimated size in bytes
+     */
+    static long estimateSize(GcmRequest request) {
+        long size = REQUEST_OVERHEAD;
+        List<String> ids = request.getRegistrationIds();
+        if (ids != null) {
+            for (String id : ids) {
+                size += length(id) + 3;
+            }
+        }
+        size += length(request.getNotificationKey()) + length(request.getNotificationKeyName())
+                + length(request.getCollapseKey()) + length(request.getRestrictedPackageName());
+        size += size(request.getData()) + size(request.getNotification());
+        return size;
+    }
+
+    private static long size(Map<String, String> map) {
+        long size = 0;
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                size += length(entry.getKey()) + length(entry.getValue()) + 6;
+            }
+        }
+        return size;
+    }
+
+    private static int length(String str) {
+        return str != null ? str.length() : 0;
+    }
+
+    private static final class Waiter {
+
+        private final long size;
+
+        private final Runnable task;
+
+        Waiter(long size, Runnable task) {
+            this.size = size;
+            this.task = task;
+        }
+
+    }
+
+}
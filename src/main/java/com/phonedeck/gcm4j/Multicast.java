@@ -0,0 +1,418 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helpers to split and merge multicast requests and their responses.
+ */
+final class Multicast {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Multicast.class);
+
+    /** Maximum number of registration IDs GCM accepts in a request. */
+    static final int MAX_RECIPIENTS = 1000;
+
+    private Multicast() {
+    }
+
+    /**
+     * Copies everything but the registration IDs of a request. Attributes, the payload template and the result listener are copied as well.
+     * @param request the request to copy
+     * @param registrationIds registration IDs of the copy
+     * @return the copy
+     */
+    static GcmRequest copy(GcmRequest request, List<String> registrationIds) {
+        GcmRequest copy = new GcmRequest()
+            .withKey(request.getKey())
+            .withRegistrationIds(registrationIds)
+            .withNotificationKey(request.getNotificationKey())
+            .withNotificationKeyName(request.getNotificationKeyName())
+            .withCollapseKey(request.getCollapseKey())
+            .withData(request.getData() != null ? new LinkedHashMap<>(request.getData()) : null)
+            .withNotification(request.getNotification() != null ? new LinkedHashMap<>(request.getNotification()) : null)
+            .withDelayWhileIdle(request.isDelayWhileIdle())
+            .withTimeToLive(request.getTimeToLive())
+            .withPriority(request.getPriority())
+            .withRestrictedPackageName(request.getRestrictedPackageName())
+            .withDryRun(request.isDryRun());
+        for (Map.Entry<String, Object> entry : request.getAttributes().entrySet()) {
+            copy.setAttribute(entry.getKey(), entry.getValue());
+        }
+        copy.setPayloadTemplate(request.getPayloadTemplate());
+        copy.setResultListener(request.getResultListener());
+        copy.setDeadline(request.getDeadline());
+        return copy;
+    }
+
+    /**
+     * Copies a result, to report it at several positions of a response.
+     * @param result the result to copy
+     * @return the copy
+     */
+    static Result copy(Result result) {
+        Result copy = new Result();
+        copy.setMessageId(result.getMessageId());
+        copy.setCanonicalRegistrationId(result.getCanonicalRegistrationId());
+        copy.setError(result.getError());
+        copy.setRequestedRegistrationId(result.getRequestedRegistrationId());
+        return copy;
+    }
+
+    /**
+     * Key that is equal for requests that only differ in their registration IDs and attributes.
+     * @param request the request
+     * @return the payload key
+     */
+    static Object payloadKey(GcmRequest request) {
+        return Arrays.asList(request.getKey(), request.getNotificationKey(), request.getNotificationKeyName(),
+                request.getCollapseKey(), request.getData(), request.getNotification(), request.isDelayWhileIdle(),
+                request.getTimeToLive(), request.getPriority(), request.getRestrictedPackageName(), request.isDryRun());
+    }
+
+    /**
+     * Response holding a range of the results of a multicast response, with the counters of that range.
+     * @param response the multicast response
+     * @param from index of the first result
+     * @param to index after the last result
+     * @param request the request the slice answers
+     * @return the response slice
+     */
+    static GcmResponse slice(GcmResponse response, int from, int to, GcmRequest request) {
+        GcmResponse slice = new GcmResponse();
+        slice.setMulticastId(response.getMulticastId());
+        slice.setRetryAfter(response.getRetryAfter());
+        slice.setRequest(request);
+        List<Result> results = new ArrayList<>(response.getResults().subList(from, to));
+        slice.setResults(results);
+        count(slice);
+        return slice;
+    }
+
+    /**
+     * Merges the responses of the chunks of a request into one response. Results keep the order of the chunks,
+     * counters are summed and the longest Retry-After wins.
+     * @param request the request that was split
+     * @param responses responses of the chunks, in order
+     * @return the merged response
+     */
+    static GcmResponse merge(GcmRequest request, List<GcmResponse> responses) {
+        GcmResponse merged = new GcmResponse();
+        merged.setRequest(request);
+        merged.setMulticastId(responses.get(0).getMulticastId());
+        for (GcmResponse response : responses) {
+            merged.getResults().addAll(response.getResults());
+            merged.setSuccess(merged.getSuccess() + response.getSuccess());
+            merged.setFailure(merged.getFailure() + response.getFailure());
+            merged.setCanonicalIds(merged.getCanonicalIds() + response.getCanonicalIds());
+            Long retryAfter = response.getRetryAfter();
+            if (retryAfter != null && (merged.getRetryAfter() == null || retryAfter > merged.getRetryAfter())) {
+                merged.setRetryAfter(retryAfter);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Response reporting every registration ID of a request as {@link ResultError#UNAVAILABLE}, used for a chunk that
+     * failed as a whole with a retriable error.
+     * @param request the chunk that failed
+     * @param retryAfter Retry-After of the failure, may be null
+     * @return the response
+     */
+    static GcmResponse unavailable(GcmRequest request, Long retryAfter) {
+        return failed(request, ResultError.UNAVAILABLE, retryAfter);
+    }
+
+    /**
+     * Response reporting every registration ID of a request with the same error. A request without registration IDs,
+     * such as one sent to a notification key, gets a single result without requested registration ID. Results are
+     * passed to the result listener of the request if it has one.
+     * @param request the request that failed
+     * @param error the error of every result
+     * @param retryAfter Retry-After of the failure, may be null
+     * @return the response
+     */
+    static GcmResponse failed(GcmRequest request, ResultError error, Long retryAfter) {
+        GcmResponse response = new GcmResponse();
+        response.setRequest(request);
+        response.setRetryAfter(retryAfter);
+        List<String> ids = request.getRegistrationIds();
+        List<String> requested = ids != null && !ids.isEmpty() ? ids : Arrays.asList((String) null);
+        for (String id : requested) {
+            Result result = new Result();
+            result.setError(error);
+            result.setRequestedRegistrationId(id);
+            if (request.getResultListener() != null) {
+                request.getResultListener().onResult(result);
+            } else {
+                response.getResults().add(result);
+            }
+        }
+        response.setFailure(requested.size());
+        return response;
+    }
+
+    /**
+     * Sets the success, failure and canonical ID counters of the response from its results.
+     */
+    static void count(GcmResponse response) {
+        int success = 0;
+        int failure = 0;
+        int canonicalIds = 0;
+        for (Result result : response.getResults()) {
+            if (result.isError()) {
+                failure++;
+            } else {
+                success++;
+            }
+            if (result.getCanonicalRegistrationId() != null) {
+                canonicalIds++;
+            }
+        }
+        response.setSuccess(success);
+        response.setFailure(failure);
+        response.setCanonicalIds(canonicalIds);
+    }
+
+    /**
+     * Maps the positions of the registration IDs of a request to the IDs actually sent, and merges the results of these
+     * back into a response with a result at every position. A position is either sent to an ID, several positions
+     * possibly sharing one, or answered without sending with a given result. The result of an ID sent for a different
+     * requested ID is reported under the requested ID, with the sent ID as canonical ID.
+     */
+    static final class Remap {
+
+        private static final int SUCCESS = 0;
+
+        private static final int FAILURE = 1;
+
+        private static final int CANONICAL = 2;
+
+        private final GcmRequest request;
+
+        /** Position of each requested ID among the IDs sent, -1 if answered without sending. */
+        private final int[] positions;
+
+        /** Results of the positions answered without sending. */
+        private final Result[] answered;
+
+        private final List<String> sentIds;
+
+        /** Index of each sent ID. */
+        private final Map<String, Integer> sent;
+
+        /** Counters of the results passed to the listener of the request besides those counted by the response. */
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(3);
+
+        /** Requested IDs of each sent ID, for the listener of the request. */
+        private Map<String, List<String>> requested;
+
+        /**
+         * Creates the mapping, every position being then set with {@link #send(int, String)} or
+         * {@link #answer(int, Result)}.
+         * @param request the request, with registration IDs
+         */
+        Remap(GcmRequest request) {
+            int size = request.getRegistrationIds().size();
+            this.request = request;
+            this.positions = new int[size];
+            this.answered = new Result[size];
+            this.sentIds = new ArrayList<>(size);
+            this.sent = new HashMap<>(size * 2);
+        }
+
+        /**
+         * Sends a position to an ID, an ID being sent once whatever the number of its positions.
+         * @param position position in the registration IDs of the request
+         * @param id the ID to send
+         */
+        void send(int position, String id) {
+            Integer index = sent.get(id);
+            if (index == null) {
+                index = sentIds.size();
+                sentIds.add(id);
+                sent.put(id, index);
+            }
+            positions[position] = index;
+        }
+
+        /**
+         * Answers a position without sending it.
+         * @param position position in the registration IDs of the request
+         * @param result result of the position
+         */
+        void answer(int position, Result result) {
+            positions[position] = -1;
+            answered[position] = result;
+        }
+
+        /**
+         * @return the IDs to send, in the order of their first position
+         */
+        List<String> getSentIds() {
+            return sentIds;
+        }
+
+        /**
+         * @return whether the sent IDs differ from the registration IDs of the request
+         */
+        boolean isChanged() {
+            List<String> ids = request.getRegistrationIds();
+            if (sentIds.size() != ids.size()) {
+                return true;
+            }
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] != i || !sentIds.get(i).equals(ids.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Passes the results of the positions answered without sending to the listener of the request.
+         */
+        void reportAnswered() {
+            for (Result result : answered) {
+                if (result != null) {
+                    request.getResultListener().onResult(result);
+                }
+            }
+        }
+
+        /**
+         * Passes the result of a sent ID to the listener of the request, once per position of the ID.
+         * @param result result of a sent ID
+         */
+        void report(Result result) {
+            String id = result.getRequestedRegistrationId();
+            List<String> ids = id != null ? requested().get(id) : null;
+            if (ids == null) {
+                request.getResultListener().onResult(result);
+                return;
+            }
+            // counted by the response once, without the canonical ID set for a replaced ID
+            boolean counted = result.getCanonicalRegistrationId() != null;
+            for (int i = 0; i < ids.size(); i++) {
+                // the last position gets the result itself, once it has been copied for the others
+                Result copy = i < ids.size() - 1 ? copy(result) : result;
+                restore(copy, ids.get(i), id);
+                request.getResultListener().onResult(copy);
+                if (i > 0) {
+                    counters.incrementAndGet(copy.isError() ? FAILURE : SUCCESS);
+                }
+                if (copy.getCanonicalRegistrationId() != null && (i > 0 || !counted)) {
+                    counters.incrementAndGet(CANONICAL);
+                }
+            }
+        }
+
+        private synchronized Map<String, List<String>> requested() {
+            if (requested == null) {
+                requested = new HashMap<>(sentIds.size() * 2);
+                for (int i = 0; i < positions.length; i++) {
+                    if (positions[i] >= 0) {
+                        String id = sentIds.get(positions[i]);
+                        List<String> ids = requested.get(id);
+                        if (ids == null) {
+                            ids = new ArrayList<>(1);
+                            requested.put(id, ids);
+                        }
+                        ids.add(request.getRegistrationIds().get(i));
+                    }
+                }
+            }
+            return requested;
+        }
+
+        /**
+         * Whether the response has a result for every sent ID, or its results were passed to the listener.
+         * @param response response of the sent IDs
+         * @return false, after logging the protocol error, if results are missing or extra
+         */
+        boolean accepts(GcmResponse response) {
+            if (request.getResultListener() != null || response.getResults().size() == sentIds.size()) {
+                return true;
+            }
+            LOG.warn("Protocol error: {} results for {} registration IDs", response.getResults().size(), sentIds.size());
+            return false;
+        }
+
+        /**
+         * Response of the request, with a result at every position. With a listener, the results were reported by
+         * {@link #report(Result)} and {@link #reportAnswered()}, and only the counters are set.
+         * @param response response of the sent IDs, null if none was sent
+         * @return the merged response, or the response itself if it does not have a result for every sent ID
+         */
+        GcmResponse merge(GcmResponse response) {
+            if (response != null && !accepts(response)) {
+                return response;
+            }
+            GcmResponse merged = new GcmResponse();
+            merged.setRequest(request);
+            if (response != null) {
+                merged.setMulticastId(response.getMulticastId());
+                merged.setRetryAfter(response.getRetryAfter());
+            }
+            if (request.getResultListener() != null) {
+                if (response != null) {
+                    merged.setSuccess(response.getSuccess() + counters.get(SUCCESS));
+                    merged.setFailure(response.getFailure() + counters.get(FAILURE));
+                    merged.setCanonicalIds(response.getCanonicalIds() + counters.get(CANONICAL));
+                }
+                for (Result result : answered) {
+                    if (result != null) {
+                        merged.setSuccess(merged.getSuccess() + (result.isError() ? 0 : 1));
+                        merged.setFailure(merged.getFailure() + (result.isError() ? 1 : 0));
+                        merged.setCanonicalIds(merged.getCanonicalIds() + (result.getCanonicalRegistrationId() != null ? 1 : 0));
+                    }
+                }
+                return merged;
+            }
+            int[] uses = new int[sentIds.size()];
+            for (int position : positions) {
+                if (position >= 0) {
+                    uses[position]++;
+                }
+            }
+            Result[] results = new Result[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] < 0) {
+                    results[i] = answered[i];
+                } else {
+                    Result result = response.getResults().get(positions[i]);
+                    // a shared result is copied for each position, as it is reported under each requested ID
+                    results[i] = uses[positions[i]] > 1 ? copy(result) : result;
+                    restore(results[i], request.getRegistrationIds().get(i), sentIds.get(positions[i]));
+                }
+            }
+            merged.setResults(new ArrayList<>(Arrays.asList(results)));
+            count(merged);
+            return merged;
+        }
+
+        /**
+         * Reports the result of an ID sent for another requested ID under the requested one, with the sent ID as
+         * canonical ID.
+         */
+        private static void restore(Result result, String requested, String sent) {
+            if (!requested.equals(sent)) {
+                result.setRequestedRegistrationId(requested);
+                if (result.getCanonicalRegistrationId() == null) {
+                    result.setCanonicalRegistrationId(sent);
+                }
+            }
+        }
+
+    }
+
+}
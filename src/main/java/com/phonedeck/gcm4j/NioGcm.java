@@ -0,0 +1,372 @@
+package com.phonedeck.gcm4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * GCM client that sends requests over non-blocking sockets. A single event loop thread drives every in-flight
+ * request, so the number of concurrent sends is bounded by sockets rather than by threads. The configured
+ * {@link ConnectionFactory} and executor are not used by this client, nor are the connect and read timeouts: a hung
+ * request is bounded by its deadline, and cancelling it closes its connection.
+ * <p>
+ * The client owns its event loop thread, call {@link #close()} to release it.
+ */
+public class NioGcm extends AbstractDefaultGcm implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NioGcm.class);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final Selector selector;
+
+    private final Thread eventLoop;
+
+    private final Queue<Exchange> pending = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Exchange> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final SSLContext sslContext;
+
+    private final String host;
+
+    private final int port;
+
+    private final boolean secure;
+
+    private volatile boolean closed;
+
+    public NioGcm(GcmConfig gcmConfig) {
+        super(gcmConfig);
+        URL url = getGcmUrl();
+        this.secure = "https".equalsIgnoreCase(url.getProtocol());
+        this.host = url.getHost();
+        this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        try {
+            this.sslContext = gcmConfig.getSslContext() != null ? gcmConfig.getSslContext() : SSLContext.getDefault();
+            this.selector = Selector.open();
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            throw new GcmException("Cannot initialize the NIO transport", ex);
+        }
+        this.eventLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "gcm4j-nio");
+        this.eventLoop.setDaemon(true);
+        this.eventLoop.start();
+    }
+
+    /**
+     * Does not wait on the event loop, which would never complete the request.
+     */
+    @Override
+    protected ListenableFuture<GcmResponse> executeRequestInCaller(GcmRequest request) {
+        if (Thread.currentThread() == eventLoop) {
+            return executeLimited(request);
+        }
+        return super.executeRequestInCaller(request);
+    }
+
+    @Override
+    protected ListenableFuture<GcmResponse> executeRequestFuture(GcmRequest request) {
+        SettableFuture<GcmResponse> result = SettableFuture.create();
+        if (closed) {
+            result.setException(new GcmException("The client has been closed"));
+            return result;
+        }
+        try {
+            final Exchange exchange = new Exchange(request, encodeHttpRequest(request), result);
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (exchange.result.isCancelled()) {
+                        // aborted by the event loop, which owns the connection
+                        cancelled.add(exchange);
+                        selector.wakeup();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            pending.add(exchange);
+            if (closed && pending.remove(exchange)) {
+                // closed meanwhile, the event loop may have drained the queue already
+                exchange.fail(new GcmException("The client has been closed"));
+                return result;
+            }
+            selector.wakeup();
+        } catch (GcmException ex) {
+            result.setException(ex);
+        } catch (Exception ex) {
+            result.setException(new GcmException("An error occurred when submitting the messsage", ex));
+        }
+        return result;
+    }
+
+    /**
+     * Stops the event loop. Requests still in flight fail with a {@link GcmException}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private PooledOutputStream encodeHttpRequest(GcmRequest request) throws IOException {
+        int length = contentLength(request);
+        URL url = getGcmUrl();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        String head = "POST " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + (url.getPort() != -1 ? ":" + port : "") + "\r\n"
+                + "Authorization: " + getAuthorization(request) + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        PooledOutputStream out = new PooledOutputStream(getBufferPool(), headBytes.length + length);
+        try {
+            out.write(headBytes);
+            writeContent(request, out);
+        } catch (IOException | RuntimeException ex) {
+            out.release();
+            throw ex;
+        }
+        return out;
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select();
+                Exchange exchange;
+                while ((exchange = pending.poll()) != null) {
+                    exchange.start();
+                }
+                while ((exchange = cancelled.poll()) != null) {
+                    exchange.fail(new CancellationException());
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid()) {
+                        ((Exchange) key.attachment()).advance();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            LOG.error("NIO event loop failed", ex);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        closed = true;
+        GcmException ex = new GcmException("The client has been closed");
+        for (SelectionKey key : selector.keys()) {
+            ((Exchange) key.attachment()).fail(ex);
+        }
+        Exchange exchange;
+        while ((exchange = pending.poll()) != null) {
+            exchange.fail(ex);
+        }
+        while ((exchange = cancelled.poll()) != null) {
+            exchange.fail(ex);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("Cannot close selector", e);
+        }
+    }
+
+    /**
+     * A single request-response exchange over its own connection. Only accessed from the event loop. The buffers
+     * of the exchange go back to the pool when it completes or fails.
+     */
+    private final class Exchange {
+
+        private final GcmRequest request;
+
+        private final PooledOutputStream content;
+
+        private final ByteBuffer out;
+
+        private final SettableFuture<GcmResponse> result;
+
+        private final HttpResponseDecoder decoder = new HttpResponseDecoder(getBufferPool());
+
+        private SocketChannel channel;
+
+        private SelectionKey key;
+
+        private TlsChannel tls;
+
+        private ByteBuffer in;
+
+        private boolean handshaking;
+
+        Exchange(GcmRequest request, PooledOutputStream content, SettableFuture<GcmResponse> result) {
+            this.request = request;
+            this.content = content;
+            this.out = ByteBuffer.wrap(content.buffer(), 0, content.size());
+            this.result = result;
+        }
+
+        void start() {
+            if (result.isCancelled()) {
+                fail(new CancellationException());
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(new InetSocketAddress(host, port))) {
+                    advance();
+                }
+            } catch (Exception ex) {
+                fail(new GcmNetworkException("Error sending HTTP request to GCM", ex));
+            }
+        }
+
+        void advance() {
+            try {
+                if (!channel.isConnected()) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    onConnected();
+                }
+                if (handshaking) {
+                    if (!tls.handshake()) {
+                        key.interestOps(tls.needsWrite() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                        return;
+                    }
+                    handshaking = false;
+                }
+                if (out.hasRemaining() || (tls != null && tls.needsWrite())) {
+                    boolean written = tls != null ? tls.write(out) : channel.write(out) >= 0 && !out.hasRemaining();
+                    if (!written) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                read();
+            } catch (Exception ex) {
+                fail(ex instanceof GcmException ? (GcmException) ex
+                        : new GcmNetworkException("Error communicating with GCM", ex));
+            }
+        }
+
+        private void onConnected() throws IOException {
+            if (secure) {
+                SSLEngine engine = sslContext.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                SSLParameters params = engine.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(params);
+                engine.beginHandshake();
+                tls = new TlsChannel(engine, channel, getBufferPool());
+                handshaking = true;
+            } else {
+                in = ByteBuffer.wrap(getBufferPool().acquire(READ_BUFFER_SIZE));
+            }
+        }
+
+        private void read() throws IOException {
+            while (true) {
+                ByteBuffer buffer;
+                if (tls != null) {
+                    buffer = tls.read();
+                } else {
+                    in.clear();
+                    buffer = null;
+                    if (channel.read(in) >= 0) {
+                        in.flip();
+                        buffer = in;
+                    }
+                }
+                if (buffer == null) {
+                    decoder.endOfInput();
+                    complete();
+                    return;
+                }
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                if (decoder.feed(buffer)) {
+                    complete();
+                    return;
+                }
+            }
+        }
+
+        private void complete() throws IOException {
+            close();
+            Long retryAfter = parseRetryAfter(decoder.getHeader("Retry-After"));
+            try {
+                if (decoder.getStatus() == 200) {
+                    result.set(decodeResponse(request, decoder.getBodyBuffer(), 0, decoder.getBodyLength(), retryAfter));
+                } else {
+                    String body = new String(decoder.getBodyBuffer(), 0, decoder.getBodyLength(), StandardCharsets.UTF_8);
+                    result.setException(networkException(decoder.getStatus(), body, retryAfter, null));
+                }
+            } finally {
+                decoder.release();
+            }
+        }
+
+        void fail(Throwable ex) {
+            close();
+            decoder.release();
+            result.setException(ex);
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    LOG.debug("Cannot close channel", ex);
+                }
+            }
+            content.release();
+            if (tls != null) {
+                tls.release();
+            }
+            if (in != null) {
+                getBufferPool().release(in.array());
+                in = null;
+            }
+        }
+
+    }
+
+}
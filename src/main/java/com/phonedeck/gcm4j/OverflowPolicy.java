@@ -0,0 +1,33 @@
+package com.phonedeck.gcm4j;
+
+/**
+ * What {@link Gcm#send(GcmRequest)} does when the in-flight limits of {@link GcmConfig} are reached.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Blocks the caller until enough in-flight requests complete.
+     * <p>
+     * The thread calling {@link Gcm#send(GcmRequest)} is parked, whichever it is. Do not send with this policy from a
+     * thread completing requests: a callback or listener of a returned future, a {@link GcmBroadcaster}, or a retry
+     * scheduled on the timer. These may run on the event loop of {@link NioGcm} or {@link Http2Gcm}, or on the thread
+     * that would release the limit, so parking them can deadlock the client. Use {@link #REJECT} or
+     * {@link #CALLER_RUNS} when requests are sent from such threads.
+     */
+    BLOCK,
+
+    /**
+     * Fails the returned future immediately with a {@link GcmRejectedException}.
+     */
+    REJECT,
+
+    /**
+     * Sends the request on the caller thread, which only returns when the response is available. The request is not
+     * counted as in-flight.
+     * <p>
+     * On the event loop of {@link NioGcm} or a connection thread of {@link Http2Gcm}, which complete the requests, the
+     * request is sent without waiting for its response.
+     */
+    CALLER_RUNS
+
+}
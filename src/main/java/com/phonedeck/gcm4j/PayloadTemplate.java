@@ -0,0 +1,153 @@
+package com.phonedeck.gcm4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * JSON of a request without its registration IDs, serialized once and shared by the requests that only differ in
+ * their registration IDs, such as the chunks of a large multicast or the batches of a broadcast. Encoding a request
+ * from the template only serializes its registration IDs.
+ */
+final class PayloadTemplate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadTemplate.class);
+
+    private static final byte[] PREFIX = "{\"registration_ids\":[".getBytes(StandardCharsets.US_ASCII);
+
+    /** Members of the serialized object after the opening brace, including the closing one. */
+    private final byte[] members;
+
+    private final Object payloadKey;
+
+    private PayloadTemplate(byte[] members, Object payloadKey) {
+        this.members = members;
+        this.payloadKey = payloadKey;
+    }
+
+    /**
+     * Serializes the request without its registration IDs.
+     * @param request the request
+     * @return the template
+     * @throws IOException when the request cannot be serialized
+     */
+    static PayloadTemplate compile(GcmRequest request) throws IOException {
+        // the copy has its own maps, so the key does not change when the request is modified
+        GcmRequest copy = Multicast.copy(request, new ArrayList<String>());
+        byte[] json = GcmRequestWriter.encode(copy);
+        return new PayloadTemplate(Arrays.copyOfRange(json, 1, json.length), Multicast.payloadKey(copy));
+    }
+
+    /**
+     * Attaches a template to the request, if it has none yet, so the requests copied from it are encoded by splicing
+     * their registration IDs into the shared JSON.
+     * @param request the request
+     */
+    static void attach(GcmRequest request) {
+        if (request.getPayloadTemplate() == null) {
+            try {
+                request.setPayloadTemplate(compile(request));
+            } catch (IOException ex) {
+                // serialized again and reported when sent
+                LOG.debug("Cannot precompile payload", ex);
+            }
+        }
+    }
+
+    /**
+     * Whether the template still matches the request, which may have been modified after the template was attached.
+     * @param request the request
+     * @return true if the template can encode the request
+     */
+    boolean matches(GcmRequest request) {
+        return request.getRegistrationIds() != null && payloadKey.equals(Multicast.payloadKey(request));
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the serialized payload and the sender key, equal for requests that only differ in their
+     * registration IDs and attributes.
+     * @param key the sender key of the request, or null
+     * @return the hash
+     */
+    long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        if (key != null) {
+            for (int i = 0; i < key.length(); i++) {
+                hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+            }
+            // separates the key from the payload
+            hash = (hash ^ 0xffff) * 0x100000001b3L;
+        }
+        for (byte b : members) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the size of the body of a request with the given registration IDs.
+     * @param registrationIds the registration IDs
+     * @return the size in bytes
+     */
+    int length(List<String> registrationIds) {
+        if (registrationIds.isEmpty()) {
+            return members.length + 1;
+        }
+        // commas and closing bracket
+        int length = PREFIX.length + registrationIds.size();
+        for (String id : registrationIds) {
+            length += GcmRequestWriter.stringLength(id);
+        }
+        return length + (members.length > 1 ? 1 : 0) + members.length;
+    }
+
+    /**
+     * Writes the body of a request with the given registration IDs to the stream, which is not closed.
+     * @param registrationIds the registration IDs
+     * @param out the stream
+     * @throws IOException when the stream cannot be written to
+     */
+    void write(List<String> registrationIds, OutputStream out) throws IOException {
+        if (registrationIds.isEmpty()) {
+            // omitted like the serializer does
+            out.write('{');
+            out.write(members);
+            return;
+        }
+        // the IDs are escaped by the generator, so the length is the one computed by the writer
+        JsonGenerator generator = GcmRequestWriter.createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("registration_ids");
+        for (String id : registrationIds) {
+            generator.writeString(id);
+        }
+        generator.writeEndArray();
+        generator.close();
+        if (members.length > 1) {
+            out.write(',');
+        }
+        out.write(members);
+    }
+
+    /**
+     * Encodes a request with the given registration IDs.
+     * @param registrationIds the registration IDs
+     * @return the request body
+     * @throws IOException never thrown in practice
+     */
+    byte[] encode(List<String> registrationIds) throws IOException {
+        GcmRequestWriter.ArrayOutputStream out = new GcmRequestWriter.ArrayOutputStream(length(registrationIds));
+        write(registrationIds, out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,448 @@
+package com.phonedeck.gcm4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection Factory that keeps HTTP/1.1 connections alive in a pool of its own instead of relying on the JVM wide
+ * keep-alive cache of {@link URL#openConnection()}. The pool size, the idle time and the lifetime of the connections
+ * are explicit, TLS sessions are resumed from a dedicated session cache, and connections can be opened ahead of the
+ * first requests with {@link #prewarm(URL, int)}.
+ * <p>
+ * When all connections to a host are in use, {@link HttpURLConnection#connect()} waits until one is released. The pool
+ * is guarded by a {@link ReentrantLock} rather than monitors, so callers running on virtual threads park without
+ * pinning their carrier thread.
+ */
+public class PooledConnectionFactory implements ConnectionFactory, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledConnectionFactory.class);
+
+    private int maxConnections = 20;
+
+    private long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private long maxLifetimeMillis = TimeUnit.MINUTES.toMillis(10);
+
+    private SSLContext sslContext;
+
+    private BufferPool bufferPool = new BufferPool();
+
+    private final Map<String, Route> routes = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    private boolean closed;
+
+    public PooledConnectionFactory withMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public PooledConnectionFactory withIdleTimeout(long idleTimeout, TimeUnit unit) {
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+        return this;
+    }
+
+    public PooledConnectionFactory withMaxLifetime(long maxLifetime, TimeUnit unit) {
+        this.maxLifetimeMillis = unit.toMillis(maxLifetime);
+        return this;
+    }
+
+    /**
+     * Sets the TLS context. TLS sessions are resumed through the client session cache of this context, so it should
+     * not be shared with unrelated clients if its cache is tuned with {@link #withSessionCache(int, int)}.
+     * @param sslContext the TLS context
+     * @return this factory
+     */
+    public PooledConnectionFactory withSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    /**
+     * Sets the pool of the buffers the request and response bodies are read into, which may be shared with the
+     * {@link GcmConfig#withBufferPool(BufferPool) client}.
+     * @param bufferPool the buffer pool
+     * @return this factory
+     */
+    public PooledConnectionFactory withBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * Tunes the TLS session cache used to resume sessions when new connections are opened.
+     * @param size maximum number of cached sessions, 0 for no limit
+     * @param timeoutSeconds lifetime of a cached session, 0 for no limit
+     * @return this factory
+     */
+    public PooledConnectionFactory withSessionCache(int size, int timeoutSeconds) {
+        getSslContext().getClientSessionContext().setSessionCacheSize(size);
+        getSslContext().getClientSessionContext().setSessionTimeout(timeoutSeconds);
+        return this;
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        return new PooledHttpURLConnection(url, this);
+    }
+
+    /**
+     * Opens connections to the host of the URL until the given number of them is idle in the pool, so the first
+     * requests do not pay for TCP and TLS handshakes.
+     * @param url URL of the host to connect to
+     * @param count number of connections to keep ready, capped at the pool size
+     * @return the number of connections opened
+     * @throws IOException when a connection cannot be opened
+     */
+    public int prewarm(URL url, int count) throws IOException {
+        Route route = route(url);
+        List<PooledSocket> opened = new ArrayList<>();
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    if (closed || route.idle.size() + opened.size() >= count || route.total >= maxConnections) {
+                        break;
+                    }
+                    route.total++;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    opened.add(connect(route, 0, 0));
+                } catch (IOException ex) {
+                    lock.lock();
+                    try {
+                        route.total--;
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            for (PooledSocket socket : opened) {
+                release(socket);
+            }
+        }
+        return opened.size();
+    }
+
+    /**
+     * Number of idle connections to the host of the URL.
+     * @param url URL of the host
+     * @return number of pooled connections not in use
+     */
+    public int getIdleConnections(URL url) {
+        lock.lock();
+        try {
+            Route route = routes.get(routeKey(url));
+            return route != null ? route.idle.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the idle connections that exceeded the idle timeout or their lifetime. This happens lazily on every
+     * request as well, calling it is only needed to release sockets during quiet periods.
+     */
+    public void evictExpired() {
+        List<PooledSocket> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Route route : routes.values()) {
+                collectExpired(route, System.currentTimeMillis(), expired);
+            }
+        } finally {
+            lock.unlock();
+        }
+        closeAll(expired);
+    }
+
+    /**
+     * Closes the idle connections. Connections in use are closed when released.
+     */
+    @Override
+    public void close() {
+        List<PooledSocket> idle = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (Route route : routes.values()) {
+                route.total -= route.idle.size();
+                idle.addAll(route.idle);
+                route.idle.clear();
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        closeAll(idle);
+    }
+
+    /**
+     * Takes an idle connection to the host of the URL, or opens a new one if the pool is not full. When the pool is
+     * full, waits for a connection for at most the connect timeout, a request aborted meanwhile not waking it up.
+     */
+    PooledSocket acquire(URL url, int connectTimeout, int readTimeout) throws IOException {
+        Route route = route(url);
+        long remaining = TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        List<PooledSocket> expired = new ArrayList<>();
+        PooledSocket socket = null;
+        try {
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Connection factory has been closed");
+                    }
+                    collectExpired(route, System.currentTimeMillis(), expired);
+                    if (!route.idle.isEmpty()) {
+                        socket = route.idle.pollFirst();
+                        break;
+                    }
+                    if (route.total < maxConnections) {
+                        route.total++;
+                        break;
+                    }
+                    try {
+                        if (connectTimeout <= 0) {
+                            released.await();
+                        } else if (remaining > 0) {
+                            remaining = released.awaitNanos(remaining);
+                        } else {
+                            throw new SocketTimeoutException("Timed out waiting for a pooled connection");
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a pooled connection");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            closeAll(expired);
+        }
+        if (socket != null) {
+            socket.socket.setSoTimeout(readTimeout);
+            return socket;
+        }
+        try {
+            return connect(route, connectTimeout, readTimeout);
+        } catch (IOException | RuntimeException ex) {
+            lock.lock();
+            try {
+                route.total--;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a connection whose last response was read completely to the pool.
+     */
+    void release(PooledSocket socket) {
+        boolean keep;
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            keep = !closed && now - socket.created < maxLifetimeMillis;
+            if (keep) {
+                socket.lastUsed = now;
+                socket.reused = true;
+                socket.route.idle.addFirst(socket);
+            } else {
+                socket.route.total--;
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!keep) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Closes a connection that cannot be reused.
+     */
+    void discard(PooledSocket socket) {
+        lock.lock();
+        try {
+            socket.route.total--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        socket.close();
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private SSLContext getSslContext() {
+        lock.lock();
+        try {
+            if (sslContext == null) {
+                // a dedicated context, so tuning its session cache does not affect the rest of the JVM
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+            }
+            return sslContext;
+        } catch (NoSuchAlgorithmException | KeyManagementException ex) {
+            throw new GcmException("Cannot initialize TLS", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Route route(URL url) {
+        String key = routeKey(url);
+        lock.lock();
+        try {
+            Route route = routes.get(key);
+            if (route == null) {
+                route = new Route(url.getHost(), url.getPort() != -1 ? url.getPort() : url.getDefaultPort(),
+                        "https".equalsIgnoreCase(url.getProtocol()));
+                routes.put(key, route);
+            }
+            return route;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String routeKey(URL url) {
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":"
+                + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    private PooledSocket connect(Route route, int connectTimeout, int readTimeout) throws IOException {
+        Socket socket = route.secure ? getSslContext().getSocketFactory().createSocket() : new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(route.host, route.port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            if (socket instanceof SSLSocket) {
+                SSLSocket sslSocket = (SSLSocket) socket;
+                SSLParameters params = sslSocket.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(params);
+                sslSocket.startHandshake();
+            }
+        } catch (IOException | RuntimeException ex) {
+            socket.close();
+            throw ex;
+        }
+        return new PooledSocket(route, socket);
+    }
+
+    private void collectExpired(Route route, long now, List<PooledSocket> expired) {
+        for (Iterator<PooledSocket> i = route.idle.iterator(); i.hasNext();) {
+            PooledSocket socket = i.next();
+            if (now - socket.lastUsed >= idleTimeoutMillis || now - socket.created >= maxLifetimeMillis) {
+                i.remove();
+                route.total--;
+                expired.add(socket);
+            }
+        }
+    }
+
+    private static void closeAll(List<PooledSocket> sockets) {
+        for (PooledSocket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Connections to a single scheme, host and port. Guarded by the lock of the factory.
+     */
+    private static final class Route {
+
+        private final String host;
+
+        private final int port;
+
+        private final boolean secure;
+
+        /** Idle connections, the most recently used first. */
+        private final Deque<PooledSocket> idle = new ArrayDeque<>();
+
+        /** Idle and leased connections. */
+        private int total;
+
+        Route(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+    }
+
+    /**
+     * A pooled connection.
+     */
+    static final class PooledSocket {
+
+        private final Route route;
+
+        final Socket socket;
+
+        private final long created = System.currentTimeMillis();
+
+        private long lastUsed = created;
+
+        /** Whether the connection served a request before, so the server may have closed it meanwhile. */
+        boolean reused;
+
+        PooledSocket(Route route, Socket socket) {
+            this.route = route;
+            this.socket = socket;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                LOG.debug("Cannot close pooled connection", ex);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * HTTP/1.1 exchange over a connection borrowed from a {@link PooledConnectionFactory}. The request body is buffered
+ * and sent when the response is first asked for; the response is read completely, so the connection goes back to the
+ * pool before the caller processes it. The buffers come from the {@link BufferPool} of the factory.
+ */
+final class PooledHttpURLConnection extends HttpURLConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final PooledConnectionFactory factory;
+
+    private PooledOutputStream requestBody;
+
+    /** Socket borrowed from the pool, taken back atomically as it may be aborted from another thread. */
+    private final AtomicReference<PooledConnectionFactory.PooledSocket> socket = new AtomicReference<>();
+
+    /** Whether {@link #disconnect()} was called, the request not being sent again then. */
+    private volatile boolean aborted;
+
+    private HttpResponseDecoder response;
+
+    private byte[] responseBody;
+
+    private IOException failure;
+
+    PooledHttpURLConnection(URL url, PooledConnectionFactory factory) {
+        super(url);
+        this.factory = factory;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        if (aborted) {
+            throw new IOException("Connection aborted");
+        }
+        socket.set(factory.acquire(url, getConnectTimeout(), getReadTimeout()));
+        connected = true;
+        if (aborted) {
+            // disconnected while the socket was acquired
+            discard();
+            throw new IOException("Connection aborted");
+        }
+    }
+
+    /**
+     * Closes the connection, possibly from another thread to abort the request, which is then not sent again.
+     */
+    @Override
+    public void disconnect() {
+        aborted = true;
+        discard();
+    }
+
+    private void discard() {
+        PooledConnectionFactory.PooledSocket s = socket.getAndSet(null);
+        if (s != null) {
+            factory.discard(s);
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("Output not enabled, call setDoOutput(true)");
+        }
+        if (response != null) {
+            throw new ProtocolException("Cannot write output after reading input");
+        }
+        if (requestBody == null) {
+            requestBody = new PooledOutputStream(factory.getBufferPool(), Math.max(fixedContentLength, 1024));
+        }
+        return requestBody;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        execute();
+        if (responseCode >= 400) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+        }
+        return new ByteArrayInputStream(responseBody);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (response == null || responseCode < 400) {
+            return null;
+        }
+        return new ByteArrayInputStream(responseBody);
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        execute();
+        return responseCode;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            execute();
+        } catch (IOException ex) {
+            return null;
+        }
+        return response.getHeader(name);
+    }
+
+    private void execute() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (response != null) {
+            return;
+        }
+        byte[] buffer = factory.getBufferPool().acquire(READ_BUFFER_SIZE);
+        try {
+            byte[] head = buildHead();
+            while (true) {
+                connect();
+                PooledConnectionFactory.PooledSocket s = socket.get();
+                if (s == null) {
+                    throw new IOException("Connection aborted");
+                }
+                HttpResponseDecoder decoder = new HttpResponseDecoder(factory.getBufferPool());
+                boolean written = false;
+                try {
+                    write(s, head);
+                    written = true;
+                    read(s, buffer, decoder);
+                    responseBody = decoder.getBody();
+                } catch (IOException ex) {
+                    discard();
+                    connected = false;
+                    if (s.reused && !aborted && isStale(ex, written, decoder)) {
+                        // the server closed the idle connection before it got the request, retry on a new one
+                        continue;
+                    }
+                    throw ex;
+                } finally {
+                    decoder.release();
+                }
+                response = decoder;
+                responseCode = decoder.getStatus();
+                break;
+            }
+            PooledConnectionFactory.PooledSocket s = socket.getAndSet(null);
+            if (s != null && response.isKeepAlive()) {
+                factory.release(s);
+            } else if (s != null) {
+                factory.discard(s);
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            factory.getBufferPool().release(buffer);
+            if (requestBody != null) {
+                requestBody.release();
+                requestBody = null;
+            }
+        }
+    }
+
+    /**
+     * Whether a failure on a reused connection shows that the server had closed it before getting the request: the
+     * request could not be written, or the connection was closed or reset without a byte of response. A read timeout
+     * proves nothing, GCM may have processed the request, so it is not sent again.
+     */
+    private static boolean isStale(IOException ex, boolean written, HttpResponseDecoder decoder) {
+        if (!written) {
+            return true;
+        }
+        if (decoder.hasStarted() || ex instanceof SocketTimeoutException) {
+            return false;
+        }
+        return ex instanceof EOFException || ex instanceof SocketException;
+    }
+
+    private void write(PooledConnectionFactory.PooledSocket s, byte[] head) throws IOException {
+        OutputStream os = s.socket.getOutputStream();
+        os.write(head);
+        if (requestBody != null) {
+            os.write(requestBody.buffer(), 0, requestBody.size());
+        }
+        os.flush();
+    }
+
+    private void read(PooledConnectionFactory.PooledSocket s, byte[] buffer, HttpResponseDecoder decoder)
+            throws IOException {
+        InputStream is = s.socket.getInputStream();
+        while (true) {
+            int n = is.read(buffer);
+            if (n < 0) {
+                decoder.endOfInput();
+                break;
+            }
+            if (decoder.feed(ByteBuffer.wrap(buffer, 0, n))) {
+                break;
+            }
+        }
+    }
+
+    private byte[] buildHead() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(getRequestMethod()).append(' ').append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append("\r\n");
+        for (Map.Entry<String, List<String>> entry : getRequestProperties().entrySet()) {
+            for (String value : entry.getValue()) {
+                sb.append(entry.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (doOutput) {
+            sb.append("Content-Length: ").append(requestBody != null ? requestBody.size() : 0).append("\r\n");
+        }
+        sb.append("Connection: keep-alive\r\n\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+}
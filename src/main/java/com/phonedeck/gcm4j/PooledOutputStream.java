@@ -0,0 +1,95 @@
+package com.phonedeck.gcm4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Growable byte array output stream whose buffers come from a {@link BufferPool}. {@link #release()} gives the buffer
+ * back once the content is no longer needed.
+ */
+final class PooledOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+
+    private byte[] buffer;
+
+    private int count;
+
+    PooledOutputStream(BufferPool pool, int initialSize) {
+        this.pool = pool;
+        this.buffer = pool.acquire(initialSize);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Reads the stream to its end.
+     * @param in the stream to read
+     * @throws IOException when the stream cannot be read
+     */
+    void readFrom(InputStream in) throws IOException {
+        while (true) {
+            if (count == buffer.length) {
+                ensureCapacity(1);
+            }
+            int n = in.read(buffer, count, buffer.length - count);
+            if (n < 0) {
+                return;
+            }
+            count += n;
+        }
+    }
+
+    /**
+     * The buffer holding the content, valid until the next write or the release of the stream.
+     * @return the buffer, the content starts at index 0
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int size() {
+        return count;
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    String toString(Charset charset) {
+        return new String(buffer, 0, count, charset);
+    }
+
+    /**
+     * Gives the buffer back to the pool. The stream must not be used afterwards.
+     */
+    void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void ensureCapacity(int len) {
+        if (count + len > buffer.length) {
+            byte[] larger = pool.acquire(Math.max(count + len, buffer.length * 2));
+            System.arraycopy(buffer, 0, larger, 0, count);
+            pool.release(buffer);
+            buffer = larger;
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Filter limiting the rate of the requests of each sender key, so the quota of one GCM project does not throttle the
+ * others. Requests are grouped by {@link GcmRequest#getKey() key}, requests without a key of their own being limited
+ * together as the key of the client. Each key has a token bucket refilled at a steady rate and holding at most a
+ * burst of requests.
+ * <p>
+ * The bucket is kept as the time its next token is due, updated with a compare and set, so taking a token never
+ * locks. A request finding the bucket empty waits in a {@link HashedWheelTimer} for its token instead of parking a
+ * thread. If the wait would exceed the maximum wait the request fails with a {@link GcmRateLimitedException} without
+ * taking a token. {@link AbstractDefaultGcm} takes the token before giving the request an in-flight slot, so a busy key
+ * waits in the timer of the client without holding the slots of the others.
+ */
+public class RateLimitFilter implements GcmFilter {
+
+    private final double defaultRate;
+
+    private final int defaultBurst;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /** Bucket of the requests without a key of their own. */
+    private volatile Bucket clientBucket;
+
+    private long maxWaitNanos = TimeUnit.SECONDS.toNanos(10);
+
+    private HashedWheelTimer timer;
+
+    /**
+     * Creates the filter.
+     * @param requestsPerSecond rate of the requests of each key
+     * @param burst number of requests of a key that can be sent at once
+     */
+    public RateLimitFilter(double requestsPerSecond, int burst) {
+        checkLimit(requestsPerSecond, burst);
+        this.defaultRate = requestsPerSecond;
+        this.defaultBurst = burst;
+    }
+
+    /**
+     * Sets the limit of a key, instead of the default one.
+     * @param key the sender key, or null for the requests without a key of their own
+     * @param requestsPerSecond rate of the requests of the key
+     * @param burst number of requests of the key that can be sent at once
+     * @return this filter
+     */
+    public RateLimitFilter withLimit(String key, double requestsPerSecond, int burst) {
+        checkLimit(requestsPerSecond, burst);
+        Bucket bucket = new Bucket(requestsPerSecond, burst);
+        if (key == null) {
+            clientBucket = bucket;
+        } else {
+            buckets.put(key, bucket);
+        }
+        return this;
+    }
+
+    /**
+     * Sets how long a request may wait for its token before failing, 10 seconds by default.
+     * @param maxWait the maximum wait, 0 to fail requests finding the bucket empty
+     * @param unit unit of the wait
+     * @return this filter
+     */
+    public RateLimitFilter withMaxWait(long maxWait, TimeUnit unit) {
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        return this;
+    }
+
+    /**
+     * Sets the timer the requests wait in when the token was not taken before admission, such as retries of a filter
+     * placed before this one. By default a timer shared by the clients is used.
+     * @param timer the timer
+     * @return this filter
+     */
+    public RateLimitFilter withTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(final GcmRequest request, final FilterChain chain) {
+        long wait;
+        try {
+            wait = reserve(request);
+        } catch (GcmRateLimitedException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+        if (wait == 0) {
+            return chain.next(request);
+        }
+        final SettableFuture<GcmResponse> result = SettableFuture.create();
+        final HashedWheelTimer.Timeout timeout = getTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled()) {
+                    return;
+                }
+                ListenableFuture<GcmResponse> future;
+                try {
+                    future = chain.next(request);
+                } catch (RuntimeException ex) {
+                    future = Futures.immediateFailedFuture(ex);
+                }
+                Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+                    @Override
+                    public void onSuccess(GcmResponse response) {
+                        result.set(response);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        result.setException(t);
+                    }
+                });
+                Cancellation.propagate(result, future);
+            }
+        }, wait, TimeUnit.NANOSECONDS);
+        Futures.addCallback(result, new FutureCallback<GcmResponse>() {
+            @Override
+            public void onSuccess(GcmResponse response) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // cancelled while waiting
+                timeout.cancel();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Takes the token of a request.
+     * @param request the request
+     * @return the time to wait for the token in nanoseconds
+     * @throws GcmRateLimitedException if the wait would exceed the maximum wait, no token being taken
+     */
+    long reserve(GcmRequest request) {
+        long wait = bucket(request.getKey()).reserve(System.nanoTime(), maxWaitNanos);
+        if (wait < 0) {
+            // rounded up, waiting less than the Retry-After would fail again
+            throw new GcmRateLimitedException(TimeUnit.NANOSECONDS.toMillis(-wait) + 1);
+        }
+        return wait;
+    }
+
+    private Bucket bucket(String key) {
+        if (key == null) {
+            Bucket bucket = clientBucket;
+            if (bucket == null) {
+                synchronized (this) {
+                    if (clientBucket == null) {
+                        clientBucket = new Bucket(defaultRate, defaultBurst);
+                    }
+                    bucket = clientBucket;
+                }
+            }
+            return bucket;
+        }
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Bucket created = new Bucket(defaultRate, defaultBurst);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private synchronized HashedWheelTimer getTimer() {
+        if (timer == null) {
+            timer = HashedWheelTimer.shared();
+        }
+        return timer;
+    }
+
+    private static void checkLimit(double requestsPerSecond, int burst) {
+        if (!(requestsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+    }
+
+    /**
+     * Token bucket of a key, kept as the theoretical arrival time of the next request: the bucket is full when it is
+     * a burst of intervals in the past, and empty when it is in the future.
+     */
+    static final class Bucket {
+
+        private final long intervalNanos;
+
+        private final long burstNanos;
+
+        private final AtomicLong nextArrival;
+
+        Bucket(double requestsPerSecond, int burst) {
+            this.intervalNanos = Math.max((long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond), 1);
+            this.burstNanos = intervalNanos * burst;
+            this.nextArrival = new AtomicLong(System.nanoTime() - burstNanos);
+        }
+
+        /**
+         * Takes a token.
+         * @param now current time in nanoseconds
+         * @param maxWaitNanos maximum time to wait for the token
+         * @return the time to wait for the token, or minus the time to wait before trying again if it exceeds the
+         *         maximum wait, in which case no token was taken
+         */
+        long reserve(long now, long maxWaitNanos) {
+            while (true) {
+                long arrival = nextArrival.get();
+                // a bucket idle for long is full, not fuller
+                long start = arrival - now < -burstNanos ? now - burstNanos : arrival;
+                long next = start + intervalNanos;
+                long wait = next - now;
+                if (wait <= 0) {
+                    wait = 0;
+                } else if (wait > maxWaitNanos) {
+                    return -Math.max(wait - maxWaitNanos, 1);
+                }
+                if (nextArrival.compareAndSet(arrival, next)) {
+                    return wait;
+                }
+            }
+        }
+
+    }
+
+}
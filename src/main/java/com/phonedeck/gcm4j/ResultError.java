@@ -88,7 +88,20 @@ public enum ResultError {
      * The returned error code was unknown when this version of the client was released. Please check if
      * there is a new version, or file a ticket about it.
      */
-    UNSUPPORTED_ERROR_CODE(null, false, false);
+    UNSUPPORTED_ERROR_CODE(null, false, false),
+
+    /**
+     * The message was not sent to this registration ID, the same message having been sent to it shortly before. Set
+     * by the {@link DedupeFilter}, never reported by GCM.
+     */
+    DUPLICATE_MESSAGE(null, false, false),
+
+    /**
+     * The message was not sent to this registration ID, the chunk of a large multicast holding it having failed with an
+     * error that is not retriable while other chunks were delivered. Never reported by GCM, the error of the chunk is
+     * logged.
+     */
+    REQUEST_FAILED(null, false, false);
     
     /**
      * Table for looking up JSON values quickly.
@@ -0,0 +1,16 @@
+package com.phonedeck.gcm4j;
+
+/**
+ * Receives the results of a request one by one while the response is parsed, see
+ * {@link GcmRequest#withResultListener(ResultListener)}.
+ */
+public interface ResultListener {
+
+    /**
+     * Called for every result of the response, in the order of the registration IDs. The requested registration ID
+     * of the result is set. Called concurrently for the chunks of requests with more than 1000 registration IDs.
+     * @param result the result
+     */
+    void onResult(Result result);
+
+}
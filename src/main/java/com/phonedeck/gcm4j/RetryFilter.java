@@ -0,0 +1,226 @@
+package com.phonedeck.gcm4j;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Filter retrying what GCM reported as temporarily failed. When some results of a response have a
+ * {@link ResultError#isRetryable() retryable} error, a request with only their registration IDs is sent again, and the
+ * results of the retry replace them in the response. A request failing as a whole with a
+ * {@link GcmNetworkException#canRetry() retryable} network error is sent again as it is.
+ * <p>
+ * Retries wait for the Retry-After given by GCM, or else for an exponential backoff with jitter. Once the retries are
+ * exhausted the last results are returned, so the caller sees the errors that remain. Requests with a result listener
+ * are passed on unchanged, as their results are not collected.
+ * <p>
+ * Retries are passed to the next filter from the thread of a {@link HashedWheelTimer}, so the rest of the chain must
+ * not block.
+ */
+public class RetryFilter implements GcmFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryFilter.class);
+
+    private final int maxRetries;
+
+    private long initialBackoffMillis = TimeUnit.SECONDS.toMillis(1);
+
+    private long maxBackoffMillis = TimeUnit.MINUTES.toMillis(1);
+
+    private HashedWheelTimer timer;
+
+    /**
+     * Creates the filter.
+     * @param maxRetries maximum number of retries of a request
+     */
+    public RetryFilter(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Sets the backoff used when GCM does not send a Retry-After. The backoff doubles with every retry up to the maximum,
+     * each wait being randomly chosen between half and all of the backoff.
+     * @param initialBackoff backoff of the first retry
+     * @param maxBackoff maximum backoff
+     * @param unit unit of the backoffs
+     * @return this filter
+     */
+    public RetryFilter withBackoff(long initialBackoff, long maxBackoff, TimeUnit unit) {
+        this.initialBackoffMillis = unit.toMillis(initialBackoff);
+        this.maxBackoffMillis = unit.toMillis(maxBackoff);
+        return this;
+    }
+
+    /**
+     * Sets the timer that sends the retries. By default a timer shared by the clients is used.
+     * @param timer the timer
+     * @return this filter
+     */
+    public RetryFilter withTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(GcmRequest request, FilterChain chain) {
+        if (request.getResultListener() != null || maxRetries <= 0) {
+            return chain.next(request);
+        }
+        Retry retry = new Retry(request, chain);
+        retry.send(request);
+        return retry.result;
+    }
+
+    /**
+     * Time to wait before a retry.
+     * @param retries number of retries already sent
+     * @param retryAfter Retry-After given by GCM in milliseconds, or null
+     * @return the delay in milliseconds
+     */
+    long delay(int retries, Long retryAfter) {
+        if (retryAfter != null && retryAfter > 0) {
+            return retryAfter;
+        }
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(retries, 30));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private synchronized HashedWheelTimer getTimer() {
+        if (timer == null) {
+            timer = HashedWheelTimer.shared();
+        }
+        return timer;
+    }
+
+    /**
+     * A request and its retries.
+     */
+    private final class Retry implements FutureCallback<GcmResponse> {
+
+        private final GcmRequest request;
+
+        private final FilterChain chain;
+
+        private final SettableFuture<GcmResponse> result = SettableFuture.create();
+
+        /** Response with the results of the latest attempt of each registration ID. */
+        private GcmResponse response;
+
+        /** Registration IDs retried by the request in flight, the others keeping their results in the response. */
+        private Multicast.Remap remap;
+
+        private int retries;
+
+        /** Attempt in flight or waiting in the timer, cancelled with the result. */
+        private volatile Future<?> current;
+
+        Retry(GcmRequest request, FilterChain chain) {
+            this.request = request;
+            this.chain = chain;
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    Future<?> a = current;
+                    if (result.isCancelled() && a != null) {
+                        a.cancel(false);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        void send(GcmRequest attempt) {
+            if (result.isCancelled()) {
+                return;
+            }
+            ListenableFuture<GcmResponse> future;
+            try {
+                future = chain.next(attempt);
+            } catch (RuntimeException ex) {
+                future = Futures.immediateFailedFuture(ex);
+            }
+            track(future);
+            Futures.addCallback(future, this);
+        }
+
+        @Override
+        public void onSuccess(GcmResponse attempt) {
+            if (response == null) {
+                response = attempt;
+            } else if (remap.accepts(attempt)) {
+                // the results of the retry replace the retried ones
+                response = remap.merge(attempt);
+            }
+
+            List<String> ids = request.getRegistrationIds();
+            boolean retry = false;
+            if (ids != null && response.getResults().size() == ids.size()) {
+                remap = new Multicast.Remap(request);
+                for (int i = 0; i < ids.size(); i++) {
+                    ResultError error = response.getResults().get(i).getError();
+                    if (error != null && error.isRetryable()) {
+                        remap.send(i, ids.get(i));
+                        retry = true;
+                    } else {
+                        remap.answer(i, response.getResults().get(i));
+                    }
+                }
+            }
+            if (!retry || retries >= maxRetries) {
+                result.set(response);
+                return;
+            }
+            schedule(Multicast.copy(request, remap.getSentIds()), attempt.getRetryAfter());
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            if (t instanceof GcmNetworkException && ((GcmNetworkException) t).canRetry() && retries < maxRetries) {
+                GcmRequest attempt = response == null ? request : Multicast.copy(request, remap.getSentIds());
+                schedule(attempt, ((GcmNetworkException) t).getRetryAfter());
+            } else if (response != null) {
+                // the earlier results are still valid, the failed retry keeps its retryable errors
+                result.set(response);
+            } else {
+                result.setException(t);
+            }
+        }
+
+        private void schedule(final GcmRequest attempt, Long retryAfter) {
+            long delay = delay(retries++, retryAfter);
+            LOG.debug("Retrying {} registration IDs in {} ms", attempt.getRegistrationIds() != null ? attempt.getRegistrationIds().size() : 0, delay);
+            final HashedWheelTimer.Timeout timeout = getTimer().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    send(attempt);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            track(new AbstractFuture<Void>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    timeout.cancel();
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            });
+        }
+
+        private void track(Future<?> future) {
+            current = future;
+            if (result.isCancelled()) {
+                future.cancel(false);
+            }
+        }
+
+    }
+
+}
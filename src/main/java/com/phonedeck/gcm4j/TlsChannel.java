@@ -0,0 +1,228 @@
+package com.phonedeck.gcm4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Drives an {@link SSLEngine} over a non-blocking {@link SocketChannel}. None of the methods block: when the channel
+ * cannot make progress they return and the caller waits for the next selector event, using {@link #needsWrite()} to
+ * decide which one. The buffers come from a {@link BufferPool}, {@link #release()} gives them back.
+ */
+final class TlsChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+
+    private final SocketChannel channel;
+
+    private final BufferPool pool;
+
+    /** Encrypted bytes received from the network, in write mode. */
+    private ByteBuffer netIn;
+
+    /** Encrypted bytes waiting to be sent, in read mode. */
+    private ByteBuffer netOut;
+
+    /** Decrypted application bytes, in write mode. */
+    private ByteBuffer appIn;
+
+    private boolean eof;
+
+    TlsChannel(SSLEngine engine, SocketChannel channel, BufferPool pool) {
+        this.engine = engine;
+        this.channel = channel;
+        this.pool = pool;
+        this.netIn = ByteBuffer.wrap(pool.acquire(engine.getSession().getPacketBufferSize()));
+        this.netOut = ByteBuffer.wrap(pool.acquire(engine.getSession().getPacketBufferSize()));
+        this.netOut.flip();
+        this.appIn = ByteBuffer.wrap(pool.acquire(engine.getSession().getApplicationBufferSize()));
+    }
+
+    /**
+     * Advances the TLS handshake as far as possible.
+     * @return true if the handshake is complete
+     * @throws IOException on network or TLS errors
+     */
+    boolean handshake() throws IOException {
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+            case NOT_HANDSHAKING:
+            case FINISHED:
+                return true;
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                wrap(EMPTY);
+                break;
+            default:
+                if (!unwrap() && !fill()) {
+                    if (eof) {
+                        throw new EOFException("Connection closed during TLS handshake");
+                    }
+                    return false;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Encrypts and sends as much of the source as the channel accepts.
+     * @param src application bytes to send
+     * @return true if the source was consumed and all encrypted bytes were handed to the channel
+     * @throws IOException on network or TLS errors
+     */
+    boolean write(ByteBuffer src) throws IOException {
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            if (!src.hasRemaining()) {
+                return true;
+            }
+            wrap(src);
+        }
+    }
+
+    /**
+     * Reads and decrypts the available bytes.
+     * @return decrypted bytes in read mode, to be consumed before the next call; null if the peer closed the
+     *         connection and no more bytes are available
+     * @throws IOException on network or TLS errors
+     */
+    ByteBuffer read() throws IOException {
+        appIn.clear();
+        while (true) {
+            while (unwrap()) {
+                // drain the buffered network bytes
+            }
+            if (appIn.position() > 0) {
+                break;
+            }
+            if (eof || engine.isInboundDone()) {
+                return null;
+            }
+            if (!fill() && !eof) {
+                break;
+            }
+        }
+        appIn.flip();
+        return appIn;
+    }
+
+    /**
+     * Whether encrypted bytes are waiting for the channel to become writable.
+     * @return true if the caller must wait for OP_WRITE
+     */
+    boolean needsWrite() {
+        return netOut.hasRemaining();
+    }
+
+    private boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int n = channel.read(netIn);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        return n > 0;
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+            switch (result.getStatus()) {
+            case OK:
+                return;
+            case BUFFER_OVERFLOW:
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize(), true);
+                break;
+            default:
+                throw new SSLException("Unexpected TLS state while sending: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Unwraps one TLS record from the buffered network bytes.
+     * @return true if progress was made and unwrapping should be retried
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+        case OK:
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        case BUFFER_UNDERFLOW:
+            if (netIn.position() == netIn.capacity()) {
+                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize(), false);
+            }
+            return false;
+        case BUFFER_OVERFLOW:
+            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize(), false);
+            return true;
+        case CLOSED:
+            return false;
+        default:
+            throw new SSLException("Unexpected TLS state while receiving: " + result.getStatus());
+        }
+    }
+
+    /**
+     * Gives the buffers back to the pool. The channel cannot be used afterwards.
+     */
+    void release() {
+        if (netIn != null) {
+            pool.release(netIn.array());
+            pool.release(netOut.array());
+            pool.release(appIn.array());
+            netIn = netOut = appIn = null;
+        }
+    }
+
+    private ByteBuffer enlarge(ByteBuffer buffer, int minSize, boolean readMode) {
+        ByteBuffer result = ByteBuffer.wrap(pool.acquire(Math.max(minSize, buffer.capacity() * 2)));
+        if (readMode) {
+            result.put(buffer).flip();
+        } else {
+            buffer.flip();
+            result.put(buffer);
+        }
+        pool.release(buffer.array());
+        return result;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.phonedeck.gcm4j;
+
+import com.google.common.base.Objects;
+
+/**
+ * What GCM reported about a registration ID: either it was replaced by a canonical ID, or it must be deleted because
+ * of a {@link ResultError#isDeletable() deletable} error.
+ */
+public final class TokenEvent {
+
+    private final String key;
+
+    private final String registrationId;
+
+    private final String canonicalRegistrationId;
+
+    private final ResultError error;
+
+    TokenEvent(String key, String registrationId, String canonicalRegistrationId, ResultError error) {
+        this.key = key;
+        this.registrationId = registrationId;
+        this.canonicalRegistrationId = canonicalRegistrationId;
+        this.error = error;
+    }
+
+    /**
+     * Sender key of the request, which matters for {@link ResultError#MISMATCH_SENDER_ID}.
+     * @return the key, or null for the key of the client
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    /**
+     * Registration ID replacing this one.
+     * @return the canonical ID, or null if the ID must be deleted
+     */
+    public String getCanonicalRegistrationId() {
+        return canonicalRegistrationId;
+    }
+
+    /**
+     * Error making the registration ID dead.
+     * @return the error, or null if the ID was replaced by a canonical ID
+     */
+    public ResultError getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("key", key)
+                .add("registrationId", registrationId)
+                .add("canonicalRegistrationId", canonicalRegistrationId)
+                .add("error", error)
+                .toString();
+    }
+
+}
@@ -0,0 +1,254 @@
+package com.phonedeck.gcm4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Filter passing the canonical IDs and {@link ResultError#isDeletable() deletable} errors of the responses to a
+ * {@link TokenListener} in batches. Events wait until a batch is full or the oldest of them waited the maximum delay.
+ * Events of the same registration ID and sender key collapse while they wait, the latest one replacing the others, so
+ * a batch holds at most one event per registration ID of a key.
+ * <p>
+ * Batches are delivered on the thread of the scheduler, one at a time; events occurring during a delivery collapse
+ * into the next batches. Results of requests with a {@link ResultListener} are seen through a wrapping listener. When
+ * the filter comes after a {@link TokenRegistryFilter}, the IDs the registry removed are not reported again.
+ */
+public class TokenEventFilter implements GcmFilter, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenEventFilter.class);
+
+    private final TokenListener listener;
+
+    private int maxBatchSize = 1000;
+
+    private long maxDelayMillis = 1000;
+
+    private ScheduledExecutorService scheduler;
+
+    private boolean ownScheduler;
+
+    /** Events waiting for a batch by sender key and registration ID. */
+    private final LinkedHashMap<List<String>, TokenEvent> pending = new LinkedHashMap<>();
+
+    /** Delivery waiting to run, if any. */
+    private ScheduledFuture<?> flush;
+
+    private boolean delivering;
+
+    private boolean closed;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Creates the filter.
+     * @param listener the listener receiving the batches
+     */
+    public TokenEventFilter(TokenListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the maximum number of events of a batch, 1000 by default. A batch is delivered as soon as it is full.
+     * @param maxBatchSize the batch size
+     * @return this filter
+     */
+    public TokenEventFilter withMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Sets how long events wait for a batch to fill, 1 second by default.
+     * @param maxDelay the maximum delay
+     * @param unit unit of the delay
+     * @return this filter
+     */
+    public TokenEventFilter withMaxDelay(long maxDelay, TimeUnit unit) {
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+        return this;
+    }
+
+    /**
+     * Sets the scheduler delivering the batches. By default a daemon thread of the filter is used.
+     * @param scheduler the scheduler
+     * @return this filter
+     */
+    public TokenEventFilter withScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(final GcmRequest request, FilterChain chain) {
+        if (request.getRegistrationIds() == null || request.getRegistrationIds().isEmpty()) {
+            return chain.next(request);
+        }
+        final ResultListener resultListener = request.getResultListener();
+        if (resultListener != null) {
+            GcmRequest copy = Multicast.copy(request, request.getRegistrationIds());
+            copy.setResultListener(new ResultListener() {
+                @Override
+                public void onResult(Result result) {
+                    record(request.getKey(), result);
+                    resultListener.onResult(result);
+                }
+            });
+            return chain.next(copy);
+        }
+        ListenableFuture<GcmResponse> future = chain.next(request);
+        Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+            @Override
+            public void onSuccess(GcmResponse response) {
+                for (Result result : response.getResults()) {
+                    record(request.getKey(), result);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Delivers the pending events and waits for their delivery, then stops the thread of the filter if it has one.
+     * Events occurring afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!delivering && !pending.isEmpty() && (flush == null || flush.cancel(false))) {
+                flush = getScheduler().schedule(flushTask, 0, TimeUnit.MILLISECONDS);
+            }
+            try {
+                while (delivering || !pending.isEmpty()) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (ownScheduler) {
+                scheduler.shutdown();
+            }
+        }
+    }
+
+    private void record(String key, Result result) {
+        String id = result.getRequestedRegistrationId();
+        ResultError error = result.getError();
+        TokenEvent event;
+        if (id == null) {
+            return;
+        } else if (error != null && error.isDeletable()) {
+            event = new TokenEvent(key, id, null, error);
+        } else if (error == null && result.getCanonicalRegistrationId() != null) {
+            event = new TokenEvent(key, id, result.getCanonicalRegistrationId(), null);
+        } else {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                LOG.debug("Token event filter closed, dropped {}", event);
+                return;
+            }
+            // moved last, batches are in the order of the latest events
+            List<String> keyAndId = Arrays.asList(key, id);
+            pending.remove(keyAndId);
+            pending.put(keyAndId, event);
+            if (delivering) {
+                // the delivery schedules the next one
+                return;
+            }
+            if (pending.size() >= maxBatchSize) {
+                // cancelling fails if it is starting
+                if (flush == null || flush.cancel(false)) {
+                    flush = getScheduler().schedule(flushTask, 0, TimeUnit.MILLISECONDS);
+                }
+            } else if (flush == null) {
+                flush = getScheduler().schedule(flushTask, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Delivers the full batches, or a partial one on expiry of its delay.
+     */
+    private void flush() {
+        while (true) {
+            List<TokenEvent> batch;
+            synchronized (this) {
+                flush = null;
+                if (delivering || pending.isEmpty()) {
+                    return;
+                }
+                delivering = true;
+                batch = new ArrayList<>(Math.min(pending.size(), maxBatchSize));
+                Iterator<TokenEvent> events = pending.values().iterator();
+                while (events.hasNext() && batch.size() < maxBatchSize) {
+                    batch.add(events.next());
+                    events.remove();
+                }
+            }
+            try {
+                listener.onTokenEvents(batch);
+            } catch (RuntimeException ex) {
+                LOG.error("Token listener failed, " + batch.size() + " events lost", ex);
+            }
+            synchronized (this) {
+                delivering = false;
+                notifyAll();
+                if (pending.size() < maxBatchSize && !closed) {
+                    if (!pending.isEmpty()) {
+                        flush = getScheduler().schedule(flushTask, maxDelayMillis, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "gcm4j-token-events");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ownScheduler = true;
+        }
+        return scheduler;
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.phonedeck.gcm4j;
+
+import java.util.List;
+
+/**
+ * Receives in batches what GCM reported about registration IDs, for instance to update them in a database with a
+ * bulk operation, see {@link TokenEventFilter}.
+ */
+public interface TokenListener {
+
+    /**
+     * Called with a batch of events, one batch at a time. An exception thrown by the listener is logged, and the
+     * events of the batch are lost.
+     * @param events the events, at most one per registration ID, in the order they last occurred
+     */
+    void onTokenEvents(List<TokenEvent> events);
+
+}
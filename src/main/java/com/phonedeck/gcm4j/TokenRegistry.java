@@ -0,0 +1,283 @@
+package com.phonedeck.gcm4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of what GCM reported about registration IDs: the IDs that are dead, with the error that made them so, and
+ * the canonical IDs that replace stale ones. It is filled by the {@link TokenRegistryFilter} from the responses.
+ * <p>
+ * Dead IDs are kept as 64 bit fingerprints, 8 bytes each, so tens of millions of them fit in a few hundred megabytes;
+ * canonical mappings also keep the canonical ID. Both tables are allocated at their maximum size and never grow. They
+ * are set associative: an ID can only be stored in the 8 slots of its group, and once they are full a random one is
+ * replaced, so the registry forgets old entries rather than growing. Reads and writes do not lock.
+ * <p>
+ * A registry can instead be kept in a {@link TokenStore}, which keeps it on disk across restarts and forgets nothing.
+ * <p>
+ * Dead IDs are registered per sender key, since an ID rejected with {@link ResultError#MISMATCH_SENDER_ID} is valid for
+ * other senders. Canonical IDs do not depend on the sender.
+ */
+public class TokenRegistry {
+
+    private static final int WAYS = 8;
+
+    /** Low bits of a dead entry holding the ordinal of its error, the others holding the fingerprint. */
+    static final long ERROR_MASK = 0x1f;
+
+    private static final ResultError[] ERRORS = ResultError.values();
+
+    private final AtomicLongArray dead;
+
+    private final AtomicReferenceArray<Mapping> canonical;
+
+    private final AtomicInteger deadCount = new AtomicInteger();
+
+    private final AtomicInteger canonicalCount = new AtomicInteger();
+
+    private final TokenStore store;
+
+    /**
+     * Creates a registry holding about a million dead IDs and 65536 canonical mappings.
+     */
+    public TokenRegistry() {
+        this(1 << 20, 1 << 16);
+    }
+
+    /**
+     * Creates a registry. Sizes are rounded up to a power of two.
+     * @param maxDeadTokens number of dead IDs the registry holds, 8 bytes each
+     * @param maxCanonicalTokens number of canonical mappings the registry holds
+     */
+    public TokenRegistry(int maxDeadTokens, int maxCanonicalTokens) {
+        this.dead = new AtomicLongArray(tableSize(maxDeadTokens));
+        this.canonical = new AtomicReferenceArray<>(tableSize(maxCanonicalTokens));
+        this.store = null;
+    }
+
+    /**
+     * Creates a registry kept in a store.
+     * @param store the store, closed by the caller
+     */
+    public TokenRegistry(TokenStore store) {
+        this.dead = null;
+        this.canonical = null;
+        this.store = store;
+    }
+
+    /**
+     * Registers an ID as dead for a sender.
+     * @param key the sender key, or null for the key of the client
+     * @param token the registration ID
+     * @param error the error GCM reported for it
+     */
+    public void markDead(String key, String token, ResultError error) {
+        if (store != null) {
+            store.markDead(fingerprint(key, token), error);
+            return;
+        }
+        long entry = (fingerprint(key, token) & ~ERROR_MASK) | error.ordinal();
+        int group = group(entry, dead.length());
+        while (true) {
+            int empty = -1;
+            for (int i = group; i < group + WAYS; i++) {
+                long current = dead.get(i);
+                if (current == 0) {
+                    empty = empty < 0 ? i : empty;
+                } else if (sameToken(current, entry)) {
+                    dead.set(i, entry);
+                    return;
+                }
+            }
+            if (empty < 0) {
+                // the group is full, forget a random ID
+                dead.set(group + ThreadLocalRandom.current().nextInt(WAYS), entry);
+                return;
+            }
+            if (dead.compareAndSet(empty, 0, entry)) {
+                deadCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Error that made an ID dead for a sender.
+     * @param key the sender key, or null for the key of the client
+     * @param token the registration ID
+     * @return the error, or null if the ID is not known to be dead
+     */
+    public ResultError getError(String key, String token) {
+        long fingerprint = fingerprint(key, token);
+        if (store != null) {
+            return store.getError(fingerprint);
+        }
+        int group = group(fingerprint, dead.length());
+        for (int i = group; i < group + WAYS; i++) {
+            long current = dead.get(i);
+            if (current != 0 && sameToken(current, fingerprint)) {
+                return ERRORS[(int) (current & ERROR_MASK)];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers the canonical ID of a stale ID.
+     * @param token the stale registration ID
+     * @param canonicalToken the registration ID replacing it
+     */
+    public void putCanonical(String token, String canonicalToken) {
+        if (store != null) {
+            store.putCanonical(fingerprint(null, token), canonicalToken);
+            return;
+        }
+        Mapping mapping = new Mapping(fingerprint(null, token), canonicalToken);
+        int group = group(mapping.fingerprint, canonical.length());
+        while (true) {
+            int empty = -1;
+            for (int i = group; i < group + WAYS; i++) {
+                Mapping current = canonical.get(i);
+                if (current == null) {
+                    empty = empty < 0 ? i : empty;
+                } else if (current.fingerprint == mapping.fingerprint) {
+                    canonical.set(i, mapping);
+                    return;
+                }
+            }
+            if (empty < 0) {
+                canonical.set(group + ThreadLocalRandom.current().nextInt(WAYS), mapping);
+                return;
+            }
+            if (canonical.compareAndSet(empty, null, mapping)) {
+                canonicalCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Canonical ID of a stale ID.
+     * @param token the registration ID
+     * @return the registration ID replacing it, or null if it is not known to be stale
+     */
+    public String getCanonical(String token) {
+        long fingerprint = fingerprint(null, token);
+        if (store != null) {
+            return store.getCanonical(fingerprint);
+        }
+        int group = group(fingerprint, canonical.length());
+        for (int i = group; i < group + WAYS; i++) {
+            Mapping current = canonical.get(i);
+            if (current != null && current.fingerprint == fingerprint) {
+                return new String(current.canonical, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forgets what is known about an ID, for instance when a device registers it again.
+     * @param key the sender key the ID was dead for, or null for the key of the client
+     * @param token the registration ID
+     */
+    public void forget(String key, String token) {
+        long fingerprint = fingerprint(key, token);
+        if (store != null) {
+            store.forget(fingerprint, fingerprint(null, token));
+            return;
+        }
+        int group = group(fingerprint, dead.length());
+        for (int i = group; i < group + WAYS; i++) {
+            long current = dead.get(i);
+            if (current != 0 && sameToken(current, fingerprint) && dead.compareAndSet(i, current, 0)) {
+                deadCount.decrementAndGet();
+            }
+        }
+        fingerprint = fingerprint(null, token);
+        group = group(fingerprint, canonical.length());
+        for (int i = group; i < group + WAYS; i++) {
+            Mapping current = canonical.get(i);
+            if (current != null && current.fingerprint == fingerprint && canonical.compareAndSet(i, current, null)) {
+                canonicalCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Number of dead IDs held.
+     * @return the number of dead IDs
+     */
+    public int getDeadTokens() {
+        return store != null ? store.getDeadTokens() : deadCount.get();
+    }
+
+    /**
+     * Number of canonical mappings held.
+     * @return the number of canonical mappings
+     */
+    public int getCanonicalTokens() {
+        return store != null ? store.getCanonicalTokens() : canonicalCount.get();
+    }
+
+    private static int tableSize(int entries) {
+        if (entries < 1 || entries > 1 << 30) {
+            throw new IllegalArgumentException("Size must be between 1 and 2^30");
+        }
+        return Math.max(Integer.highestOneBit(entries - 1) << 1, WAYS);
+    }
+
+    /**
+     * First slot of the group of a fingerprint, taken from its high bits.
+     */
+    private static int group(long fingerprint, int length) {
+        return (int) (fingerprint >>> 32) & (length - 1) & ~(WAYS - 1);
+    }
+
+    private static boolean sameToken(long entry, long fingerprint) {
+        return (entry & ~ERROR_MASK) == (fingerprint & ~ERROR_MASK);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key and the ID, mixed with the finalizer of MurmurHash3. Never 0 outside of the error
+     * bits, which marks empty slots.
+     */
+    static long fingerprint(String key, String token) {
+        long hash = 0xcbf29ce484222325L;
+        if (key != null) {
+            for (int i = 0; i < key.length(); i++) {
+                hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+            }
+            // separates the key from the ID
+            hash = (hash ^ 0xffff) * 0x100000001b3L;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            hash = (hash ^ token.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash & ~ERROR_MASK) == 0 ? ERROR_MASK + 1 : hash;
+    }
+
+    /**
+     * Canonical ID of a stale ID, kept as UTF-8 to halve its size.
+     */
+    private static final class Mapping {
+
+        private final long fingerprint;
+
+        private final byte[] canonical;
+
+        Mapping(long fingerprint, String canonical) {
+            this.fingerprint = fingerprint;
+            this.canonical = canonical.getBytes(StandardCharsets.UTF_8);
+        }
+
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.phonedeck.gcm4j;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Filter keeping a {@link TokenRegistry} up to date and applying it to the requests. Canonical IDs and
+ * {@link ResultError#isDeletable() deletable} errors reported by GCM are registered; before a request is sent, its
+ * stale registration IDs are replaced by their canonical ID and its dead ones are removed.
+ * <p>
+ * The response keeps the registration IDs of the caller: a removed ID gets a result with the error GCM reported for it
+ * earlier, and a replaced ID gets the result of its canonical ID with the canonical ID set, as GCM would report it.
+ * Requested IDs with the same canonical ID are sent it once, each getting a copy of its result. Results of a request
+ * with a {@link ResultListener} are handled the same way, those of removed IDs being passed to the listener first.
+ * The filter should come first, so the other filters only see the IDs actually sent.
+ */
+public class TokenRegistryFilter implements GcmFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenRegistryFilter.class);
+
+    private final TokenRegistry registry;
+
+    /**
+     * Creates the filter.
+     * @param registry the registry, which may be shared with other clients
+     */
+    public TokenRegistryFilter(TokenRegistry registry) {
+        this.registry = registry;
+    }
+
+    public TokenRegistry getRegistry() {
+        return registry;
+    }
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(final GcmRequest request, FilterChain chain) {
+        List<String> ids = request.getRegistrationIds();
+        if (ids == null || ids.isEmpty()) {
+            return chain.next(request);
+        }
+
+        // IDs with the same canonical ID are sent once
+        final Multicast.Remap remap = new Multicast.Remap(request);
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            String target = canonical(id);
+            ResultError error = registry.getError(request.getKey(), target);
+            if (error != null) {
+                Result result = new Result();
+                result.setError(error);
+                result.setRequestedRegistrationId(id);
+                if (!target.equals(id)) {
+                    result.setCanonicalRegistrationId(target);
+                }
+                remap.answer(i, result);
+            } else {
+                remap.send(i, target);
+            }
+        }
+
+        if (!remap.isChanged()) {
+            if (request.getResultListener() != null) {
+                // learnt from the wrapped listener
+                return chain.next(copy(request, remap));
+            }
+            ListenableFuture<GcmResponse> future = chain.next(request);
+            Futures.addCallback(future, new FutureCallback<GcmResponse>() {
+                @Override
+                public void onSuccess(GcmResponse response) {
+                    learn(request.getKey(), request.getRegistrationIds(), response);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                }
+            });
+            return future;
+        }
+
+        final List<String> sentIds = remap.getSentIds();
+        LOG.debug("Sending to {} of {} registration IDs, {} removed as dead", sentIds.size(), ids.size(),
+                ids.size() - sentIds.size());
+        if (request.getResultListener() != null) {
+            remap.reportAnswered();
+        }
+        if (sentIds.isEmpty()) {
+            return Futures.immediateFuture(remap.merge(null));
+        }
+        return Futures.transform(chain.next(copy(request, remap)), new Function<GcmResponse, GcmResponse>() {
+            @Override
+            public GcmResponse apply(GcmResponse response) {
+                if (request.getResultListener() == null) {
+                    learn(request.getKey(), sentIds, response);
+                }
+                return remap.merge(response);
+            }
+        });
+    }
+
+    /**
+     * Follows the canonical IDs of an ID, up to a few replacements.
+     */
+    private String canonical(String id) {
+        String target = id;
+        for (int hops = 0; hops < 4; hops++) {
+            String canonical = registry.getCanonical(target);
+            if (canonical == null || canonical.equals(target)) {
+                break;
+            }
+            target = canonical;
+        }
+        return target;
+    }
+
+    /**
+     * Request with the IDs to send, whose listener learns from the results and reports them with the IDs of the
+     * caller.
+     */
+    private GcmRequest copy(final GcmRequest request, final Multicast.Remap remap) {
+        GcmRequest copy = Multicast.copy(request, remap.getSentIds());
+        if (request.getResultListener() != null) {
+            copy.setResultListener(new ResultListener() {
+                @Override
+                public void onResult(Result result) {
+                    learn(request.getKey(), result.getRequestedRegistrationId(), result);
+                    remap.report(result);
+                }
+            });
+        }
+        return copy;
+    }
+
+    private void learn(String key, List<String> ids, GcmResponse response) {
+        if (response.getResults().size() == ids.size()) {
+            for (int i = 0; i < ids.size(); i++) {
+                learn(key, ids.get(i), response.getResults().get(i));
+            }
+        }
+    }
+
+    private void learn(String key, String id, Result result) {
+        if (id == null) {
+            return;
+        }
+        String canonical = result.getCanonicalRegistrationId();
+        if (canonical != null && !canonical.equals(id)) {
+            registry.putCanonical(id, canonical);
+        }
+        if (result.getError() != null && result.getError().isDeletable()) {
+            registry.markDead(key, id, result.getError());
+        }
+    }
+
+}
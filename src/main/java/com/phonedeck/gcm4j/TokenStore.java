@@ -0,0 +1,817 @@
+package com.phonedeck.gcm4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store keeping the content of a {@link TokenRegistry} on disk, so what GCM reported about registration IDs survives
+ * restarts. It is given to the registry with {@link TokenRegistry#TokenRegistry(TokenStore)}.
+ * <p>
+ * Changes are appended to a log, each record checked by a CRC, and the live records are indexed by a hash table with
+ * open addressing. Both files are memory mapped: the entries stay off the heap, lookups read the index without
+ * locking, and opening a store that was closed only maps its files. After a crash the log is read again from the last
+ * flush up to its first damaged record, and the index is repaired. The store is flushed every second: a process crash
+ * loses no change, a system crash those of the last second.
+ * <p>
+ * A background thread rewrites the live entries to new files once the log holds more replaced and removed records
+ * than live ones, or the index is half full; the index of the new files is sized for the entries, so this is also
+ * how it grows. Lookups and changes go on meanwhile. A directory holds a single store, locked while it is open.
+ */
+public class TokenStore implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
+
+    private static final ResultError[] ERRORS = ResultError.values();
+
+    /** Low bits of the key of an entry, holding the error of a dead ID or marking a canonical mapping. */
+    private static final long TAG_MASK = TokenRegistry.ERROR_MASK;
+
+    private static final long CANONICAL = TAG_MASK;
+
+    /** Keys of free slots of the index, which no entry has since fingerprints are never 0 outside of the low bits. */
+    private static final long EMPTY = 0;
+
+    private static final long REMOVED = 1;
+
+    private static final byte PUT = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final byte[] NONE = new byte[0];
+
+    private static final long INDEX_MAGIC = 0x67636d34544f4b49L;
+
+    private static final long LOG_MAGIC = 0x67636d34544f4b4cL;
+
+    private static final int VERSION = 1;
+
+    /** Offsets of the fields of the index header. */
+    private static final int MAGIC_OFFSET = 0, VERSION_OFFSET = 8, STATE_OFFSET = 12, CAPACITY_OFFSET = 16,
+            CHECKPOINT_OFFSET = 24, RECORDS_OFFSET = 32, DEAD_OFFSET = 40, CANONICAL_OFFSET = 44, REMOVED_OFFSET = 48;
+
+    private static final int INDEX_HEADER = 4096;
+
+    /** States of the files: being written by a compaction, in use, and closed cleanly. */
+    private static final int BUILDING = 1, OPEN = 2, CLOSED = 3;
+
+    /** Slots of 16 bytes, a key and the position of its record, mapped by regions of 1 GB. */
+    private static final int SLOT_BITS = 4;
+
+    private static final int INDEX_REGION_BITS = 26;
+
+    /** The log is mapped by regions of 64 MB, records do not cross them. */
+    private static final int LOG_REGION_BITS = 26;
+
+    private static final int LOG_REGION = 1 << LOG_REGION_BITS;
+
+    /** Records start after the magic number of the log, so none is at position 0. */
+    private static final long LOG_START = 8;
+
+    /** Length, CRC, key and type of a record, followed by the canonical ID. Records are aligned on 8 bytes. */
+    private static final int RECORD_HEADER = 17;
+
+    private static final int MAX_CANONICAL = 4096;
+
+    /** Length marking the end of a region, the next record being at the start of the next one. */
+    private static final int NEXT_REGION = -1;
+
+    /** Number of dead records the log may hold before it is compacted, whatever the number of live ones. */
+    private static final long MIN_GARBAGE = 1 << 20;
+
+    private final File directory;
+
+    private final FileChannel lockChannel;
+
+    private final ScheduledExecutorService maintenance;
+
+    private final Object maintenanceLock = new Object();
+
+    private volatile Generation current;
+
+    private boolean closed;
+
+    /**
+     * Opens the store kept in a directory, creating it if needed.
+     * @param directory the directory
+     * @throws IOException if the store cannot be read or is open in another process
+     */
+    public TokenStore(File directory) throws IOException {
+        this(directory, 1 << 20);
+    }
+
+    /**
+     * Opens the store kept in a directory, creating it if needed.
+     * @param directory the directory
+     * @param expectedTokens number of entries the index of a new store is sized for, larger stores grow it
+     * @throws IOException if the store cannot be read or is open in another process
+     */
+    public TokenStore(File directory, int expectedTokens) throws IOException {
+        if (expectedTokens < 1) {
+            throw new IllegalArgumentException("Expected tokens must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.lockChannel = new RandomAccessFile(new File(directory, "tokens.lock"), "rw").getChannel();
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Token store " + directory + " is already open");
+            }
+            this.current = open(directory, capacity(expectedTokens));
+        } catch (IOException | RuntimeException ex) {
+            lockChannel.close();
+            throw ex;
+        }
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gcm4j-token-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the changes to disk, which is done every second.
+     */
+    public void flush() {
+        synchronized (maintenanceLock) {
+            Generation generation;
+            long position;
+            long records;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                generation = current;
+                position = generation.end;
+                records = generation.records;
+            }
+            if (position != generation.checkpoint) {
+                generation.flush(position, records);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the live entries to new files, and deletes the old ones. This is done in the background when needed.
+     * @throws IOException if the new files cannot be written, the store keeping the old ones
+     */
+    public void compact() throws IOException {
+        synchronized (maintenanceLock) {
+            Generation old;
+            long start;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                old = current;
+                start = old.end;
+            }
+            Generation next = Generation.create(directory, old.number + 1, capacity(old.dead + old.canonical));
+            try {
+                // the records appended meanwhile are replayed below
+                for (long slot = 0; slot < old.capacity; slot++) {
+                    long key = old.key(slot);
+                    long position = old.position(slot);
+                    if (key != EMPTY && key != REMOVED && position >= LOG_START && position < start) {
+                        byte[] record = old.read(position);
+                        if (record != null && recordKey(record) == key) {
+                            next.apply(record, next.append(record));
+                        }
+                    }
+                }
+                next.flush(next.end, next.records);
+                synchronized (this) {
+                    next.replay(old, start, old.end);
+                    next.flush(next.end, next.records);
+                    next.writeHeader(OPEN);
+                    current = next;
+                }
+            } catch (IOException | RuntimeException ex) {
+                next.close(false);
+                next.delete();
+                throw ex;
+            }
+            LOG.info("Compacted token store {}: {} records for {} entries, {} before", directory, next.records,
+                    next.dead + next.canonical, old.records);
+            // lookups still reading the old files keep their mappings
+            old.close(false);
+            old.delete();
+        }
+    }
+
+    /**
+     * Flushes and closes the store. Lookups on a closed store still work, changes are ignored.
+     * @throws IOException if the files cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        maintenance.shutdown();
+        synchronized (maintenanceLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            try {
+                current.close(true);
+            } finally {
+                lockChannel.close();
+            }
+        }
+    }
+
+    void markDead(long fingerprint, ResultError error) {
+        put((fingerprint & ~TAG_MASK) | error.ordinal(), NONE);
+    }
+
+    ResultError getError(long fingerprint) {
+        Generation generation = current;
+        long key = fingerprint & ~TAG_MASK;
+        long slot = generation.find(key);
+        if (slot < 0) {
+            return null;
+        }
+        // read again, the slot may have been reused meanwhile
+        long found = generation.key(slot);
+        return found != REMOVED && sameEntry(found, key) ? ERRORS[(int) (found & TAG_MASK)] : null;
+    }
+
+    void putCanonical(long fingerprint, String canonicalToken) {
+        byte[] canonical = canonicalToken.getBytes(StandardCharsets.UTF_8);
+        if (canonical.length <= MAX_CANONICAL) {
+            put((fingerprint & ~TAG_MASK) | CANONICAL, canonical);
+        }
+    }
+
+    String getCanonical(long fingerprint) {
+        Generation generation = current;
+        long key = (fingerprint & ~TAG_MASK) | CANONICAL;
+        long slot = generation.find(key);
+        if (slot < 0) {
+            return null;
+        }
+        // the slot is checked against its record, it may have changed meanwhile
+        long position = generation.position(slot);
+        if (position < LOG_START || position >= generation.end) {
+            return null;
+        }
+        byte[] record = generation.read(position);
+        if (record == null || recordKey(record) != key) {
+            return null;
+        }
+        return new String(record, RECORD_HEADER, recordLength(record) - RECORD_HEADER, StandardCharsets.UTF_8);
+    }
+
+    synchronized void forget(long deadFingerprint, long canonicalFingerprint) {
+        remove(deadFingerprint & ~TAG_MASK);
+        remove((canonicalFingerprint & ~TAG_MASK) | CANONICAL);
+    }
+
+    int getDeadTokens() {
+        return current.dead;
+    }
+
+    int getCanonicalTokens() {
+        return current.canonical;
+    }
+
+    private synchronized void put(long key, byte[] canonical) {
+        if (closed) {
+            return;
+        }
+        Generation generation = current;
+        if (canonical.length == 0) {
+            long slot = generation.find(key);
+            if (slot >= 0 && generation.key(slot) == key) {
+                // already dead with this error
+                return;
+            }
+        }
+        write(generation, record(PUT, key, canonical));
+    }
+
+    private void remove(long key) {
+        if (!closed && current.find(key) >= 0) {
+            write(current, record(REMOVE, key, NONE));
+        }
+    }
+
+    private void write(Generation generation, byte[] record) {
+        try {
+            if (!generation.apply(record, generation.append(record))) {
+                LOG.warn("Index of token store {} is full until it is compacted, entry dropped", directory);
+            }
+        } catch (IOException ex) {
+            LOG.warn("Cannot write to token store " + directory, ex);
+        }
+    }
+
+    private void maintain() {
+        try {
+            flush();
+            boolean compact;
+            synchronized (this) {
+                Generation generation = current;
+                long live = generation.dead + generation.canonical;
+                compact = !closed && (live + generation.removed > generation.capacity / 2
+                        || generation.records - live > Math.max(live, MIN_GARBAGE));
+            }
+            if (compact) {
+                compact();
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Maintenance of token store " + directory + " failed", ex);
+        }
+    }
+
+    /**
+     * Opens the latest files of a directory, deleting the others, or creates them.
+     */
+    private static Generation open(File directory, long capacity) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (name.startsWith("tokens.") && name.endsWith(".idx")) {
+                try {
+                    numbers.add(Long.parseLong(name.substring(7, name.length() - 4)));
+                } catch (NumberFormatException ex) {
+                    // not ours
+                }
+            }
+        }
+        Collections.sort(numbers, Collections.reverseOrder());
+        Generation latest = null;
+        for (long number : numbers) {
+            if (latest != null) {
+                new File(directory, "tokens." + number + ".log").delete();
+                new File(directory, "tokens." + number + ".idx").delete();
+                continue;
+            }
+            Generation generation = new Generation(directory, number, 0);
+            int state = generation.header.getInt(STATE_OFFSET);
+            if (generation.header.getLong(MAGIC_OFFSET) == 0 || state == BUILDING) {
+                // interrupted compaction
+                generation.close(false);
+                generation.delete();
+                continue;
+            }
+            if (generation.header.getLong(MAGIC_OFFSET) != INDEX_MAGIC
+                    || generation.header.getInt(VERSION_OFFSET) != VERSION) {
+                generation.close(false);
+                throw new IOException("Not a token store index: " + generation.indexFile);
+            }
+            try {
+                generation.load(state == CLOSED);
+            } catch (IOException | RuntimeException ex) {
+                generation.close(false);
+                throw ex;
+            }
+            latest = generation;
+        }
+        if (latest == null) {
+            latest = Generation.create(directory, 1, capacity);
+        }
+        latest.writeHeader(OPEN);
+        return latest;
+    }
+
+    /**
+     * Number of slots of an index for a number of entries, at most half full.
+     */
+    private static long capacity(long entries) {
+        return Math.max(Long.highestOneBit(Math.max(entries, 1)) << 2, 1024);
+    }
+
+    private static boolean sameEntry(long a, long b) {
+        return ((a ^ b) & ~TAG_MASK) == 0 && ((a & TAG_MASK) == CANONICAL) == ((b & TAG_MASK) == CANONICAL);
+    }
+
+    private static byte[] record(byte type, long key, byte[] canonical) {
+        int length = RECORD_HEADER + canonical.length;
+        ByteBuffer buffer = ByteBuffer.allocate((length + 7) & ~7);
+        buffer.putInt(length).putInt(0).putLong(key).put(type).put(canonical);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, length - 8);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static int recordLength(byte[] record) {
+        return ByteBuffer.wrap(record).getInt(0);
+    }
+
+    private static long recordKey(byte[] record) {
+        return ByteBuffer.wrap(record).getLong(8);
+    }
+
+    /**
+     * Log and index files of the store, replaced by new ones on compaction. Changes are made holding the lock of the
+     * store; lookups read the mapped files without locking, the position of the end of the log being volatile.
+     */
+    private static final class Generation {
+
+        private final long number;
+
+        private final File logFile;
+
+        private final File indexFile;
+
+        private final FileChannel log;
+
+        private final FileChannel index;
+
+        private final MappedByteBuffer header;
+
+        private final MappedByteBuffer[] slots;
+
+        private final long capacity;
+
+        private volatile MappedByteBuffer[] regions;
+
+        private volatile long end = LOG_START;
+
+        private volatile int dead;
+
+        private volatile int canonical;
+
+        private long removed;
+
+        private long records;
+
+        private long checkpoint = LOG_START;
+
+        /**
+         * Maps the files of a generation.
+         * @param capacity number of slots of the index, or 0 to read it from an existing index
+         */
+        Generation(File directory, long number, long capacity) throws IOException {
+            this.number = number;
+            this.logFile = new File(directory, "tokens." + number + ".log");
+            this.indexFile = new File(directory, "tokens." + number + ".idx");
+            this.log = new RandomAccessFile(logFile, "rw").getChannel();
+            FileChannel channel = null;
+            try {
+                channel = new RandomAccessFile(indexFile, "rw").getChannel();
+                this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER);
+                this.capacity = capacity != 0 ? capacity : Math.max(header.getLong(CAPACITY_OFFSET), 1024);
+                if (Long.bitCount(this.capacity) != 1 || this.capacity > 1L << 34) {
+                    throw new IOException("Invalid capacity of token store index " + indexFile);
+                }
+                long regionSlots = 1L << INDEX_REGION_BITS;
+                this.slots = new MappedByteBuffer[(int) ((this.capacity + regionSlots - 1) / regionSlots)];
+                for (int i = 0; i < slots.length; i++) {
+                    long first = i * regionSlots;
+                    slots[i] = channel.map(FileChannel.MapMode.READ_WRITE, INDEX_HEADER + (first << SLOT_BITS),
+                            Math.min(this.capacity - first, regionSlots) << SLOT_BITS);
+                }
+                int regionCount = (int) Math.max((log.size() + LOG_REGION - 1) >>> LOG_REGION_BITS, 1);
+                MappedByteBuffer[] regions = new MappedByteBuffer[regionCount];
+                for (int i = 0; i < regionCount; i++) {
+                    regions[i] = log.map(FileChannel.MapMode.READ_WRITE, (long) i << LOG_REGION_BITS, LOG_REGION);
+                }
+                this.regions = regions;
+                this.index = channel;
+            } catch (IOException | RuntimeException ex) {
+                log.close();
+                if (channel != null) {
+                    channel.close();
+                }
+                throw ex;
+            }
+        }
+
+        /**
+         * Creates the files of a new generation, empty.
+         */
+        static Generation create(File directory, long number, long capacity) throws IOException {
+            Generation generation = new Generation(directory, number, capacity);
+            generation.regions[0].putLong(0, LOG_MAGIC);
+            generation.writeHeader(BUILDING);
+            return generation;
+        }
+
+        /**
+         * Reads the state of existing files, recovering it from the log if they were not closed.
+         */
+        void load(boolean clean) throws IOException {
+            checkpoint = Math.max(header.getLong(CHECKPOINT_OFFSET), LOG_START);
+            records = header.getLong(RECORDS_OFFSET);
+            if (clean) {
+                end = checkpoint;
+                dead = header.getInt(DEAD_OFFSET);
+                canonical = header.getInt(CANONICAL_OFFSET);
+                removed = header.getLong(REMOVED_OFFSET);
+                return;
+            }
+            long position = replay(this, checkpoint, (long) regions.length << LOG_REGION_BITS);
+            LOG.info("Recovered token store {} from {} to {}", indexFile.getParentFile(), checkpoint, position);
+            end = position;
+            // what follows may be the remains of the records being written at the crash
+            for (long p = position; p < (long) regions.length << LOG_REGION_BITS; p += 8) {
+                MappedByteBuffer region = regions[(int) (p >>> LOG_REGION_BITS)];
+                int at = (int) (p & (LOG_REGION - 1));
+                if (region.getLong(at) != 0) {
+                    region.putLong(at, 0);
+                }
+            }
+            // entries of the index whose records were lost
+            int deadCount = 0;
+            int canonicalCount = 0;
+            removed = 0;
+            long[] chunk = new long[8192];
+            for (long first = 0; first < capacity; first += chunk.length / 2) {
+                LongBuffer buffer = slots[(int) (first >>> INDEX_REGION_BITS)].duplicate().asLongBuffer();
+                buffer.position(offset(first) / 8);
+                int length = (int) Math.min(chunk.length, (capacity - first) * 2);
+                buffer.get(chunk, 0, length);
+                for (int i = 0; i < length; i += 2) {
+                    long key = chunk[i];
+                    if (key == REMOVED) {
+                        removed++;
+                    } else if (key != EMPTY) {
+                        if (chunk[i + 1] < LOG_START || chunk[i + 1] >= position) {
+                            setKey(first + i / 2, REMOVED);
+                            removed++;
+                        } else if ((key & TAG_MASK) == CANONICAL) {
+                            canonicalCount++;
+                        } else {
+                            deadCount++;
+                        }
+                    }
+                }
+            }
+            dead = deadCount;
+            canonical = canonicalCount;
+        }
+
+        /**
+         * Applies the records of a log, from a position up to a limit or its first damaged record.
+         * @return the position after the last record applied
+         */
+        long replay(Generation source, long position, long limit) throws IOException {
+            while (position < limit) {
+                int at = (int) (position & (LOG_REGION - 1));
+                int region = (int) (position >>> LOG_REGION_BITS);
+                if (region >= source.regions.length) {
+                    break;
+                }
+                if (source.regions[region].getInt(at) == NEXT_REGION) {
+                    position += LOG_REGION - at;
+                    continue;
+                }
+                byte[] record = source.read(position);
+                if (record == null) {
+                    break;
+                }
+                if (source == this) {
+                    records++;
+                    apply(record, position);
+                } else {
+                    apply(record, append(record));
+                }
+                position += record.length;
+            }
+            return position;
+        }
+
+        /**
+         * Record at a position of the log, or null if there is no valid record there.
+         */
+        byte[] read(long position) {
+            MappedByteBuffer[] regions = this.regions;
+            int region = (int) (position >>> LOG_REGION_BITS);
+            if (region >= regions.length) {
+                return null;
+            }
+            int at = (int) (position & (LOG_REGION - 1));
+            int length = regions[region].getInt(at);
+            if (length < RECORD_HEADER || length > RECORD_HEADER + MAX_CANONICAL || length > LOG_REGION - at) {
+                return null;
+            }
+            byte[] record = new byte[(length + 7) & ~7];
+            ByteBuffer buffer = regions[region].duplicate();
+            buffer.position(at);
+            buffer.get(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, length - 8);
+            return (int) crc.getValue() == ByteBuffer.wrap(record).getInt(4) ? record : null;
+        }
+
+        /**
+         * Appends a record to the log.
+         * @return its position
+         */
+        long append(byte[] record) throws IOException {
+            long position = end;
+            int at = (int) (position & (LOG_REGION - 1));
+            if (at + record.length > LOG_REGION) {
+                region(position).putInt(at, NEXT_REGION);
+                position += LOG_REGION - at;
+                at = 0;
+            }
+            ByteBuffer buffer = region(position).duplicate();
+            buffer.position(at);
+            buffer.put(record);
+            records++;
+            // publishes the record to the lookups
+            end = position + record.length;
+            return position;
+        }
+
+        private MappedByteBuffer region(long position) throws IOException {
+            int region = (int) (position >>> LOG_REGION_BITS);
+            MappedByteBuffer[] regions = this.regions;
+            if (region >= regions.length) {
+                MappedByteBuffer[] grown = Arrays.copyOf(regions, region + 1);
+                for (int i = regions.length; i < grown.length; i++) {
+                    grown[i] = log.map(FileChannel.MapMode.READ_WRITE, (long) i << LOG_REGION_BITS, LOG_REGION);
+                }
+                this.regions = grown;
+                regions = grown;
+            }
+            return regions[region];
+        }
+
+        /**
+         * Applies a record at a position of the log to the index.
+         * @return false if the index is too full for a new entry
+         */
+        boolean apply(byte[] record, long position) {
+            long key = recordKey(record);
+            long slot = (key >>> 5) & (capacity - 1);
+            long free = -1;
+            for (long probes = 0; probes < capacity; probes++) {
+                long current = key(slot);
+                if (current == EMPTY) {
+                    break;
+                }
+                if (current == REMOVED) {
+                    free = free < 0 ? slot : free;
+                } else if (sameEntry(current, key)) {
+                    if (record[16] == REMOVE) {
+                        setKey(slot, REMOVED);
+                        removed++;
+                        count(current, -1);
+                    } else {
+                        set(slot, key, position);
+                    }
+                    return true;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (record[16] == REMOVE) {
+                return true;
+            }
+            if (free >= 0) {
+                removed--;
+            } else if (dead + canonical + removed < capacity / 10 * 9) {
+                free = slot;
+            } else {
+                return false;
+            }
+            set(free, key, position);
+            count(key, 1);
+            return true;
+        }
+
+        /**
+         * Slot of the entry of the same ID and kind as a key, or -1.
+         */
+        long find(long key) {
+            long slot = (key >>> 5) & (capacity - 1);
+            for (long probes = 0; probes < capacity; probes++) {
+                long current = key(slot);
+                if (current == EMPTY) {
+                    return -1;
+                }
+                if (current != REMOVED && sameEntry(current, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            return -1;
+        }
+
+        long key(long slot) {
+            return slots[(int) (slot >>> INDEX_REGION_BITS)].getLong(offset(slot));
+        }
+
+        long position(long slot) {
+            return slots[(int) (slot >>> INDEX_REGION_BITS)].getLong(offset(slot) + 8);
+        }
+
+        private void set(long slot, long key, long position) {
+            MappedByteBuffer region = slots[(int) (slot >>> INDEX_REGION_BITS)];
+            // the key last, a lookup finding it then checks the record
+            region.putLong(offset(slot) + 8, position);
+            region.putLong(offset(slot), key);
+        }
+
+        private void setKey(long slot, long key) {
+            slots[(int) (slot >>> INDEX_REGION_BITS)].putLong(offset(slot), key);
+        }
+
+        private static int offset(long slot) {
+            return (int) (slot & ((1 << INDEX_REGION_BITS) - 1)) << SLOT_BITS;
+        }
+
+        private void count(long key, int delta) {
+            if ((key & TAG_MASK) == CANONICAL) {
+                canonical += delta;
+            } else {
+                dead += delta;
+            }
+        }
+
+        /**
+         * Writes the files to disk, and records a position of the log as the one to recover from.
+         * @param records number of records up to the position
+         */
+        void flush(long position, long records) {
+            MappedByteBuffer[] regions = this.regions;
+            for (int i = (int) (checkpoint >>> LOG_REGION_BITS); i < regions.length; i++) {
+                regions[i].force();
+            }
+            for (MappedByteBuffer region : slots) {
+                region.force();
+            }
+            checkpoint = position;
+            header.putLong(CHECKPOINT_OFFSET, position);
+            header.putLong(RECORDS_OFFSET, records);
+            header.force();
+        }
+
+        void writeHeader(int state) {
+            header.putLong(MAGIC_OFFSET, INDEX_MAGIC);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(STATE_OFFSET, state);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(CHECKPOINT_OFFSET, checkpoint);
+            header.putLong(RECORDS_OFFSET, records);
+            header.putInt(DEAD_OFFSET, dead);
+            header.putInt(CANONICAL_OFFSET, canonical);
+            header.putLong(REMOVED_OFFSET, removed);
+            header.force();
+        }
+
+        void close(boolean clean) throws IOException {
+            try {
+                if (clean) {
+                    flush(end, records);
+                    writeHeader(CLOSED);
+                }
+            } finally {
+                log.close();
+                index.close();
+            }
+        }
+
+        void delete() {
+            boolean deleted = logFile.delete();
+            if (!indexFile.delete() || !deleted) {
+                LOG.warn("Cannot delete token store files {}", indexFile);
+            }
+        }
+
+    }
+
+}
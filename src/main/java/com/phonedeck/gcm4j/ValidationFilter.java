@@ -0,0 +1,106 @@
+package com.phonedeck.gcm4j;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Filter rejecting requests GCM would reject anyway, without sending them. The checks mirror the errors GCM reports for
+ * the whole request:
+ * <ul>
+ * <li>{@link ResultError#MISSING_REGISTRATION} when there is neither a registration ID nor a notification key</li>
+ * <li>{@link ResultError#INVALID_TTL} when the time to live is not between 0 and 4 weeks</li>
+ * <li>{@link ResultError#INVALID_DATA_KEY} when a data key is {@code from} or starts with {@code google.}</li>
+ * <li>{@link ResultError#MESSAGE_TOO_BIG} when the keys and values of the data and the notification exceed 4096 bytes</li>
+ * </ul>
+ * A rejected request gets a response reporting the error for each of its registration IDs, or a single result without
+ * registration ID if it has none. The payload size is the UTF-8 size of the keys and values, summed without
+ * serializing the request.
+ */
+public class ValidationFilter implements GcmFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ValidationFilter.class);
+
+    /** Maximum size of the payload in bytes. */
+    public static final int MAX_PAYLOAD_SIZE = 4096;
+
+    /** Maximum time to live in seconds. */
+    public static final long MAX_TIME_TO_LIVE = TimeUnit.DAYS.toSeconds(28);
+
+    @Override
+    public ListenableFuture<GcmResponse> filter(GcmRequest request, FilterChain chain) {
+        ResultError error = validate(request);
+        if (error != null) {
+            LOG.debug("Request rejected without sending it: {}", error);
+            return Futures.immediateFuture(Multicast.failed(request, error, null));
+        }
+        return chain.next(request);
+    }
+
+    /**
+     * Checks the request against the limits of the GCM protocol.
+     * @param request the request
+     * @return the error GCM would report, or null if the request is valid
+     */
+    public ResultError validate(GcmRequest request) {
+        List<String> ids = request.getRegistrationIds();
+        if ((ids == null || ids.isEmpty()) && request.getNotificationKey() == null) {
+            return ResultError.MISSING_REGISTRATION;
+        }
+        if (request.getTimeToLive() < 0 || request.getTimeToLive() > MAX_TIME_TO_LIVE) {
+            return ResultError.INVALID_TTL;
+        }
+        if (request.getData() != null) {
+            for (String key : request.getData().keySet()) {
+                if (key == null || key.equals("from") || key.startsWith("google.")) {
+                    return ResultError.INVALID_DATA_KEY;
+                }
+            }
+        }
+        int size = payloadSize(request.getData(), 0);
+        if (payloadSize(request.getNotification(), size) > MAX_PAYLOAD_SIZE) {
+            return ResultError.MESSAGE_TOO_BIG;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the size of the keys and values of the map to the given size, stopping once the limit is exceeded.
+     */
+    private static int payloadSize(Map<String, String> map, int size) {
+        if (map == null) {
+            return size;
+        }
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (size > MAX_PAYLOAD_SIZE) {
+                break;
+            }
+            size += utf8Length(entry.getKey()) + utf8Length(entry.getValue());
+        }
+        return size;
+    }
+
+    private static int utf8Length(String str) {
+        if (str == null) {
+            return 0;
+        }
+        int length = str.length();
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 0x800) {
+                // surrogate pairs take 4 bytes for 2 chars
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Factory of virtual thread executors. This is the baseline version for JVMs without virtual threads; the
+ * multi-release jar carries a Java 21 version of this class in {@code META-INF/versions/21}.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Whether the running JVM supports virtual threads.
+     * @return true if {@link #newExecutor()} can be used
+     */
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Creates an executor that runs every task on a new virtual thread.
+     * @return the executor
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads
+     */
+    static ExecutorService newExecutor() {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later and the multi-release gcm4j jar");
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory of virtual thread executors, Java 21 version of the class.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ExecutorService newExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("gcm4j-virtual-", 0).factory());
+    }
+
+}
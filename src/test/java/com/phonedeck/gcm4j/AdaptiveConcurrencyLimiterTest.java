@@ -0,0 +1,103 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    public void queuesRequestsOverTheLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter().withLimits(2, 1, 10);
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withConcurrencyLimiter(limiter)).hold(true);
+        ListenableFuture<GcmResponse> first = gcm.send(new GcmRequest().withRegistrationId("a"));
+        gcm.send(new GcmRequest().withRegistrationId("b"));
+        ListenableFuture<GcmResponse> third = gcm.send(new GcmRequest().withRegistrationId("c"));
+        Assert.assertEquals(2, gcm.held.size());
+        Assert.assertEquals(2, limiter.getInFlight());
+        Assert.assertEquals(1, limiter.getQueued());
+
+        gcm.complete(0);
+        Assert.assertEquals("a", first.get().getRequest().getRegistrationIds().get(0));
+        Assert.assertEquals(3, gcm.held.size());
+        Assert.assertEquals(0, limiter.getQueued());
+        Assert.assertFalse(third.isDone());
+        gcm.complete(2);
+        Assert.assertEquals("c", third.get(1, TimeUnit.SECONDS).getRequest().getRegistrationIds().get(0));
+    }
+
+    @Test
+    public void growsWhileLatencyIsStable() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter().withLimits(4, 1, 100);
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withConcurrencyLimiter(limiter)).hold(true);
+        for (int round = 0; round < 20; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                gcm.send(new GcmRequest().withRegistrationId("a"));
+            }
+            for (int i = gcm.held.size() - limit; i < gcm.held.size(); i++) {
+                gcm.complete(i);
+            }
+        }
+        Assert.assertTrue(limiter.getLimit() > 4);
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void backsOffOnUnavailable() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter().withLimits(8, 1, 10);
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withConcurrencyLimiter(limiter)).hold(true);
+        gcm.send(new GcmRequest().withRegistrationId("a"));
+        gcm.send(new GcmRequest().withRegistrationId("b"));
+        gcm.held.get(0).setException(new GcmNetworkException(503, "Unavailable", null));
+        Assert.assertEquals(4, limiter.getLimit());
+        // same round trip, not decreased again
+        gcm.held.get(1).setException(new GcmNetworkException(503, "Unavailable", null));
+        Assert.assertEquals(4, limiter.getLimit());
+
+        // a client error is not a sign of overload
+        gcm.send(new GcmRequest().withRegistrationId("c"));
+        gcm.held.get(2).setException(new GcmNetworkException(400, "Bad request", null));
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void drainsSynchronousCompletionsInALoop() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter().withLimits(1, 1, 1);
+        final SettableFuture<GcmResponse> first = SettableFuture.create();
+        limiter.execute(new GcmRequest(), new AsyncFunction<GcmRequest, GcmResponse>() {
+            @Override
+            public ListenableFuture<GcmResponse> apply(GcmRequest request) {
+                return first;
+            }
+        });
+        AsyncFunction<GcmRequest, GcmResponse> failing = new AsyncFunction<GcmRequest, GcmResponse>() {
+            @Override
+            public ListenableFuture<GcmResponse> apply(GcmRequest request) {
+                return Futures.immediateFailedFuture(new GcmNetworkException(400, "Bad request", null));
+            }
+        };
+        List<ListenableFuture<GcmResponse>> queued = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            queued.add(limiter.execute(new GcmRequest(), failing));
+        }
+        Assert.assertEquals(100000, limiter.getQueued());
+
+        // each queued request completes while sent, the queue must not be drained recursively
+        first.set(new GcmResponse());
+        for (ListenableFuture<GcmResponse> future : queued) {
+            Assert.assertTrue(future.isDone());
+        }
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+}
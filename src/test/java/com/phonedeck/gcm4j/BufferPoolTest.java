@@ -0,0 +1,65 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void sizeClasses() {
+        BufferPool pool = new BufferPool(64 * 1024, 4);
+        Assert.assertEquals(1024, pool.acquire(1).length);
+        Assert.assertEquals(1024, pool.acquire(1024).length);
+        Assert.assertEquals(2048, pool.acquire(1025).length);
+        Assert.assertEquals(64 * 1024, pool.acquire(40000).length);
+        Assert.assertEquals(70000, pool.acquire(70000).length);
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(64 * 1024, 4);
+        byte[] buffer = pool.acquire(3000);
+        pool.release(buffer);
+        Assert.assertEquals(1, pool.getPooledBuffers());
+        Assert.assertSame(buffer, pool.acquire(4096));
+        Assert.assertEquals(0, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void capsPooledBuffers() {
+        BufferPool pool = new BufferPool(64 * 1024, 2);
+        for (int i = 0; i < 5; i++) {
+            pool.release(new byte[1024]);
+        }
+        Assert.assertEquals(2, pool.getPooledBuffers());
+        // oversized and foreign buffers are not kept
+        pool.release(pool.acquire(1024 * 1024));
+        pool.release(new byte[3000]);
+        pool.release(new byte[128 * 1024]);
+        Assert.assertEquals(2, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void pooledOutputStreamGrows() throws IOException {
+        BufferPool pool = new BufferPool(64 * 1024, 4);
+        byte[] content = new byte[5000];
+        Arrays.fill(content, (byte) 'a');
+        PooledOutputStream out = new PooledOutputStream(pool, 1024);
+        out.readFrom(new ByteArrayInputStream(content));
+        out.write('b');
+        Assert.assertEquals(5001, out.size());
+        Assert.assertEquals(new String(content, StandardCharsets.UTF_8) + "b", out.toString(StandardCharsets.UTF_8));
+        // the smaller buffers went back to the pool while growing
+        Assert.assertEquals(3, pool.getPooledBuffers());
+        out.release();
+        out.release();
+        Assert.assertEquals(4, pool.getPooledBuffers());
+    }
+
+}
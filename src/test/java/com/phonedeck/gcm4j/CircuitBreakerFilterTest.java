@@ -0,0 +1,89 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class CircuitBreakerFilterTest {
+
+    private final List<String> transitions = new ArrayList<>();
+
+    private final CircuitBreakerFilter filter = new CircuitBreakerFilter()
+        .withFailureRateThreshold(0.5, 4)
+        .withOpenDuration(50, TimeUnit.MILLISECONDS)
+        .withListener(new CircuitBreakerFilter.Listener() {
+            @Override
+            public void onStateChange(CircuitBreakerFilter.State from, CircuitBreakerFilter.State to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+
+    private final ScriptedGcm gcm = new ScriptedGcm(filter);
+
+    @Test
+    public void opensAndRecovers() throws Exception {
+        gcm.fail(new GcmNetworkException(503, "failed", null));
+        for (int i = 0; i < 4; i++) {
+            assertFails(503);
+        }
+        Assert.assertEquals(CircuitBreakerFilter.State.OPEN, filter.getState());
+        GcmCircuitOpenException open = (GcmCircuitOpenException) assertFails(503);
+        Assert.assertTrue(open.getRetryAfter() > 0 && open.getRetryAfter() <= 50);
+        Assert.assertEquals(4, gcm.sent.size());
+
+        Thread.sleep(60);
+        gcm.fail(null);
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        Assert.assertEquals(CircuitBreakerFilter.State.CLOSED, filter.getState());
+        Assert.assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", transitions.toString());
+    }
+
+    @Test
+    public void failedProbeReopens() throws Exception {
+        gcm.fail(new GcmNetworkException(500, "failed", null));
+        for (int i = 0; i < 4; i++) {
+            assertFails(500);
+        }
+        Thread.sleep(60);
+        assertFails(500);
+        Assert.assertEquals(CircuitBreakerFilter.State.OPEN, filter.getState());
+        Assert.assertEquals(5, gcm.sent.size());
+    }
+
+    @Test
+    public void openDurationHonorsRetryAfter() throws Exception {
+        gcm.fail(new GcmNetworkException(503, "failed", 10000L, null));
+        for (int i = 0; i < 4; i++) {
+            assertFails(503);
+        }
+        Thread.sleep(60);
+        GcmCircuitOpenException open = (GcmCircuitOpenException) assertFails(503);
+        Assert.assertTrue(open.getRetryAfter() > 9000);
+    }
+
+    @Test
+    public void clientErrorsDoNotOpen() throws Exception {
+        gcm.fail(new GcmNetworkException(401, "failed", null));
+        for (int i = 0; i < 10; i++) {
+            assertFails(401);
+        }
+        Assert.assertEquals(CircuitBreakerFilter.State.CLOSED, filter.getState());
+    }
+
+    private GcmNetworkException assertFails(int code) throws InterruptedException {
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("a")).get();
+            throw new AssertionError("did not fail");
+        } catch (ExecutionException ex) {
+            GcmNetworkException gne = (GcmNetworkException) ex.getCause();
+            Assert.assertEquals(code, gne.getCode());
+            return gne;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class CoalescingFilterTest {
+
+    @Test
+    public void mergesIdenticalPayloads() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new CoalescingFilter(50, TimeUnit.MILLISECONDS));
+        List<ListenableFuture<GcmResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(gcm.send(new GcmRequest().withRegistrationId("id-" + i).withCollapseKey("ck").withDataItem("a", "b")));
+        }
+        ListenableFuture<GcmResponse> other = gcm.send(new GcmRequest().withRegistrationId("other").withDataItem("a", "c"));
+
+        for (int i = 0; i < 5; i++) {
+            GcmResponse response = futures.get(i).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(1, response.getResults().size());
+            Assert.assertEquals("id-" + i, response.getResults().get(0).getRequestedRegistrationId());
+            Assert.assertEquals("1:id-" + i, response.getResults().get(0).getMessageId());
+            Assert.assertEquals(1, response.getSuccess());
+            Assert.assertEquals("id-" + i, response.getRequest().getRegistrationIds().get(0));
+        }
+        Assert.assertEquals("other", other.get(5, TimeUnit.SECONDS).getResults().get(0).getRequestedRegistrationId());
+        Assert.assertEquals(2, gcm.sent.size());
+    }
+
+    @Test
+    public void sendsFullBatchImmediately() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new CoalescingFilter(1, TimeUnit.HOURS).withMaxBatchSize(3));
+        List<ListenableFuture<GcmResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(gcm.send(new GcmRequest().withRegistrationId("id-" + i)));
+        }
+        for (ListenableFuture<GcmResponse> future : futures) {
+            Assert.assertTrue(future.isDone());
+        }
+        Assert.assertEquals(3, gcm.sent.get(0).getRegistrationIds().size());
+    }
+
+    @Test
+    public void cancelledRequestsLeaveTheBatch() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new CoalescingFilter(100, TimeUnit.MILLISECONDS).withMaxBatchSize(3));
+        ListenableFuture<GcmResponse> a = gcm.send(new GcmRequest().withRegistrationId("a"));
+        gcm.send(new GcmRequest().withRegistrationId("b")).cancel(false);
+        ListenableFuture<GcmResponse> c = gcm.send(new GcmRequest().withRegistrationId("c"));
+        ListenableFuture<GcmResponse> d = gcm.send(new GcmRequest().withRegistrationId("d"));
+        Assert.assertTrue(d.isDone());
+        Assert.assertEquals(Arrays.asList("a", "c", "d"), gcm.sent.get(0).getRegistrationIds());
+        Assert.assertEquals("1:a", a.get().getResults().get(0).getMessageId());
+        Assert.assertEquals("1:c", c.get().getResults().get(0).getMessageId());
+        Assert.assertEquals("1:d", d.get().getResults().get(0).getMessageId());
+
+        // a batch whose requests were all cancelled sends nothing
+        gcm.send(new GcmRequest().withRegistrationId("e")).cancel(false);
+        Thread.sleep(300);
+        Assert.assertEquals(1, gcm.sent.size());
+    }
+
+    @Test
+    public void passesMulticastThrough() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new CoalescingFilter(1, TimeUnit.HOURS));
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationId("a").withRegistrationId("b")).get();
+        Assert.assertEquals(2, response.getResults().size());
+    }
+
+}
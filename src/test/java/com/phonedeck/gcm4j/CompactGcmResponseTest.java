@@ -0,0 +1,96 @@
+package com.phonedeck.gcm4j;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class CompactGcmResponseTest {
+
+    private static GcmResponse response(int size) {
+        GcmRequest request = new GcmRequest();
+        GcmResponse response = new GcmResponse();
+        response.setRequest(request);
+        response.setMulticastId(42);
+        response.setRetryAfter(1000L);
+        for (int i = 0; i < size; i++) {
+            request.withRegistrationId("id-" + i);
+            Result result = new Result();
+            result.setRequestedRegistrationId("id-" + i);
+            if (i % 10 == 3) {
+                result.setError(i % 20 == 3 ? ResultError.NOT_REGISTERED : ResultError.UNAVAILABLE);
+                response.setFailure(response.getFailure() + 1);
+            } else {
+                result.setMessageId("0:1234567890%" + i);
+                response.setSuccess(response.getSuccess() + 1);
+            }
+            if (i % 100 == 7) {
+                result.setCanonicalRegistrationId("canonical-" + i);
+                response.setCanonicalIds(response.getCanonicalIds() + 1);
+            }
+            response.getResults().add(result);
+        }
+        return response;
+    }
+
+    @Test
+    public void sameResults() {
+        GcmResponse response = response(1000);
+        CompactGcmResponse compact = CompactGcmResponse.of(response);
+        Assert.assertEquals(1000, compact.size());
+        Assert.assertEquals(42, compact.getMulticastId());
+        Assert.assertEquals(response.getSuccess(), compact.getSuccess());
+        Assert.assertEquals(response.getFailure(), compact.getFailure());
+        Assert.assertEquals(10, compact.getCanonicalIds());
+        Assert.assertEquals(Long.valueOf(1000), compact.getRetryAfter());
+        Assert.assertSame(response.getRequest(), compact.getRequest());
+
+        CompactGcmResponse.Cursor cursor = compact.cursor();
+        int i = 0;
+        while (cursor.next()) {
+            Result expected = response.getResults().get(i);
+            Assert.assertEquals(i, cursor.getIndex());
+            Assert.assertEquals(expected.getMessageId(), cursor.getMessageId());
+            Assert.assertEquals(expected.getError(), cursor.getError());
+            Assert.assertEquals(expected.isError(), cursor.isError());
+            Assert.assertEquals(expected.getCanonicalRegistrationId(), cursor.getCanonicalRegistrationId());
+            Assert.assertEquals(expected.getRequestedRegistrationId(), cursor.getRequestedRegistrationId());
+            i++;
+        }
+        Assert.assertEquals(1000, i);
+        Assert.assertFalse(cursor.next());
+    }
+
+    @Test
+    public void requestedIdsAreKeptWhenRequestChanges() {
+        GcmResponse response = response(3);
+        CompactGcmResponse compact = CompactGcmResponse.of(response);
+        response.getRequest().getRegistrationIds().set(1, "other");
+        response.getRequest().getRegistrationIds().clear();
+
+        CompactGcmResponse.Cursor cursor = compact.cursor();
+        for (int i = 0; cursor.next(); i++) {
+            Assert.assertEquals("id-" + i, cursor.getRequestedRegistrationId());
+        }
+    }
+
+    @Test
+    public void messageIdChars() {
+        CompactGcmResponse compact = CompactGcmResponse.of(response(20));
+        CompactGcmResponse.Cursor cursor = compact.cursor();
+        cursor.moveTo(12);
+        char[] chars = new char[cursor.getMessageIdLength()];
+        cursor.getMessageIdChars(chars, 0);
+        Assert.assertEquals("0:1234567890%12", new String(chars));
+        cursor.moveTo(13);
+        Assert.assertEquals(0, cursor.getMessageIdLength());
+        Assert.assertEquals("canonical-7", compact.get(7).getCanonicalRegistrationId());
+    }
+
+    @Test
+    public void empty() {
+        CompactGcmResponse compact = CompactGcmResponse.of(new GcmResponse());
+        Assert.assertEquals(0, compact.size());
+        Assert.assertFalse(compact.cursor().next());
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.phonedeck.gcm4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class DeadlineTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 64);
+
+    /** Connections the server saw closed by the client. */
+    private final BlockingQueue<Socket> closed = new LinkedBlockingQueue<>();
+
+    private ServerSocket serverSocket;
+
+    private NioGcm nioGcm;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+        // reads the requests and never answers
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException ex) {
+                        return;
+                    }
+                    Thread reader = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try (InputStream is = socket.getInputStream()) {
+                                while (is.read() >= 0) {
+                                    // discard
+                                }
+                            } catch (IOException ex) {
+                                // reset by the client
+                            }
+                            closed.add(socket);
+                        }
+                    });
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (nioGcm != null) {
+            nioGcm.close();
+        }
+        serverSocket.close();
+        timer.close();
+    }
+
+    private GcmConfig config() throws IOException {
+        return new GcmConfig().withEndpoint(new URL("http://localhost:" + serverSocket.getLocalPort() + "/gcm/send"))
+                .withKey("mykey").withTimer(timer);
+    }
+
+    @Test
+    public void deadlineAbortsConnectionAndFreesThread() throws Exception {
+        // a single thread, a hung request would hold it
+        DefaultGcm gcm = new DefaultGcm(config().withDeadline(100, TimeUnit.MILLISECONDS)
+                .withExecutor(MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor())));
+        for (int i = 0; i < 2; i++) {
+            ListenableFuture<GcmResponse> future = gcm.send(new GcmRequest().withRegistrationId("a"));
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail("did not throw");
+            } catch (ExecutionException ex) {
+                Assert.assertTrue(ex.getCause() instanceof GcmTimeoutException);
+            }
+            Assert.assertNotNull(closed.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void requestDeadlineOverridesClientDeadline() throws Exception {
+        DefaultGcm gcm = new DefaultGcm(config().withDeadline(1, TimeUnit.HOURS));
+        long start = System.nanoTime();
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("a").withDeadline(50, TimeUnit.MILLISECONDS)).get(5, TimeUnit.SECONDS);
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof GcmTimeoutException);
+        }
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void cancelAbortsConnection() throws Exception {
+        DefaultGcm gcm = new DefaultGcm(config());
+        ListenableFuture<GcmResponse> future = gcm.send(new GcmRequest().withRegistrationId("a"));
+        Thread.sleep(100);
+        future.cancel(true);
+        Assert.assertNotNull(closed.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, gcm.getInFlightRequests());
+    }
+
+    @Test
+    public void cancelAbortsNioExchange() throws Exception {
+        nioGcm = new NioGcm(config());
+        ListenableFuture<GcmResponse> future = nioGcm.send(new GcmRequest().withRegistrationId("a"));
+        Thread.sleep(100);
+        future.cancel(true);
+        Assert.assertNotNull(closed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        DefaultGcm gcm = new DefaultGcm(config().withReadTimeout(50, TimeUnit.MILLISECONDS));
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof GcmNetworkException);
+            Assert.assertTrue(ex.getCause().getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+}
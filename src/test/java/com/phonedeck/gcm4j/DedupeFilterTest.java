@@ -0,0 +1,141 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DedupeFilterTest {
+
+    /**
+     * Gcm reporting "gone" as not registered, and the other IDs as sent.
+     */
+    private static ScriptedGcm gcm(DedupeFilter filter) {
+        return new ScriptedGcm(filter).script(new ScriptedGcm.Script() {
+            @Override
+            public Result answer(String id) {
+                if (!id.equals("gone")) {
+                    return null;
+                }
+                Result result = new Result();
+                result.setError(ResultError.NOT_REGISTERED);
+                return result;
+            }
+        });
+    }
+
+    @Test
+    public void duplicatesWithinRequest() throws Exception {
+        ScriptedGcm gcm = gcm(new DedupeFilter());
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "b", "a", "gone", "a")))
+                .get();
+        Assert.assertEquals(Arrays.asList("a", "b", "gone"), gcm.sent.get(0).getRegistrationIds());
+        Assert.assertEquals(5, response.getResults().size());
+        Assert.assertEquals("1:a", response.getResults().get(0).getMessageId());
+        Assert.assertEquals("1:b", response.getResults().get(1).getMessageId());
+        Assert.assertEquals("1:a", response.getResults().get(2).getMessageId());
+        Assert.assertEquals("a", response.getResults().get(2).getRequestedRegistrationId());
+        Assert.assertEquals(ResultError.NOT_REGISTERED, response.getResults().get(3).getError());
+        Assert.assertEquals("1:a", response.getResults().get(4).getMessageId());
+        Assert.assertEquals(4, response.getSuccess());
+        Assert.assertEquals(1, response.getFailure());
+
+        // without a window, the message is sent again
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "b"))).get();
+        Assert.assertEquals(Arrays.asList("a", "b"), gcm.sent.get(1).getRegistrationIds());
+    }
+
+    @Test
+    public void repeatsWithinWindow() throws Exception {
+        ScriptedGcm gcm = gcm(new DedupeFilter().withWindow(1, TimeUnit.HOURS, 100));
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "gone")).withDataItem("k", "v")).get();
+
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("gone", "a", "b"))
+                .withDataItem("k", "v")).get();
+        // not accepted by GCM, "gone" is sent again
+        Assert.assertEquals(Arrays.asList("gone", "b"), gcm.sent.get(1).getRegistrationIds());
+        Assert.assertEquals(3, response.getResults().size());
+        Assert.assertEquals(ResultError.NOT_REGISTERED, response.getResults().get(0).getError());
+        Assert.assertEquals(ResultError.DUPLICATE_MESSAGE, response.getResults().get(1).getError());
+        Assert.assertEquals("a", response.getResults().get(1).getRequestedRegistrationId());
+        Assert.assertEquals("1:b", response.getResults().get(2).getMessageId());
+        Assert.assertEquals(1, response.getSuccess());
+        Assert.assertEquals(2, response.getFailure());
+
+        // another payload is not a repeat
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "b")).withDataItem("k", "w")).get();
+        Assert.assertEquals(Arrays.asList("a", "b"), gcm.sent.get(2).getRegistrationIds());
+
+        // only repeats, not sent
+        response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "b")).withDataItem("k", "w")).get();
+        Assert.assertEquals(3, gcm.sent.size());
+        Assert.assertEquals(2, response.getFailure());
+    }
+
+    @Test
+    public void payloadsWithEqualHashCodesDiffer() throws Exception {
+        ScriptedGcm gcm = gcm(new DedupeFilter().withWindow(1, TimeUnit.HOURS, 100));
+        // "Aa" and "BB" have the same hash code
+        gcm.send(new GcmRequest().withRegistrationId("a").withDataItem("k", "Aa")).get();
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationId("a").withDataItem("k", "BB")).get();
+        Assert.assertEquals("1:a", response.getResults().get(0).getMessageId());
+        Assert.assertEquals(2, gcm.sent.size());
+    }
+
+    @Test
+    public void windowExpiresAndIsBounded() {
+        long window = TimeUnit.SECONDS.toNanos(64);
+        DedupeFilter.Window messages = new DedupeFilter.Window(window, 16);
+        long start = System.nanoTime();
+        messages.add(DedupeFilter.hash("a", 1), start);
+        Assert.assertTrue(messages.contains(DedupeFilter.hash("a", 1), start + window / 2));
+        Assert.assertFalse(messages.contains(DedupeFilter.hash("a", 2), start));
+        Assert.assertFalse(messages.contains(DedupeFilter.hash("b", 1), start));
+        Assert.assertFalse(messages.contains(DedupeFilter.hash("a", 1), start + window * 2));
+
+        for (int i = 0; i < 10000; i++) {
+            messages.add(DedupeFilter.hash("token" + i, 1), start + i);
+        }
+        // the latest ones replaced older ones
+        Assert.assertTrue(messages.contains(DedupeFilter.hash("token9999", 1), start + 10000));
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            kept += messages.contains(DedupeFilter.hash("token" + i, 1), start + 10000) ? 1 : 0;
+        }
+        Assert.assertEquals(32, kept);
+    }
+
+    @Test
+    public void resultListener() throws Exception {
+        ScriptedGcm gcm = gcm(new DedupeFilter().withWindow(1, TimeUnit.HOURS, 100));
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        ResultListener listener = new ResultListener() {
+            @Override
+            public void onResult(Result result) {
+                results.add(result);
+            }
+        };
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "a", "gone"))
+                .withResultListener(listener)).get();
+        Assert.assertEquals(Arrays.asList("a", "gone"), gcm.sent.get(0).getRegistrationIds());
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(2, response.getSuccess());
+        Assert.assertEquals(1, response.getFailure());
+
+        results.clear();
+        response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "b")).withResultListener(listener))
+                .get();
+        Assert.assertEquals(Arrays.asList("b"), gcm.sent.get(1).getRegistrationIds());
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(ResultError.DUPLICATE_MESSAGE, results.get(0).getError());
+        Assert.assertEquals("1:b", results.get(1).getMessageId());
+        Assert.assertEquals(1, response.getSuccess());
+        Assert.assertEquals(1, response.getFailure());
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.phonedeck.gcm4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class DurableGcmTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StubGcm gcm = new StubGcm();
+
+    private DurableGcm queue;
+
+    @After
+    public void tearDown() throws IOException {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void sendsAndDeletesDoneSegments() throws Exception {
+        File directory = folder.newFolder("queue");
+        queue = new DurableGcm(gcm, directory, 4096);
+        gcm.answer = true;
+        List<ListenableFuture<GcmResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(queue.send(new GcmRequest().withRegistrationId("token" + i).withDataItem("k", "v" + i)));
+        }
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals("token" + i, futures.get(i).get(5, TimeUnit.SECONDS).getRequest().getRegistrationIds()
+                    .get(0));
+        }
+        Assert.assertEquals(0, queue.getPendingRequests());
+        // only the current segment is left
+        Assert.assertEquals(1, directory.listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        }).length);
+        queue.close();
+
+        queue = new DurableGcm(gcm, directory, 4096);
+        Assert.assertEquals(0, queue.getRecoveredRequests());
+    }
+
+    @Test
+    public void sendsUnansweredRequestsAgain() throws Exception {
+        File directory = folder.newFolder("queue");
+        queue = new DurableGcm(gcm, directory);
+        queue.send(new GcmRequest().withKey("k1").withRegistrationIds(Arrays.asList("a", "b")).withDataItem("k", "v")
+                .withTimeToLive(60).withDeadline(5, TimeUnit.SECONDS));
+        queue.send(new GcmRequest().withRegistrationId("c").withCollapseKey("\u00e9t\u00e9"));
+        queue.send(new GcmRequest().withRegistrationId("d"));
+        gcm.await(3);
+        gcm.futures.get(2).set(new GcmResponse());
+        // marked done once the queue got the response, maybe on its own thread
+        awaitPending(2);
+        queue.close();
+
+        StubGcm restarted = new StubGcm();
+        restarted.answer = true;
+        queue = new DurableGcm(restarted, directory);
+        Assert.assertEquals(2, queue.getRecoveredRequests());
+        restarted.await(2);
+        GcmRequest first = restarted.requests.get(0);
+        Assert.assertEquals("k1", first.getKey());
+        Assert.assertEquals(Arrays.asList("a", "b"), first.getRegistrationIds());
+        Assert.assertEquals("v", first.getData().get("k"));
+        Assert.assertEquals(60, first.getTimeToLive());
+        Assert.assertEquals(5000, first.getDeadline());
+        Assert.assertEquals("\u00e9t\u00e9", restarted.requests.get(1).getCollapseKey());
+        queue.close();
+
+        queue = new DurableGcm(restarted, directory);
+        Assert.assertEquals(0, queue.getRecoveredRequests());
+    }
+
+    @Test
+    public void recoversAfterCrash() throws Exception {
+        File directory = folder.newFolder("queue");
+        queue = new DurableGcm(gcm, directory);
+        queue.send(new GcmRequest().withRegistrationId("a"));
+        queue.send(new GcmRequest().withRegistrationId("b"));
+        gcm.await(2);
+
+        // the files as a killed process leaves them
+        File crashed = folder.newFolder("crashed");
+        copy(directory, crashed);
+        StubGcm restarted = new StubGcm();
+        try (DurableGcm recovered = new DurableGcm(restarted, crashed)) {
+            Assert.assertEquals(2, recovered.getRecoveredRequests());
+        }
+
+        // the last record was torn: "a" at 8, "b" at 64
+        File torn = folder.newFolder("torn");
+        copy(directory, torn);
+        try (RandomAccessFile log = new RandomAccessFile(new File(torn, "queue.1.log"), "rw")) {
+            log.seek(8 + 56 + 30);
+            log.write(0x55);
+        }
+        try (DurableGcm recovered = new DurableGcm(restarted, torn)) {
+            Assert.assertEquals(1, recovered.getRecoveredRequests());
+        }
+    }
+
+    @Test
+    public void closedQueueRejectsRequests() throws Exception {
+        File directory = folder.newFolder("queue");
+        queue = new DurableGcm(gcm, directory);
+        try {
+            new DurableGcm(gcm, directory);
+            Assert.fail("Opened twice");
+        } catch (IOException ex) {
+            // locked
+        }
+        queue.close();
+        try {
+            queue.send(new GcmRequest().withRegistrationId("a")).get();
+            Assert.fail("Sent by a closed queue");
+        } catch (java.util.concurrent.ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof GcmException);
+        }
+    }
+
+    private void awaitPending(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (queue.getPendingRequests() != count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, queue.getPendingRequests());
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        for (File file : from.listFiles()) {
+            if (!file.getName().endsWith(".lock")) {
+                Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+            }
+        }
+    }
+
+    /**
+     * Gcm answering the requests at once, or keeping them unanswered.
+     */
+    private static final class StubGcm implements Gcm {
+
+        private final List<GcmRequest> requests = new ArrayList<>();
+
+        private final List<SettableFuture<GcmResponse>> futures = new ArrayList<>();
+
+        private volatile boolean answer;
+
+        @Override
+        public synchronized ListenableFuture<GcmResponse> send(GcmRequest request) {
+            requests.add(request);
+            SettableFuture<GcmResponse> future = SettableFuture.create();
+            futures.add(future);
+            notifyAll();
+            if (answer) {
+                GcmResponse response = new GcmResponse();
+                response.setRequest(request);
+                future.set(response);
+            }
+            return future;
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (requests.size() < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            Assert.assertEquals(count, requests.size());
+        }
+
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.phonedeck.gcm4j;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class GcmBroadcasterTest {
+
+    @Test
+    public void broadcastsLazily() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8));
+        Gcm gcm = new AbstractDefaultGcm(new GcmConfig().withKey("k")) {
+            @Override
+            protected ListenableFuture<GcmResponse> executeRequestFuture(final GcmRequest request) {
+                int n = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(n, maxInFlight.get()));
+                }
+                return executor.submit(new Callable<GcmResponse>() {
+                    @Override
+                    public GcmResponse call() throws Exception {
+                        Thread.sleep(1);
+                        GcmResponse response = new GcmResponse();
+                        response.setRequest(request);
+                        response.setSuccess(request.getRegistrationIds().size());
+                        inFlight.decrementAndGet();
+                        return response;
+                    }
+                });
+            }
+        };
+        final AtomicInteger pulled = new AtomicInteger();
+        Iterator<String> audience = new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return pulled.get() < 25500;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return "id-" + pulled.getAndIncrement();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final AtomicInteger success = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        long sent = new GcmBroadcaster(gcm).withMaxInFlightBatches(3).broadcast(new GcmRequest().withCollapseKey("ck"),
+                audience, new BroadcastListener() {
+                    @Override
+                    public void onResponse(GcmResponse response) {
+                        Assert.assertEquals("ck", response.getRequest().getCollapseKey());
+                        success.addAndGet(response.getSuccess());
+                        batches.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onFailure(GcmRequest request, Throwable cause) {
+                        Assert.fail(cause.toString());
+                    }
+                }).get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Assert.assertEquals(25500, sent);
+        Assert.assertEquals(25500, success.get());
+        Assert.assertEquals(26, batches.get());
+        Assert.assertTrue(maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void reportsFailedBatches() throws Exception {
+        Gcm gcm = new AbstractDefaultGcm(new GcmConfig().withKey("k")) {
+            @Override
+            protected ListenableFuture<GcmResponse> executeRequestFuture(GcmRequest request) {
+                return Futures.immediateFailedFuture(new GcmNetworkException(503, "Unavailable", null));
+            }
+        };
+        final AtomicInteger failed = new AtomicInteger();
+        Iterator<String> audience = Collections.nCopies(5000, "id").iterator();
+        long sent = new GcmBroadcaster(gcm).broadcast(new GcmRequest(), audience, new BroadcastListener() {
+            @Override
+            public void onResponse(GcmResponse response) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onFailure(GcmRequest request, Throwable cause) {
+                failed.addAndGet(request.getRegistrationIds().size());
+            }
+        }).get();
+        Assert.assertEquals(5000, sent);
+        Assert.assertEquals(5000, failed.get());
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.phonedeck.gcm4j;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class GcmRequestWriterTest {
+
+    private final ObjectMapper mapper = new DefaultGcm(new GcmConfig().withKey("k")).getObjectMapper();
+
+    private void assertSameAsDatabind(GcmRequest request) throws Exception {
+        byte[] expected = mapper.writeValueAsBytes(request);
+        byte[] actual = GcmRequestWriter.encode(request);
+        Assert.assertEquals(new String(expected, "UTF-8"), new String(actual, "UTF-8"));
+        Assert.assertEquals(expected.length, GcmRequestWriter.length(request));
+    }
+
+    @Test
+    public void allFields() throws Exception {
+        Map<String, String> notification = new HashMap<>();
+        notification.put("title", "Hi");
+        assertSameAsDatabind(new GcmRequest()
+            .withRegistrationIds(Arrays.asList("a", "b"))
+            .withNotificationKey("nk")
+            .withNotificationKeyName("nkn")
+            .withCollapseKey("ck")
+            .withDataItem("x", "y")
+            .withDataItem("empty", null)
+            .withNotification(notification)
+            .withDelayWhileIdle(true)
+            .withTimeToLive(2419200)
+            .withRestrictedPackageName("com.example")
+            .withPriority("high")
+            .withDryRun(true)
+            .withKey("ignored"));
+    }
+
+    @Test
+    public void defaults() throws Exception {
+        assertSameAsDatabind(new GcmRequest());
+        assertSameAsDatabind(new GcmRequest().withRegistrationIds((List<String>) null).withData(null)
+                .withNotification(null));
+        assertSameAsDatabind(new GcmRequest().withTimeToLive(-1));
+    }
+
+    @Test
+    public void escapes() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 0x800; c++) {
+            sb.append(c);
+        }
+        sb.append("\u2028\uffff\ud83d\ude00 \ud800 \udc00");
+        assertSameAsDatabind(new GcmRequest().withRegistrationId(sb.toString()).withDataItem(sb.toString(), sb.toString()));
+    }
+
+}
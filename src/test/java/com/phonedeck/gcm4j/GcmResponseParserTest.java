@@ -0,0 +1,69 @@
+package com.phonedeck.gcm4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class GcmResponseParserTest {
+
+    private static final String BODY = "{\"multicast_id\":108,\"success\":2,\"failure\":1,\"canonical_ids\":1,"
+            + "\"unknown\":{\"nested\":[1,2,{}]},\"results\":[{\"message_id\":\"1:08\",\"extra\":[]},"
+            + "{\"error\":\"NotRegistered\",\"message_id\":null},"
+            + "{\"message_id\":\"1:2342\",\"registration_id\":\"32\"}]}";
+
+    private static GcmRequest request() {
+        return new GcmRequest().withRegistrationId("a").withRegistrationId("b").withRegistrationId("c");
+    }
+
+    @Test
+    public void parses() throws IOException {
+        GcmRequest request = request();
+        // within a larger buffer, as read from the connection
+        byte[] buffer = (" " + BODY + "  ").getBytes(StandardCharsets.UTF_8);
+        GcmResponse response = GcmResponseParser.parse(buffer, 1, BODY.length(), request);
+        Assert.assertSame(request, response.getRequest());
+        Assert.assertEquals(108, response.getMulticastId());
+        Assert.assertEquals(2, response.getSuccess());
+        Assert.assertEquals(1, response.getFailure());
+        Assert.assertEquals(1, response.getCanonicalIds());
+        Assert.assertEquals(3, response.getResults().size());
+
+        Result first = response.getResults().get(0);
+        Assert.assertEquals("1:08", first.getMessageId());
+        Assert.assertEquals("a", first.getRequestedRegistrationId());
+        Result second = response.getResults().get(1);
+        Assert.assertNull(second.getMessageId());
+        Assert.assertEquals(ResultError.NOT_REGISTERED, second.getError());
+        Assert.assertEquals("b", second.getRequestedRegistrationId());
+        Result third = response.getResults().get(2);
+        Assert.assertEquals("32", third.getCanonicalRegistrationId());
+        Assert.assertEquals("c", third.getRequestedRegistrationId());
+    }
+
+    @Test
+    public void streamsToListener() throws IOException {
+        final List<Result> results = new ArrayList<>();
+        GcmRequest request = request().withResultListener(new ResultListener() {
+            @Override
+            public void onResult(Result result) {
+                results.add(result);
+            }
+        });
+        GcmResponse response = GcmResponseParser.parse(BODY.getBytes(StandardCharsets.UTF_8), request);
+        Assert.assertTrue(response.getResults().isEmpty());
+        Assert.assertEquals(2, response.getSuccess());
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals("c", results.get(2).getRequestedRegistrationId());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformed() throws IOException {
+        GcmResponseParser.parse("[]".getBytes(StandardCharsets.UTF_8), request());
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class HashedWheelTimerTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void tearDown() {
+        timer.close();
+    }
+
+    @Test
+    public void runsTasksInDeadlineOrder() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        // longer than a turn of the wheel
+        for (final int delay : new int[] { 120, 10, 60 }) {
+            timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(delay);
+                    latch.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        long start = System.nanoTime();
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(110));
+        Assert.assertEquals(10, (int) order.get(0));
+        Assert.assertEquals(60, (int) order.get(1));
+        Assert.assertEquals(120, (int) order.get(2));
+        Assert.assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void cancelsTasks() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicBoolean cancelledRan = new AtomicBoolean();
+        HashedWheelTimer.Timeout cancelled = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                cancelledRan.set(true);
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(2, timer.getPendingTimeouts());
+        Assert.assertTrue(cancelled.cancel());
+        Assert.assertFalse(cancelled.cancel());
+        Assert.assertEquals(1, timer.getPendingTimeouts());
+        Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(cancelled.isCancelled());
+        Assert.assertFalse(cancelledRan.get());
+    }
+
+    @Test
+    public void sendAfter() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withTimer(timer));
+        long start = System.nanoTime();
+        ListenableFuture<GcmResponse> future = gcm.sendAfter(new GcmRequest().withRegistrationId("a"), 30, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(future.isDone());
+        Assert.assertEquals("1:a", future.get(5, TimeUnit.SECONDS).getResults().get(0).getMessageId());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+    }
+
+    @Test
+    public void cancelledSendIsNotSent() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withTimer(timer));
+        ListenableFuture<GcmResponse> future = gcm.sendAfter(new GcmRequest().withRegistrationId("a"), 20, TimeUnit.MILLISECONDS);
+        future.cancel(false);
+        Assert.assertEquals(0, timer.getPendingTimeouts());
+        gcm.sendAfter(new GcmRequest().withRegistrationId("b"), 40, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, gcm.sent.size());
+    }
+
+    @Test
+    public void scheduledSendHonorsRejectPolicy() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withTimer(timer).withMaxInFlightRequests(1)
+                .withOverflowPolicy(OverflowPolicy.REJECT));
+        gcm.hold(true);
+        gcm.send(new GcmRequest().withRegistrationId("a"));
+        try {
+            gcm.sendAfter(new GcmRequest().withRegistrationId("b"), 10, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof GcmRejectedException);
+        }
+    }
+
+    @Test
+    public void scheduledSendWaitsForAFreeSlot() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withTimer(timer).withMaxInFlightRequests(1));
+        gcm.hold(true);
+        gcm.send(new GcmRequest().withRegistrationId("a"));
+        gcm.hold(false);
+        ListenableFuture<GcmResponse> cancelled = gcm.sendAfter(new GcmRequest().withRegistrationId("b"), 10,
+                TimeUnit.MILLISECONDS);
+        ListenableFuture<GcmResponse> future = gcm.sendAfter(new GcmRequest().withRegistrationId("c"), 10,
+                TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+        // waiting for the slot, not polling the timer
+        Assert.assertEquals(0, timer.getPendingTimeouts());
+        Assert.assertFalse(future.isDone());
+        cancelled.cancel(false);
+
+        gcm.held.get(0).set(new GcmResponse());
+        Assert.assertEquals("1:c", future.get(5, TimeUnit.SECONDS).getResults().get(0).getMessageId());
+        Assert.assertEquals(2, gcm.sent.size());
+        Assert.assertEquals(0, gcm.getInFlightRequests());
+    }
+
+}
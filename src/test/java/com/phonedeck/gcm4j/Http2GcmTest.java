@@ -0,0 +1,199 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class Http2GcmTest {
+
+    private static final int MAX_CONCURRENT_STREAMS = 2;
+
+    private StubServer server;
+
+    private Http2Gcm gcm;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        gcm = new Http2Gcm(new GcmConfig()
+            .withEndpoint(new URL("http://localhost:" + server.serverSocket.getLocalPort() + "/gcm/send"))
+            .withKey("mykey")
+            .withHttp2Connections(1));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        gcm.close();
+        server.serverSocket.close();
+    }
+
+    @Test
+    public void multiplexedRequests() throws Exception {
+        List<ListenableFuture<GcmResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(gcm.send(new GcmRequest().withRegistrationId("id-" + i)));
+        }
+        for (int i = 0; i < 10; i++) {
+            Result result = futures.get(i).get(5, TimeUnit.SECONDS).getResults().get(0);
+            Assert.assertEquals("id-" + i, result.getRequestedRegistrationId());
+            Assert.assertEquals("1:id-" + i, result.getMessageId());
+        }
+        Assert.assertEquals(1, server.connections.get());
+        Assert.assertTrue(server.maxOpenStreams.get() <= MAX_CONCURRENT_STREAMS);
+        Assert.assertEquals("key=mykey", server.lastHeaders.get("authorization"));
+        Assert.assertEquals("/gcm/send", server.lastHeaders.get(":path"));
+    }
+
+    @Test
+    public void errorStatus() throws Exception {
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("unavailable")).get(5, TimeUnit.SECONDS);
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            GcmNetworkException gne = (GcmNetworkException) ex.getCause();
+            Assert.assertEquals(503, gne.getCode());
+            Assert.assertEquals("Service Unavailable", gne.getResponse());
+        }
+    }
+
+    /**
+     * Minimal h2c server that answers every stream with a GCM response for its first registration ID.
+     */
+    private static final class StubServer implements Runnable {
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private final AtomicInteger openStreams = new AtomicInteger();
+
+        private final AtomicInteger maxOpenStreams = new AtomicInteger();
+
+        private volatile Map<String, String> lastHeaders;
+
+        StubServer() throws IOException {
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                serve(socket);
+                            } catch (IOException ex) {
+                                // connection closed by the client
+                            }
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ex) {
+                // server closed
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            in.readFully(new byte[24]);
+            writeFrame(out, 0x4, 0, 0, new byte[] { 0, 3, 0, 0, 0, MAX_CONCURRENT_STREAMS });
+            Hpack.Decoder decoder = new Hpack.Decoder(4096);
+            Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+            while (true) {
+                int length = (in.readUnsignedShort() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                final int streamId = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0x4 && (flags & 0x1) == 0) {
+                    writeFrame(out, 0x4, 0x1, 0, new byte[0]);
+                } else if (type == 0x1) {
+                    Map<String, String> headers = new HashMap<>();
+                    decoder.decode(payload, headers);
+                    lastHeaders = headers;
+                    bodies.put(streamId, new ByteArrayOutputStream());
+                    int open = openStreams.incrementAndGet();
+                    if (open > maxOpenStreams.get()) {
+                        maxOpenStreams.set(open);
+                    }
+                } else if (type == 0x0) {
+                    bodies.get(streamId).write(payload);
+                    if ((flags & 0x1) != 0) {
+                        String body = bodies.remove(streamId).toString("UTF-8");
+                        final String id = body.substring(body.indexOf("[\"") + 2, body.indexOf("\"]"));
+                        // answer later so that streams overlap
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    Thread.sleep(20);
+                                    respond(out, streamId, id);
+                                } catch (Exception ex) {
+                                    // connection closed by the client
+                                }
+                            }
+                        });
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                }
+            }
+        }
+
+        private void respond(OutputStream out, int streamId, String id) throws IOException {
+            boolean unavailable = "unavailable".equals(id);
+            String body = unavailable ? "Service Unavailable"
+                    : "{\"multicast_id\":1,\"success\":1,\"results\":[{\"message_id\":\"1:" + id + "\"}]}";
+            synchronized (out) {
+                openStreams.decrementAndGet();
+                // literal :status without indexing, then :status 200 from the static table
+                byte[] headers = unavailable ? new byte[] { 0x08, 3, '5', '0', '3' } : new byte[] { (byte) 0x88 };
+                writeFrame(out, 0x1, 0x4, streamId, headers);
+                writeFrame(out, 0x0, 0x1, streamId, body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+                throws IOException {
+            synchronized (out) {
+                out.write(new byte[] { (byte) (payload.length >>> 16), (byte) (payload.length >>> 8),
+                        (byte) payload.length, (byte) type, (byte) flags, (byte) (streamId >>> 24),
+                        (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId });
+                out.write(payload);
+                out.flush();
+            }
+        }
+
+    }
+
+}
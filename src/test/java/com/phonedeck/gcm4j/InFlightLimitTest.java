@@ -0,0 +1,81 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class InFlightLimitTest {
+
+    @Test
+    public void rejectsOverLimit() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withMaxInFlightRequests(2)
+                .withOverflowPolicy(OverflowPolicy.REJECT)).hold(true);
+        gcm.send(new GcmRequest().withRegistrationId("a"));
+        gcm.send(new GcmRequest().withRegistrationId("b"));
+        Assert.assertEquals(2, gcm.getInFlightRequests());
+        Assert.assertTrue(gcm.getInFlightBytes() > 0);
+
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("c")).get();
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            GcmRejectedException gre = (GcmRejectedException) ex.getCause();
+            Assert.assertEquals(2, gre.getInFlightRequests());
+        }
+
+        gcm.held.get(0).set(new GcmResponse());
+        Assert.assertEquals(1, gcm.getInFlightRequests());
+        gcm.send(new GcmRequest().withRegistrationId("c"));
+        Assert.assertEquals(2, gcm.getInFlightRequests());
+    }
+
+    @Test
+    public void limitsBytes() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withMaxInFlightBytes(1000)
+                .withOverflowPolicy(OverflowPolicy.REJECT)).hold(true);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 800; i++) {
+            sb.append('x');
+        }
+        // admitted although larger than the limit, nothing else is in flight
+        gcm.send(new GcmRequest().withDataItem("big", sb.toString() + sb));
+        Assert.assertTrue(gcm.send(new GcmRequest().withRegistrationId("a")).isDone());
+        gcm.held.get(0).set(new GcmResponse());
+        Assert.assertEquals(0, gcm.getInFlightBytes());
+        Assert.assertFalse(gcm.send(new GcmRequest().withRegistrationId("a")).isDone());
+    }
+
+    @Test
+    public void callerRuns() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withMaxInFlightRequests(1)
+                .withOverflowPolicy(OverflowPolicy.CALLER_RUNS)).hold(true);
+        gcm.send(new GcmRequest().withRegistrationId("a"));
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationId("b")).get();
+        Assert.assertEquals(Thread.currentThread().getName(), response.getRequest().getAttribute("thread"));
+        Assert.assertEquals(1, gcm.getInFlightRequests());
+    }
+
+    @Test
+    public void blocksUntilReleased() throws Exception {
+        final ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withMaxInFlightRequests(1)).hold(true);
+        gcm.send(new GcmRequest().withRegistrationId("a"));
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                gcm.send(new GcmRequest().withRegistrationId("b"));
+                sent.countDown();
+            }
+        });
+        thread.start();
+        Assert.assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+        gcm.held.get(0).set(new GcmResponse());
+        Assert.assertTrue(sent.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, gcm.getInFlightRequests());
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class MulticastSplitTest {
+
+    private static GcmRequest request(int recipients) {
+        GcmRequest request = new GcmRequest().withCollapseKey("ck");
+        for (int i = 0; i < recipients; i++) {
+            request.withRegistrationId("id-" + i);
+        }
+        return request;
+    }
+
+    /**
+     * Gcm answering every registration ID, failing every 100th one and replacing every 250th one.
+     */
+    private static ScriptedGcm gcm() {
+        return new ScriptedGcm(new GcmConfig().withKey("k")).script(new ScriptedGcm.Script() {
+            @Override
+            public Result answer(String id) {
+                int n = Integer.parseInt(id.substring(3));
+                Result result = new Result();
+                if (n % 100 == 0) {
+                    result.setError(ResultError.NOT_REGISTERED);
+                } else {
+                    result.setMessageId("1:" + id);
+                }
+                if (n % 250 == 0) {
+                    result.setCanonicalRegistrationId("c-" + id);
+                }
+                return result;
+            }
+        });
+    }
+
+    @Test
+    public void splitsAndMerges() throws Exception {
+        ScriptedGcm gcm = gcm();
+        GcmRequest request = request(2500);
+        GcmResponse response = gcm.send(request).get();
+
+        Assert.assertEquals(3, gcm.sent.size());
+        Assert.assertEquals(1000, gcm.sent.get(0).getRegistrationIds().size());
+        Assert.assertEquals(500, gcm.sent.get(2).getRegistrationIds().size());
+        Assert.assertEquals("ck", gcm.sent.get(2).getCollapseKey());
+
+        Assert.assertSame(request, response.getRequest());
+        Assert.assertEquals(2500, response.getResults().size());
+        for (int i = 0; i < 2500; i++) {
+            Assert.assertEquals("id-" + i, response.getResults().get(i).getRequestedRegistrationId());
+        }
+        // every 100th ID fails, every 250th gets a canonical ID
+        Assert.assertEquals(25, response.getFailure());
+        Assert.assertEquals(2475, response.getSuccess());
+        Assert.assertEquals(10, response.getCanonicalIds());
+    }
+
+    @Test
+    public void failedChunkReportedUnavailable() throws Exception {
+        ScriptedGcm gcm = gcm();
+        gcm.failNext(null, new GcmNetworkException(503, "Unavailable", 3000L, null));
+        GcmResponse response = gcm.send(request(2000)).get();
+        Assert.assertEquals(2000, response.getResults().size());
+        Assert.assertEquals(ResultError.UNAVAILABLE, response.getResults().get(1500).getError());
+        Assert.assertEquals("id-1500", response.getResults().get(1500).getRequestedRegistrationId());
+        Assert.assertEquals(Long.valueOf(3000), response.getRetryAfter());
+        Assert.assertEquals(1010, response.getFailure());
+    }
+
+    @Test
+    public void chunkFailedWithOtherErrorReportedFailed() throws Exception {
+        ScriptedGcm gcm = gcm();
+        gcm.failNext(null, new GcmNetworkException(401, "Unauthorized", null));
+        GcmResponse response = gcm.send(request(2000)).get();
+        Assert.assertEquals(2000, response.getResults().size());
+        Assert.assertEquals("1:id-1", response.getResults().get(1).getMessageId());
+        Assert.assertEquals(ResultError.REQUEST_FAILED, response.getResults().get(1500).getError());
+        Assert.assertEquals("id-1500", response.getResults().get(1500).getRequestedRegistrationId());
+        Assert.assertEquals(1010, response.getFailure());
+    }
+
+    @Test
+    public void smallRequestNotSplit() throws Exception {
+        ScriptedGcm gcm = gcm();
+        GcmRequest request = request(1000);
+        gcm.send(request).get();
+        Assert.assertSame(request, gcm.sent.get(0));
+    }
+
+    @Test
+    public void allChunksFailed() throws Exception {
+        ScriptedGcm gcm = gcm();
+        gcm.fail(new GcmNetworkException(503, "Unavailable", 3000L, null));
+        try {
+            gcm.send(request(1500)).get();
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertEquals(503, ((GcmNetworkException) ex.getCause()).getCode());
+        }
+    }
+
+}
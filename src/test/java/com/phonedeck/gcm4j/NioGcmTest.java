@@ -0,0 +1,184 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class NioGcmTest {
+
+    private ServerSocket serverSocket;
+
+    private NioGcm gcm;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (gcm != null) {
+            gcm.close();
+        }
+        serverSocket.close();
+    }
+
+    /**
+     * Serves the given raw HTTP responses, one per accepted connection.
+     */
+    private void serve(final String... responses) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (String response : responses) {
+                    try (Socket socket = serverSocket.accept()) {
+                        readRequest(socket.getInputStream());
+                        OutputStream os = socket.getOutputStream();
+                        // split the response to exercise the incremental decoder
+                        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                        os.write(bytes, 0, bytes.length / 2);
+                        os.flush();
+                        os.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+                        os.flush();
+                    } catch (IOException ex) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static String readRequest(InputStream is) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+            head.write(is.read());
+        }
+        String str = head.toString("ISO-8859-1");
+        int start = str.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int length = Integer.parseInt(str.substring(start, str.indexOf("\r\n", start)));
+        for (int i = 0; i < length; i++) {
+            is.read();
+        }
+        return str;
+    }
+
+    private NioGcm createGcm() throws IOException {
+        URL endpoint = new URL("http://localhost:" + serverSocket.getLocalPort() + "/gcm/send");
+        gcm = new NioGcm(new GcmConfig().withEndpoint(endpoint).withKey("mykey"));
+        return gcm;
+    }
+
+    @Test
+    public void fixedLengthResponse() throws Exception {
+        String body = "{\"multicast_id\":108,\"success\":1,\"failure\":0,\"canonical_ids\":0,\"results\":[{\"message_id\":\"1:08\"}]}";
+        serve("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+
+        GcmRequest request = new GcmRequest().withRegistrationId("hello-world");
+        GcmResponse response = createGcm().send(request).get(5, TimeUnit.SECONDS);
+
+        Assert.assertSame(request, response.getRequest());
+        Assert.assertEquals(108, response.getMulticastId());
+        Assert.assertEquals("1:08", response.getResults().get(0).getMessageId());
+        Assert.assertEquals("hello-world", response.getResults().get(0).getRequestedRegistrationId());
+    }
+
+    @Test
+    public void chunkedResponse() throws Exception {
+        serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "10\r\n{\"multicast_id\":\r\n"
+                + "19\r\n1,\"results\":[{\"error\":\"Un\r\n"
+                + "d\r\navailable\"}]}\r\n"
+                + "0\r\n\r\n");
+
+        GcmResponse response = createGcm().send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1, response.getMulticastId());
+        Assert.assertEquals(ResultError.UNAVAILABLE, response.getResults().get(0).getError());
+    }
+
+    @Test
+    public void serviceUnavailable() throws Exception {
+        serve("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 120\r\nConnection: close\r\n\r\nService Unavailable");
+
+        try {
+            createGcm().send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            GcmNetworkException gne = (GcmNetworkException) ex.getCause();
+            Assert.assertEquals(503, gne.getCode());
+            Assert.assertEquals("Service Unavailable", gne.getResponse());
+            Assert.assertEquals(Long.valueOf(120000), gne.getRetryAfter());
+        }
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        String body = "{\"multicast_id\":1,\"results\":[{\"message_id\":\"1:1\"}]}";
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        serve(response, response, response);
+
+        createGcm();
+        ListenableFuture<GcmResponse> f1 = gcm.send(new GcmRequest().withRegistrationId("a"));
+        ListenableFuture<GcmResponse> f2 = gcm.send(new GcmRequest().withRegistrationId("b"));
+        ListenableFuture<GcmResponse> f3 = gcm.send(new GcmRequest().withRegistrationId("c"));
+
+        Assert.assertEquals("a", f1.get(5, TimeUnit.SECONDS).getResults().get(0).getRequestedRegistrationId());
+        Assert.assertEquals("b", f2.get(5, TimeUnit.SECONDS).getResults().get(0).getRequestedRegistrationId());
+        Assert.assertEquals("c", f3.get(5, TimeUnit.SECONDS).getResults().get(0).getRequestedRegistrationId());
+    }
+
+    @Test
+    public void callerRunsOnTheEventLoop() throws Exception {
+        String body = "{\"multicast_id\":1,\"results\":[{\"message_id\":\"1:1\"}]}";
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        serve(response, response, response);
+
+        URL endpoint = new URL("http://localhost:" + serverSocket.getLocalPort() + "/gcm/send");
+        gcm = new NioGcm(new GcmConfig().withEndpoint(endpoint).withKey("mykey").withMaxInFlightRequests(1)
+                .withOverflowPolicy(OverflowPolicy.CALLER_RUNS));
+        final SettableFuture<ListenableFuture<GcmResponse>> overflow = SettableFuture.create();
+        gcm.send(new GcmRequest().withRegistrationId("a")).addListener(new Runnable() {
+            @Override
+            public void run() {
+                // on the event loop: b takes the slot, c runs in the caller
+                gcm.send(new GcmRequest().withRegistrationId("b"));
+                overflow.set(gcm.send(new GcmRequest().withRegistrationId("c")));
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        GcmResponse sent = overflow.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("c", sent.getResults().get(0).getRequestedRegistrationId());
+    }
+
+    @Test
+    public void connectionRefused() throws Exception {
+        createGcm();
+        serverSocket.close();
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof GcmNetworkException);
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class PayloadTemplateTest {
+
+    private final DefaultGcm gcm = new DefaultGcm(new GcmConfig().withKey("k"));
+
+    private final ObjectMapper mapper = gcm.getObjectMapper();
+
+    private void assertSameJson(GcmRequest request) throws Exception {
+        PayloadTemplate template = PayloadTemplate.compile(request);
+        Assert.assertTrue(template.matches(request));
+        byte[] spliced = template.encode(request.getRegistrationIds());
+        Assert.assertEquals(mapper.readTree(mapper.writeValueAsBytes(request)), mapper.readTree(spliced));
+    }
+
+    @Test
+    public void splicesRegistrationIds() throws Exception {
+        assertSameJson(new GcmRequest().withRegistrationIds(Arrays.asList("a", "b\"\\\u00e9\u2603", "c"))
+                .withCollapseKey("ck").withDataItem("message", "h\u00e9llo").withTimeToLive(60).withPriority("high"));
+        assertSameJson(new GcmRequest().withRegistrationId("only"));
+        assertSameJson(new GcmRequest().withNotificationKey("nk").withDataItem("a", "b"));
+    }
+
+    @Test
+    public void detectsModifiedRequest() throws Exception {
+        GcmRequest request = new GcmRequest().withRegistrationId("a").withDataItem("a", "b");
+        PayloadTemplate template = PayloadTemplate.compile(request);
+        request.withDataItem("a", "c");
+        Assert.assertFalse(template.matches(request));
+
+        request.setPayloadTemplate(template);
+        Assert.assertEquals(mapper.readTree("{\"registration_ids\":[\"a\"],\"data\":{\"a\":\"c\"}}"),
+                mapper.readTree(gcm.encodeRequest(request)));
+    }
+
+    @Test
+    public void chunksShareTemplate() throws Exception {
+        List<String> ids = new ArrayList<>(Collections.nCopies(1500, "id"));
+        GcmRequest request = new GcmRequest().withRegistrationIds(ids).withDataItem("a", "b");
+        PayloadTemplate.attach(request);
+        GcmRequest chunk = Multicast.copy(request, ids.subList(0, 1000));
+        Assert.assertSame(request.getPayloadTemplate(), chunk.getPayloadTemplate());
+        Assert.assertEquals(mapper.readTree(mapper.writeValueAsBytes(chunk)), mapper.readTree(gcm.encodeRequest(chunk)));
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.phonedeck.gcm4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class PooledConnectionFactoryTest {
+
+    private static final String BODY = "{\"multicast_id\":1,\"success\":1,\"results\":[{\"message_id\":\"1:1\"}]}";
+
+    private KeepAliveServer server;
+
+    private PooledConnectionFactory factory;
+
+    private URL endpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new KeepAliveServer();
+        factory = new PooledConnectionFactory().withMaxConnections(2);
+        endpoint = new URL("http://localhost:" + server.serverSocket.getLocalPort() + "/gcm/send");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        factory.close();
+        server.serverSocket.close();
+    }
+
+    private Gcm createGcm() {
+        return new DefaultGcm(new GcmConfig()
+            .withEndpoint(endpoint)
+            .withKey("mykey")
+            .withConnectionFactory(factory)
+            .withExecutor(MoreExecutors.sameThreadExecutor()));
+    }
+
+    @Test
+    public void reusesConnections() throws Exception {
+        Gcm gcm = createGcm();
+        for (int i = 0; i < 5; i++) {
+            GcmResponse response = gcm.send(new GcmRequest().withRegistrationId("a")).get();
+            Assert.assertEquals("1:1", response.getResults().get(0).getMessageId());
+        }
+        Assert.assertEquals(1, server.connections.get());
+        Assert.assertEquals(5, server.requests.get());
+        Assert.assertEquals(1, factory.getIdleConnections(endpoint));
+    }
+
+    @Test
+    public void prewarm() throws Exception {
+        Assert.assertEquals(2, factory.prewarm(endpoint, 5));
+        Assert.assertEquals(2, factory.getIdleConnections(endpoint));
+
+        createGcm().send(new GcmRequest().withRegistrationId("a")).get();
+        Assert.assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void waitForFullPoolIsBounded() throws Exception {
+        PooledConnectionFactory.PooledSocket first = factory.acquire(endpoint, 1000, 1000);
+        PooledConnectionFactory.PooledSocket second = factory.acquire(endpoint, 1000, 1000);
+        long start = System.nanoTime();
+        try {
+            factory.acquire(endpoint, 100, 1000);
+            Assert.fail("did not throw");
+        } catch (SocketTimeoutException ex) {
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        factory.release(first);
+        factory.release(second);
+    }
+
+    @Test
+    public void evictsIdleConnections() throws Exception {
+        factory.withIdleTimeout(10, TimeUnit.MILLISECONDS);
+        Gcm gcm = createGcm();
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        Thread.sleep(50);
+        factory.evictExpired();
+        Assert.assertEquals(0, factory.getIdleConnections(endpoint));
+
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        Assert.assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void retriesStaleConnection() throws Exception {
+        Gcm gcm = createGcm();
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        server.closeAfterResponse = true;
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        // the pooled connection was closed by the server after the response
+        server.closeAfterResponse = false;
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        Assert.assertEquals("1:1", response.getResults().get(0).getMessageId());
+        Assert.assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void doesNotResendAfterReadTimeout() throws Exception {
+        Gcm gcm = new DefaultGcm(new GcmConfig()
+            .withEndpoint(endpoint)
+            .withKey("mykey")
+            .withConnectionFactory(factory)
+            .withReadTimeout(200, TimeUnit.MILLISECONDS)
+            .withExecutor(MoreExecutors.sameThreadExecutor()));
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        server.silent = true;
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("a")).get();
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof GcmNetworkException);
+        }
+        // GCM may have got the request, it is not sent again on a new connection
+        Assert.assertEquals(2, server.requests.get());
+        Assert.assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void cancelDoesNotResend() throws Exception {
+        Gcm gcm = new DefaultGcm(new GcmConfig()
+            .withEndpoint(endpoint)
+            .withKey("mykey")
+            .withConnectionFactory(factory));
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        server.silent = true;
+        ListenableFuture<GcmResponse> future = gcm.send(new GcmRequest().withRegistrationId("a"));
+        Thread.sleep(100);
+        future.cancel(true);
+        Thread.sleep(100);
+        Assert.assertEquals(2, server.requests.get());
+        Assert.assertEquals(1, server.connections.get());
+
+        // the aborted connection went back to the pool once
+        server.silent = false;
+        gcm.send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+        gcm.send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, factory.getIdleConnections(endpoint));
+    }
+
+    @Test
+    public void errorResponseKeepsConnection() throws Exception {
+        Gcm gcm = createGcm();
+        server.status = 503;
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("a")).get();
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            GcmNetworkException gne = (GcmNetworkException) ex.getCause();
+            Assert.assertEquals(503, gne.getCode());
+            Assert.assertEquals(Long.valueOf(10000), gne.getRetryAfter());
+        }
+        server.status = 200;
+        gcm.send(new GcmRequest().withRegistrationId("a")).get();
+        Assert.assertEquals(1, server.connections.get());
+    }
+
+    /**
+     * Server answering any number of requests per connection.
+     */
+    private static final class KeepAliveServer implements Runnable {
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private volatile boolean closeAfterResponse;
+
+        private volatile int status = 200;
+
+        /** Whether requests are left unanswered. */
+        private volatile boolean silent;
+
+        KeepAliveServer() throws IOException {
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try (Socket s = socket) {
+                                serve(s);
+                            } catch (IOException ex) {
+                                // client went away
+                            }
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ex) {
+                // server closed
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            InputStream is = socket.getInputStream();
+            OutputStream os = socket.getOutputStream();
+            while (readRequest(is)) {
+                requests.incrementAndGet();
+                if (silent) {
+                    // until the client gives up
+                    while (is.read() >= 0) {
+                    }
+                    return;
+                }
+                // read before responding, the test resets it once it has the response
+                boolean close = closeAfterResponse;
+                String body = status == 200 ? BODY : "Service Unavailable";
+                String response = "HTTP/1.1 " + status + " Whatever\r\nContent-Length: " + body.length()
+                        + (status == 200 ? "" : "\r\nRetry-After: 10") + "\r\n\r\n" + body;
+                os.write(response.getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                if (close) {
+                    return;
+                }
+            }
+        }
+
+        private static boolean readRequest(InputStream is) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+                int b = is.read();
+                if (b < 0) {
+                    return false;
+                }
+                head.write(b);
+            }
+            String str = head.toString("ISO-8859-1");
+            int start = str.indexOf("Content-Length: ") + "Content-Length: ".length();
+            int length = Integer.parseInt(str.substring(start, str.indexOf("\r\n", start)));
+            for (int i = 0; i < length; i++) {
+                is.read();
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class RateLimitFilterTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 64);
+
+    @After
+    public void tearDown() {
+        timer.close();
+    }
+
+    @Test
+    public void bucketAllowsBurstThenRate() {
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        RateLimitFilter.Bucket bucket = new RateLimitFilter.Bucket(10, 2);
+        long now = System.nanoTime();
+        Assert.assertEquals(0, bucket.reserve(now, 150 * ms));
+        Assert.assertEquals(0, bucket.reserve(now, 150 * ms));
+        Assert.assertEquals(100 * ms, bucket.reserve(now, 150 * ms));
+        // would wait 200 ms, 50 ms too long
+        Assert.assertEquals(-50 * ms, bucket.reserve(now, 150 * ms));
+        // the token was not taken
+        Assert.assertEquals(100 * ms, bucket.reserve(now + 100 * ms, 150 * ms));
+        // idle for long, full again but not fuller
+        Assert.assertEquals(0, bucket.reserve(now + 10000 * ms, 0));
+        Assert.assertEquals(0, bucket.reserve(now + 10000 * ms, 0));
+        Assert.assertTrue(bucket.reserve(now + 10000 * ms, 0) < 0);
+    }
+
+    @Test
+    public void keysAreLimitedSeparately() throws Exception {
+        RateLimitFilter filter = new RateLimitFilter(1, 1).withMaxWait(0, TimeUnit.SECONDS).withTimer(timer);
+        ScriptedGcm gcm = new ScriptedGcm(filter);
+        gcm.send(new GcmRequest().withKey("a").withRegistrationId("1")).get();
+        try {
+            gcm.send(new GcmRequest().withKey("a").withRegistrationId("2")).get();
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof GcmRateLimitedException);
+            Assert.assertEquals(429, ((GcmRateLimitedException) ex.getCause()).getCode());
+            Assert.assertTrue(((GcmRateLimitedException) ex.getCause()).getRetryAfter() > 0);
+        }
+        gcm.send(new GcmRequest().withKey("b").withRegistrationId("3")).get();
+        gcm.send(new GcmRequest().withRegistrationId("4")).get();
+        Assert.assertEquals(3, gcm.sent.size());
+    }
+
+    @Test
+    public void waitsWithoutBlocking() throws Exception {
+        RateLimitFilter filter = new RateLimitFilter(1, 1).withLimit("a", 20, 1);
+        // the request waits in the timer of the client
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withFilter(filter).withTimer(timer));
+        long start = System.nanoTime();
+        gcm.send(new GcmRequest().withKey("a").withRegistrationId("1")).get();
+        ListenableFuture<GcmResponse> delayed = gcm.send(new GcmRequest().withKey("a").withRegistrationId("2"));
+        Assert.assertFalse(delayed.isDone());
+        Assert.assertEquals(1, gcm.sent.size());
+        delayed.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        ListenableFuture<GcmResponse> cancelled = gcm.send(new GcmRequest().withKey("a").withRegistrationId("3"));
+        cancelled.cancel(false);
+        Thread.sleep(100);
+        Assert.assertEquals(2, gcm.sent.size());
+    }
+
+    @Test
+    public void waitingRequestHoldsNoSlot() throws Exception {
+        RateLimitFilter filter = new RateLimitFilter(1000, 1).withLimit("a", 2, 1);
+        ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withKey("k").withFilter(filter).withTimer(timer)
+                .withMaxInFlightRequests(1).withOverflowPolicy(OverflowPolicy.REJECT));
+        gcm.send(new GcmRequest().withKey("a").withRegistrationId("1")).get();
+        ListenableFuture<GcmResponse> delayed = gcm.send(new GcmRequest().withKey("a").withRegistrationId("2"));
+        Assert.assertFalse(delayed.isDone());
+        // another key is not rejected while the request of a waits for its token
+        gcm.send(new GcmRequest().withKey("b").withRegistrationId("3")).get();
+        delayed.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(3, gcm.sent.size());
+        Assert.assertEquals("2", gcm.sent.get(2).getRegistrationIds().get(0));
+    }
+
+}
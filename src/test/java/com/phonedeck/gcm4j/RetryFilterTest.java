@@ -0,0 +1,87 @@
+package com.phonedeck.gcm4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RetryFilterTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 64);
+
+    @After
+    public void tearDown() {
+        timer.close();
+    }
+
+    @Test
+    public void retriesOnlyRetryableRecipients() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new RetryFilter(3).withBackoff(1, 1, TimeUnit.MILLISECONDS).withTimer(timer));
+        gcm.errors("b", ResultError.UNAVAILABLE, ResultError.INTERNAL_SERVER_ERROR);
+        gcm.errors("c", ResultError.NOT_REGISTERED);
+        gcm.errors("d", ResultError.UNAVAILABLE);
+
+        GcmRequest request = new GcmRequest().withRegistrationIds(Arrays.asList("a", "b", "c", "d"));
+        GcmResponse response = gcm.send(request).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(3, gcm.sent.size());
+        Assert.assertEquals(Arrays.asList("b", "d"), gcm.sent.get(1).getRegistrationIds());
+        Assert.assertEquals(Arrays.asList("b"), gcm.sent.get(2).getRegistrationIds());
+        Assert.assertSame(request, response.getRequest());
+        Assert.assertEquals(4, response.getResults().size());
+        Assert.assertEquals("1:b", response.getResults().get(1).getMessageId());
+        Assert.assertEquals("b", response.getResults().get(1).getRequestedRegistrationId());
+        Assert.assertEquals(ResultError.NOT_REGISTERED, response.getResults().get(2).getError());
+        Assert.assertEquals("1:d", response.getResults().get(3).getMessageId());
+        Assert.assertEquals(3, response.getSuccess());
+        Assert.assertEquals(1, response.getFailure());
+    }
+
+    @Test
+    public void returnsRemainingErrorsWhenExhausted() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new RetryFilter(1).withBackoff(1, 1, TimeUnit.MILLISECONDS).withTimer(timer));
+        gcm.errors("a", ResultError.UNAVAILABLE, ResultError.UNAVAILABLE, ResultError.UNAVAILABLE);
+
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, gcm.sent.size());
+        Assert.assertEquals(ResultError.UNAVAILABLE, response.getResults().get(0).getError());
+    }
+
+    @Test
+    public void retriesNetworkFailures() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new RetryFilter(2).withBackoff(1, 1, TimeUnit.MILLISECONDS).withTimer(timer));
+        gcm.failNext(new GcmNetworkException(503, "failed", null), new GcmNetworkException(503, "failed", null));
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(3, gcm.sent.size());
+        Assert.assertEquals("1:a", response.getResults().get(0).getMessageId());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        ScriptedGcm gcm = new ScriptedGcm(new RetryFilter(2).withBackoff(1, 1, TimeUnit.MILLISECONDS).withTimer(timer));
+        gcm.failNext(new GcmNetworkException(401, "failed", null));
+        try {
+            gcm.send(new GcmRequest().withRegistrationId("a")).get(5, TimeUnit.SECONDS);
+            Assert.fail("did not throw");
+        } catch (ExecutionException ex) {
+            Assert.assertEquals(401, ((GcmNetworkException) ex.getCause()).getCode());
+        }
+        Assert.assertEquals(1, gcm.sent.size());
+    }
+
+    @Test
+    public void honorsRetryAfter() {
+        RetryFilter filter = new RetryFilter(1).withBackoff(100, 1000, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(5000, filter.delay(0, 5000L));
+        for (int i = 0; i < 100; i++) {
+            long delay = filter.delay(2, null);
+            Assert.assertTrue(delay >= 200 && delay <= 400);
+            Assert.assertTrue(filter.delay(10, null) <= 1000);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Gcm answering the requests of the tests from a script. By default every registration ID gets a successful result with
+ * the message ID "1:" followed by the ID; a request without registration IDs gets a single result. The results are
+ * passed to the result listener of the request if it has one, the counters of the response being set either way, as
+ * they come first in the JSON of GCM.
+ */
+class ScriptedGcm extends AbstractDefaultGcm {
+
+    /**
+     * Result of a registration ID.
+     */
+    interface Script {
+
+        /**
+         * @param id the registration ID
+         * @return its result, or null for the default one
+         */
+        Result answer(String id);
+
+    }
+
+    /** Requests sent, in order. */
+    final List<GcmRequest> sent = new ArrayList<>();
+
+    /** Requests held until the test completes them, see {@link #complete(int)}. */
+    final List<SettableFuture<GcmResponse>> held = new ArrayList<>();
+
+    private final List<GcmRequest> heldRequests = new ArrayList<>();
+
+    /** Errors of the next results of each registration ID. */
+    private final Map<String, Queue<ResultError>> errors = new HashMap<>();
+
+    /** Failures of the next requests, null letting a request through. */
+    private final Queue<Throwable> failures = new LinkedList<>();
+
+    private Throwable failure;
+
+    private Script script;
+
+    private boolean hold;
+
+    ScriptedGcm(GcmConfig config) {
+        super(config);
+    }
+
+    ScriptedGcm(GcmFilter filter) {
+        this(new GcmConfig().withKey("k").withFilter(filter));
+    }
+
+    synchronized ScriptedGcm script(Script script) {
+        this.script = script;
+        return this;
+    }
+
+    /**
+     * Reports the given errors for the next results of a registration ID, one per request.
+     */
+    synchronized ScriptedGcm errors(String id, ResultError... errors) {
+        this.errors.put(id, new LinkedList<>(Arrays.asList(errors)));
+        return this;
+    }
+
+    /**
+     * Fails every request with the given failure, or none if it is null.
+     */
+    synchronized ScriptedGcm fail(Throwable failure) {
+        this.failure = failure;
+        return this;
+    }
+
+    /**
+     * Fails the next requests with the given failures in turn, a null one letting a request through.
+     */
+    synchronized ScriptedGcm failNext(Throwable... failures) {
+        this.failures.addAll(Arrays.asList(failures));
+        return this;
+    }
+
+    /**
+     * Holds the next requests until the test completes them, or answers them at once.
+     */
+    synchronized ScriptedGcm hold(boolean hold) {
+        this.hold = hold;
+        return this;
+    }
+
+    /**
+     * Answers a held request from the script.
+     * @param index index of the request among the held ones
+     */
+    void complete(int index) {
+        GcmResponse response;
+        synchronized (this) {
+            response = answer(heldRequests.get(index));
+        }
+        held.get(index).set(response);
+    }
+
+    @Override
+    protected synchronized ListenableFuture<GcmResponse> executeRequestFuture(GcmRequest request) {
+        sent.add(request);
+        Throwable t = failures.isEmpty() ? failure : failures.poll();
+        if (t != null) {
+            return Futures.immediateFailedFuture(t);
+        }
+        if (hold) {
+            SettableFuture<GcmResponse> future = SettableFuture.create();
+            held.add(future);
+            heldRequests.add(request);
+            return future;
+        }
+        return Futures.immediateFuture(answer(request));
+    }
+
+    /**
+     * Answers the request at once, even if requests are held, recording the thread in the "thread" attribute.
+     */
+    @Override
+    protected ListenableFuture<GcmResponse> executeRequestInCaller(GcmRequest request) {
+        request.setAttribute("thread", Thread.currentThread().getName());
+        synchronized (this) {
+            sent.add(request);
+            return Futures.immediateFuture(answer(request));
+        }
+    }
+
+    private GcmResponse answer(GcmRequest request) {
+        GcmResponse response = new GcmResponse();
+        response.setRequest(request);
+        List<String> ids = request.getRegistrationIds();
+        for (String id : ids != null && !ids.isEmpty() ? ids : Arrays.asList((String) null)) {
+            response.getResults().add(result(id));
+        }
+        Multicast.count(response);
+        if (request.getResultListener() != null) {
+            for (Result result : response.getResults()) {
+                request.getResultListener().onResult(result);
+            }
+            response.getResults().clear();
+        }
+        return response;
+    }
+
+    private Result result(String id) {
+        Queue<ResultError> scripted = errors.get(id);
+        if (scripted != null && !scripted.isEmpty()) {
+            Result result = new Result();
+            result.setRequestedRegistrationId(id);
+            result.setError(scripted.poll());
+            return result;
+        }
+        Result result = script != null ? script.answer(id) : null;
+        if (result == null) {
+            result = new Result();
+            result.setMessageId(id != null ? "1:" + id : "1");
+        }
+        result.setRequestedRegistrationId(id);
+        return result;
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TokenEventFilterTest {
+
+    private final BlockingQueue<List<TokenEvent>> batches = new LinkedBlockingQueue<>();
+
+    private final TokenEventFilter filter = new TokenEventFilter(new TokenListener() {
+        @Override
+        public void onTokenEvents(List<TokenEvent> events) {
+            batches.add(events);
+        }
+    });
+
+    /** Canonical ID and error reported for "old". */
+    private volatile String replaced = "new";
+
+    private volatile ResultError error;
+
+    private final ScriptedGcm gcm = new ScriptedGcm(new GcmConfig().withFilter(filter)).script(new ScriptedGcm.Script() {
+        @Override
+        public Result answer(String id) {
+            Result result = new Result();
+            if (id.startsWith("gone")) {
+                result.setError(ResultError.NOT_REGISTERED);
+            } else if (id.equals("old")) {
+                result.setCanonicalRegistrationId(replaced);
+                result.setError(error);
+            } else {
+                return null;
+            }
+            return result;
+        }
+    });
+
+    @After
+    public void tearDown() {
+        filter.close();
+    }
+
+    @Test
+    public void fullBatchIsDeliveredAndEventsCollapse() throws Exception {
+        filter.withMaxBatchSize(3).withMaxDelay(1, TimeUnit.HOURS);
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("ok", "old", "gone1"))).get();
+        // replaced, then dead
+        replaced = null;
+        error = ResultError.NOT_REGISTERED;
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("old", "gone1"))).get();
+        Assert.assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+        gcm.send(new GcmRequest().withKey("other").withRegistrationId("gone2")).get();
+
+        List<TokenEvent> batch = batches.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(3, batch.size());
+        Assert.assertEquals("old", batch.get(0).getRegistrationId());
+        Assert.assertEquals(ResultError.NOT_REGISTERED, batch.get(0).getError());
+        Assert.assertNull(batch.get(0).getCanonicalRegistrationId());
+        Assert.assertNull(batch.get(0).getKey());
+        Assert.assertEquals("gone1", batch.get(1).getRegistrationId());
+        Assert.assertEquals("gone2", batch.get(2).getRegistrationId());
+        Assert.assertEquals("other", batch.get(2).getKey());
+    }
+
+    @Test
+    public void eventsOfOtherKeysDoNotCollapse() throws Exception {
+        filter.withMaxBatchSize(2).withMaxDelay(1, TimeUnit.HOURS);
+        gcm.send(new GcmRequest().withRegistrationId("gone")).get();
+        gcm.send(new GcmRequest().withKey("other").withRegistrationId("gone")).get();
+
+        List<TokenEvent> batch = batches.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(batch);
+        Assert.assertEquals(2, batch.size());
+        Assert.assertNull(batch.get(0).getKey());
+        Assert.assertEquals("other", batch.get(1).getKey());
+    }
+
+    @Test
+    public void partialBatchIsDeliveredAfterDelay() throws Exception {
+        filter.withMaxDelay(50, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("ok", "old"))).get();
+        List<TokenEvent> batch = batches.poll(5, TimeUnit.SECONDS);
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals("old", batch.get(0).getRegistrationId());
+        Assert.assertEquals("new", batch.get(0).getCanonicalRegistrationId());
+        Assert.assertNull(batch.get(0).getError());
+    }
+
+    @Test
+    public void resultListener() throws Exception {
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("old", "gone")).withResultListener(new ResultListener() {
+            @Override
+            public void onResult(Result result) {
+                results.add(result);
+            }
+        })).get();
+        Assert.assertEquals(2, results.size());
+        filter.close();
+        List<TokenEvent> batch = batches.poll();
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals("new", batch.get(0).getCanonicalRegistrationId());
+        Assert.assertEquals(ResultError.NOT_REGISTERED, batch.get(1).getError());
+    }
+
+    @Test
+    public void manyEventsMakeFewBatches() throws Exception {
+        filter.withMaxBatchSize(500).withMaxDelay(1, TimeUnit.HOURS);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add("gone" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            gcm.send(new GcmRequest().withRegistrationIds(ids)).get();
+        }
+        filter.close();
+        int events = 0;
+        for (List<TokenEvent> batch : batches) {
+            Assert.assertTrue(batch.size() <= 500);
+            events += batch.size();
+        }
+        // a full batch is taken as the next one is filled, the rest collapse
+        Assert.assertTrue(events >= 1000);
+        Assert.assertTrue(events < 10000);
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.phonedeck.gcm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TokenRegistryFilterTest {
+
+    private final TokenRegistry registry = new TokenRegistry(1024, 1024);
+
+    private final ScriptedGcm gcm = new ScriptedGcm(new TokenRegistryFilter(registry)).script(new ScriptedGcm.Script() {
+        @Override
+        public Result answer(String id) {
+            Result result = new Result();
+            if (id.equals("gone")) {
+                result.setError(ResultError.NOT_REGISTERED);
+            } else if (id.equals("old")) {
+                result.setMessageId("1:old");
+                result.setCanonicalRegistrationId("new");
+            } else {
+                return null;
+            }
+            return result;
+        }
+    });
+
+    @Test
+    public void registry() {
+        registry.markDead("k1", "a", ResultError.MISMATCH_SENDER_ID);
+        Assert.assertEquals(ResultError.MISMATCH_SENDER_ID, registry.getError("k1", "a"));
+        Assert.assertNull(registry.getError("k2", "a"));
+        Assert.assertNull(registry.getError(null, "a"));
+        registry.markDead("k1", "a", ResultError.NOT_REGISTERED);
+        Assert.assertEquals(ResultError.NOT_REGISTERED, registry.getError("k1", "a"));
+        Assert.assertEquals(1, registry.getDeadTokens());
+
+        registry.putCanonical("old", "new");
+        Assert.assertEquals("new", registry.getCanonical("old"));
+        Assert.assertNull(registry.getCanonical("new"));
+
+        registry.forget("k1", "a");
+        registry.forget(null, "old");
+        Assert.assertNull(registry.getError("k1", "a"));
+        Assert.assertNull(registry.getCanonical("old"));
+        Assert.assertEquals(0, registry.getDeadTokens());
+        Assert.assertEquals(0, registry.getCanonicalTokens());
+    }
+
+    @Test
+    public void registryIsBounded() {
+        TokenRegistry small = new TokenRegistry(16, 16);
+        for (int i = 0; i < 10000; i++) {
+            small.markDead(null, "token" + i, ResultError.NOT_REGISTERED);
+            small.putCanonical("token" + i, "canonical" + i);
+        }
+        Assert.assertEquals(16, small.getDeadTokens());
+        Assert.assertEquals(16, small.getCanonicalTokens());
+        // the latest ones replaced older ones
+        Assert.assertEquals(ResultError.NOT_REGISTERED, small.getError(null, "token9999"));
+        Assert.assertEquals("canonical9999", small.getCanonical("token9999"));
+    }
+
+    @Test
+    public void rewritesStaleAndDropsDeadIds() throws Exception {
+        gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("a", "old", "gone"))).get();
+        Assert.assertEquals("new", registry.getCanonical("old"));
+        Assert.assertEquals(ResultError.NOT_REGISTERED, registry.getError(null, "gone"));
+
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("old", "gone", "b"))).get();
+        Assert.assertEquals(Arrays.asList("new", "b"), gcm.sent.get(1).getRegistrationIds());
+        Assert.assertEquals(3, response.getResults().size());
+        Result old = response.getResults().get(0);
+        Assert.assertEquals("old", old.getRequestedRegistrationId());
+        Assert.assertEquals("new", old.getCanonicalRegistrationId());
+        Assert.assertEquals("1:new", old.getMessageId());
+        Result gone = response.getResults().get(1);
+        Assert.assertEquals("gone", gone.getRequestedRegistrationId());
+        Assert.assertEquals(ResultError.NOT_REGISTERED, gone.getError());
+        Assert.assertEquals("1:b", response.getResults().get(2).getMessageId());
+        Assert.assertEquals(2, response.getSuccess());
+        Assert.assertEquals(1, response.getFailure());
+        Assert.assertEquals(1, response.getCanonicalIds());
+    }
+
+    @Test
+    public void requestWithOnlyDeadIdsIsNotSent() throws Exception {
+        registry.markDead("other", "gone", ResultError.MISMATCH_SENDER_ID);
+        gcm.send(new GcmRequest().withKey("other").withRegistrationId("gone")).get();
+        Assert.assertTrue(gcm.sent.isEmpty());
+        // dead for another sender only
+        gcm.send(new GcmRequest().withRegistrationId("gone")).get();
+        Assert.assertEquals(1, gcm.sent.size());
+    }
+
+    @Test
+    public void resultListener() throws Exception {
+        registry.putCanonical("old", "new");
+        registry.markDead(null, "gone", ResultError.INVALID_REGISTRATION);
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("old", "gone", "b"))
+                .withResultListener(new ResultListener() {
+                    @Override
+                    public void onResult(Result result) {
+                        results.add(result);
+                    }
+                })).get();
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals("gone", results.get(0).getRequestedRegistrationId());
+        Assert.assertEquals("old", results.get(1).getRequestedRegistrationId());
+        Assert.assertEquals("new", results.get(1).getCanonicalRegistrationId());
+        Assert.assertEquals(1, response.getFailure());
+    }
+
+    @Test
+    public void sendsCanonicalIdOnce() throws Exception {
+        registry.putCanonical("old", "new");
+        GcmResponse response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("old", "b", "new"))).get();
+        Assert.assertEquals(Arrays.asList("new", "b"), gcm.sent.get(0).getRegistrationIds());
+        Assert.assertEquals(3, response.getResults().size());
+        Result old = response.getResults().get(0);
+        Assert.assertEquals("old", old.getRequestedRegistrationId());
+        Assert.assertEquals("new", old.getCanonicalRegistrationId());
+        Assert.assertEquals("1:new", old.getMessageId());
+        Result current = response.getResults().get(2);
+        Assert.assertEquals("new", current.getRequestedRegistrationId());
+        Assert.assertNull(current.getCanonicalRegistrationId());
+        Assert.assertEquals("1:new", current.getMessageId());
+        Assert.assertEquals(3, response.getSuccess());
+        Assert.assertEquals(1, response.getCanonicalIds());
+
+        final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+        response = gcm.send(new GcmRequest().withRegistrationIds(Arrays.asList("old", "new"))
+                .withResultListener(new ResultListener() {
+                    @Override
+                    public void onResult(Result result) {
+                        results.add(result);
+                    }
+                })).get();
+        Assert.assertEquals(Arrays.asList("new"), gcm.sent.get(1).getRegistrationIds());
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("old", results.get(0).getRequestedRegistrationId());
+        Assert.assertEquals("new", results.get(0).getCanonicalRegistrationId());
+        Assert.assertEquals("new", results.get(1).getRequestedRegistrationId());
+        Assert.assertNull(results.get(1).getCanonicalRegistrationId());
+        Assert.assertEquals(2, response.getSuccess());
+        Assert.assertEquals(1, response.getCanonicalIds());
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.phonedeck.gcm4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TokenStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TokenStore store;
+
+    @After
+    public void tearDown() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void persistsAcrossRestarts() throws IOException {
+        File directory = folder.newFolder("store");
+        store = new TokenStore(directory, 100);
+        TokenRegistry registry = new TokenRegistry(store);
+        registry.markDead("k1", "a", ResultError.MISMATCH_SENDER_ID);
+        registry.markDead(null, "b", ResultError.NOT_REGISTERED);
+        registry.markDead(null, "b", ResultError.INVALID_REGISTRATION);
+        registry.putCanonical("old", "new");
+        registry.putCanonical("stale", "\u00e9t\u00e9");
+        registry.forget(null, "stale");
+        Assert.assertEquals(ResultError.MISMATCH_SENDER_ID, registry.getError("k1", "a"));
+        Assert.assertNull(registry.getError("k2", "a"));
+        store.close();
+
+        store = new TokenStore(directory, 100);
+        registry = new TokenRegistry(store);
+        Assert.assertEquals(ResultError.MISMATCH_SENDER_ID, registry.getError("k1", "a"));
+        Assert.assertNull(registry.getError(null, "a"));
+        Assert.assertEquals(ResultError.INVALID_REGISTRATION, registry.getError(null, "b"));
+        Assert.assertEquals("new", registry.getCanonical("old"));
+        Assert.assertNull(registry.getCanonical("stale"));
+        Assert.assertEquals(2, registry.getDeadTokens());
+        Assert.assertEquals(1, registry.getCanonicalTokens());
+    }
+
+    @Test
+    public void recoversAfterCrash() throws IOException {
+        File directory = folder.newFolder("store");
+        store = new TokenStore(directory, 100);
+        TokenRegistry registry = new TokenRegistry(store);
+        registry.markDead(null, "a", ResultError.NOT_REGISTERED);
+        store.flush();
+        registry.putCanonical("old", "new");
+        registry.markDead(null, "b", ResultError.NOT_REGISTERED);
+
+        // the files as a killed process leaves them
+        File crashed = folder.newFolder("crashed");
+        copy(directory, crashed);
+        try (TokenStore crashedStore = new TokenStore(crashed, 100)) {
+            TokenRegistry recovered = new TokenRegistry(crashedStore);
+            Assert.assertEquals(ResultError.NOT_REGISTERED, recovered.getError(null, "a"));
+            Assert.assertEquals(ResultError.NOT_REGISTERED, recovered.getError(null, "b"));
+            Assert.assertEquals("new", recovered.getCanonical("old"));
+            Assert.assertEquals(2, recovered.getDeadTokens());
+        }
+
+        // the last record was torn: dead "a" at 8, canonical "old" at 32, dead "b" at 56
+        File torn = folder.newFolder("torn");
+        copy(directory, torn);
+        try (RandomAccessFile log = new RandomAccessFile(new File(torn, "tokens.1.log"), "rw")) {
+            log.seek(66);
+            log.write(0x55);
+        }
+        try (TokenStore tornStore = new TokenStore(torn, 100)) {
+            TokenRegistry recovered = new TokenRegistry(tornStore);
+            Assert.assertEquals(ResultError.NOT_REGISTERED, recovered.getError(null, "a"));
+            Assert.assertEquals("new", recovered.getCanonical("old"));
+            Assert.assertNull(recovered.getError(null, "b"));
+            Assert.assertEquals(1, recovered.getDeadTokens());
+            // appended where the torn record was
+            recovered.markDead(null, "c", ResultError.NOT_REGISTERED);
+        }
+        try (TokenStore tornStore = new TokenStore(torn, 100)) {
+            TokenRegistry recovered = new TokenRegistry(tornStore);
+            Assert.assertEquals(ResultError.NOT_REGISTERED, recovered.getError(null, "c"));
+            Assert.assertNull(recovered.getError(null, "b"));
+            Assert.assertEquals(2, recovered.getDeadTokens());
+        }
+    }
+
+    @Test
+    public void compactionGrowsIndexAndDropsOldRecords() throws IOException {
+        File directory = folder.newFolder("store");
+        store = new TokenStore(directory, 10);
+        TokenRegistry registry = new TokenRegistry(store);
+        for (int i = 0; i < 900; i++) {
+            registry.markDead(null, "token" + i, ResultError.NOT_REGISTERED);
+            registry.forget(null, "token" + i);
+            registry.markDead(null, "token" + i, ResultError.INVALID_REGISTRATION);
+        }
+        store.compact();
+        Assert.assertFalse(new File(directory, "tokens.1.log").exists());
+        Assert.assertTrue(new File(directory, "tokens.2.log").exists());
+        for (int i = 900; i < 1800; i++) {
+            registry.putCanonical("token" + i, "canonical" + i);
+        }
+        Assert.assertEquals(900, registry.getDeadTokens());
+        Assert.assertEquals(900, registry.getCanonicalTokens());
+        store.close();
+
+        store = new TokenStore(directory, 10);
+        registry = new TokenRegistry(store);
+        Assert.assertEquals(ResultError.INVALID_REGISTRATION, registry.getError(null, "token0"));
+        Assert.assertEquals(ResultError.INVALID_REGISTRATION, registry.getError(null, "token899"));
+        Assert.assertEquals("canonical1799", registry.getCanonical("token1799"));
+        Assert.assertEquals(900, registry.getDeadTokens());
+        Assert.assertEquals(900, registry.getCanonicalTokens());
+    }
+
+    @Test
+    public void writesDuringCompaction() throws Exception {
+        File directory = folder.newFolder("store");
+        store = new TokenStore(directory, 100000);
+        final TokenRegistry registry = new TokenRegistry(store);
+        for (int i = 0; i < 100000; i++) {
+            registry.markDead(null, "token" + i, ResultError.NOT_REGISTERED);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 50000; i++) {
+                    registry.putCanonical("token" + i, "canonical" + i);
+                    registry.forget(null, "token" + (i + 50000));
+                }
+                done.set(true);
+            }
+        });
+        writer.start();
+        store.compact();
+        writer.join();
+        Assert.assertTrue(done.get());
+        for (int i = 0; i < 50000; i++) {
+            Assert.assertEquals(ResultError.NOT_REGISTERED, registry.getError(null, "token" + i));
+            Assert.assertEquals("canonical" + i, registry.getCanonical("token" + i));
+        }
+        Assert.assertNull(registry.getError(null, "token50000"));
+        Assert.assertEquals(50000, registry.getDeadTokens());
+        Assert.assertEquals(50000, registry.getCanonicalTokens());
+    }
+
+    @Test(expected = IOException.class)
+    public void directoryIsLocked() throws IOException {
+        File directory = folder.newFolder("store");
+        store = new TokenStore(directory, 100);
+        new TokenStore(directory, 100);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        for (File file : from.listFiles()) {
+            if (!file.getName().endsWith(".lock")) {
+                Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+            }
+        }
+    }
+
+}
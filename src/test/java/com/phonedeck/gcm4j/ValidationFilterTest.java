@@ -0,0 +1,54 @@
+package com.phonedeck.gcm4j;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class ValidationFilterTest {
+
+    private final ValidationFilter filter = new ValidationFilter();
+
+    @Test
+    public void acceptsValidRequests() {
+        Assert.assertNull(filter.validate(new GcmRequest().withRegistrationId("a").withDataItem("k", "v").withTimeToLive(60)));
+        Assert.assertNull(filter.validate(new GcmRequest().withNotificationKey("nk")));
+        Assert.assertNull(filter.validate(new GcmRequest().withRegistrationId("a").withDataItem("k", Strings.repeat("x", 4095))));
+    }
+
+    @Test
+    public void rejectsDoomedRequests() {
+        Assert.assertEquals(ResultError.MISSING_REGISTRATION, filter.validate(new GcmRequest()));
+        Assert.assertEquals(ResultError.INVALID_TTL, filter.validate(new GcmRequest().withRegistrationId("a").withTimeToLive(-1)));
+        Assert.assertEquals(ResultError.INVALID_TTL, filter.validate(new GcmRequest().withRegistrationId("a").withTimeToLive(2419201)));
+        Assert.assertEquals(ResultError.INVALID_DATA_KEY, filter.validate(new GcmRequest().withRegistrationId("a").withDataItem("from", "x")));
+        Assert.assertEquals(ResultError.INVALID_DATA_KEY, filter.validate(new GcmRequest().withRegistrationId("a").withDataItem("google.x", "x")));
+        Assert.assertEquals(ResultError.MESSAGE_TOO_BIG, filter.validate(new GcmRequest().withRegistrationId("a").withDataItem("k", Strings.repeat("x", 4096))));
+        // 2 bytes per character in UTF-8
+        Assert.assertEquals(ResultError.MESSAGE_TOO_BIG, filter.validate(new GcmRequest().withRegistrationId("a").withDataItem("k", Strings.repeat("\u00e9", 2048))));
+    }
+
+    @Test
+    public void respondsWithoutSending() throws Exception {
+        GcmRequest request = new GcmRequest().withRegistrationId("a").withRegistrationId("b").withTimeToLive(-5);
+        GcmResponse response = filter.filter(request, new FilterChain() {
+            @Override
+            public ListenableFuture<GcmResponse> next(GcmRequest request) {
+                throw new AssertionError("sent");
+            }
+
+            @Override
+            public Gcm getGcm() {
+                return null;
+            }
+        }).get();
+        Assert.assertEquals(2, response.getFailure());
+        Assert.assertEquals(2, response.getResults().size());
+        Assert.assertEquals("b", response.getResults().get(1).getRequestedRegistrationId());
+        Assert.assertEquals(ResultError.INVALID_TTL, response.getResults().get(1).getError());
+        Assert.assertSame(request, response.getRequest());
+    }
+
+}
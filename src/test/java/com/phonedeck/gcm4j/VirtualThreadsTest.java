@@ -0,0 +1,33 @@
+package com.phonedeck.gcm4j;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the baseline version of {@link VirtualThreads}, the Java 21 version is tested by the java21 profile.
+ */
+public class VirtualThreadsTest {
+
+    @Test
+    public void notSupported() {
+        Assert.assertFalse(VirtualThreads.isSupported());
+        try {
+            VirtualThreads.newExecutor();
+            Assert.fail("did not throw");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void defaultGcmRejectsVirtualThreads() {
+        try {
+            new DefaultGcm(new GcmConfig().withKey("k").withVirtualThreads(true));
+            Assert.fail("did not throw");
+        } catch (GcmException ex) {
+            Assert.assertTrue(ex.getMessage().contains("Java 21"));
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.phonedeck.gcm4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Runs in the java21 profile against the Java 21 version of {@link VirtualThreads} from
+ * {@code META-INF/versions/21}.
+ */
+public class VirtualThreadsJava21Test {
+
+    @Test
+    public void runsTasksOnVirtualThreads() throws Exception {
+        Assert.assertTrue(VirtualThreads.isSupported());
+        ExecutorService executor = VirtualThreads.newExecutor();
+        try {
+            Future<Thread> thread = executor.submit(Thread::currentThread);
+            Assert.assertTrue(thread.get(5, TimeUnit.SECONDS).isVirtual());
+            Assert.assertTrue(thread.get().getName().startsWith("gcm4j-virtual-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void defaultGcmUsesVirtualThreads() {
+        // fails if the baseline class was loaded
+        new DefaultGcm(new GcmConfig().withKey("k").withVirtualThreads(true));
+    }
+
+}